@@ -1,13 +1,17 @@
 package io.rapidpro.flows;
 
-import io.rapidpro.expressions.EvaluatorBuilder;
 import io.rapidpro.expressions.evaluator.Evaluator;
+import io.rapidpro.expressions.functions.CustomFunctions;
+import io.rapidpro.expressions.functions.ExcelFunctions;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.runner.Location;
 import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.utils.CachingEvaluator;
 import org.threeten.bp.Instant;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -19,10 +23,16 @@ public class RunnerBuilder {
 
     protected Location.Resolver m_locationResolver;
 
+    protected Location.AsyncResolver m_asyncLocationResolver;
+
     protected Instant m_now;
 
     protected List<Flow> m_flows;
 
+    protected boolean m_combineRegexes;
+
+    protected long m_regexTimeout;
+
     public RunnerBuilder(List<Flow> flows) {
         m_flows = flows;
     }
@@ -41,17 +51,43 @@ public class RunnerBuilder {
         return this;
     }
 
+    public RunnerBuilder withAsyncLocationResolver(Location.AsyncResolver asyncLocationResolver) {
+        m_asyncLocationResolver = asyncLocationResolver;
+        return this;
+    }
+
     public RunnerBuilder withNowAs(Instant now) {
         m_now = now;
         return this;
     }
 
+    /**
+     * Sets whether rule sets should match their regex tests with a single automaton rather than one at a time, which
+     * is faster for rule sets with many regex tests
+     */
+    public RunnerBuilder withCombinedRegexes(boolean combineRegexes) {
+        m_combineRegexes = combineRegexes;
+        return this;
+    }
+
+    /**
+     * Sets the time limit for evaluating a regex test. A test which exceeds it doesn't match and adds an error to the
+     * step.
+     * @param regexTimeout the time limit in milliseconds, or 0 for no limit
+     */
+    public RunnerBuilder withRegexTimeout(long regexTimeout) {
+        m_regexTimeout = regexTimeout;
+        return this;
+    }
+
     public Runner build() {
         if (m_templateEvaluator == null) {
-            m_templateEvaluator = new EvaluatorBuilder()
-                    .withExpressionPrefix('@')
-                    .withAllowedTopLevels(new String[]{"channel", "contact", "date", "extra", "flow", "step", "parent", "child"})
-                    .build();
+            m_templateEvaluator = new CachingEvaluator(
+                    '@',
+                    new HashSet<>(Arrays.asList("channel", "contact", "date", "extra", "flow", "step", "parent", "child")),
+                    Arrays.<Class<?>>asList(ExcelFunctions.class, CustomFunctions.class),
+                    CachingEvaluator.DEFAULT_CACHE_SIZE
+            );
         }
 
         if (m_locationResolver == null) {
@@ -63,6 +99,6 @@ public class RunnerBuilder {
             };
         }
 
-        return new Runner(m_templateEvaluator, m_locationResolver, m_now, m_flows);
+        return new Runner(m_templateEvaluator, m_locationResolver, m_asyncLocationResolver, m_now, m_flows, m_combineRegexes, m_regexTimeout);
     }
 }
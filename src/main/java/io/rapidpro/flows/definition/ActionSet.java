@@ -56,6 +56,18 @@ public class ActionSet extends Flow.Node implements Flow.ConnectionStart {
      */
     @Override
     public Flow.Node visit(Runner runner, RunState run, Step step, Input input) {
+        execute(runner, run, step, input);
+        return m_destination;
+    }
+
+    /**
+     * Performs the actions in this action set
+     * @param runner the flow runner
+     * @param run the run state
+     * @param step the current step
+     * @param input the last input
+     */
+    public void execute(Runner runner, RunState run, Step step, Input input) {
         if (logger.isDebugEnabled()) {
             logger.debug("Visiting action set " + m_uuid + " with input " + input + " from contact " + run.getContact().getUuid());
         }
@@ -64,8 +76,6 @@ public class ActionSet extends Flow.Node implements Flow.ConnectionStart {
             Action.Result result = action.execute(runner, run, input);
             step.addActionResult(result);
         }
-
-        return m_destination;
     }
 
     public List<Action> getActions() {
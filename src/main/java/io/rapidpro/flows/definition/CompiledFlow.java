@@ -0,0 +1,161 @@
+package io.rapidpro.flows.definition;
+
+import java.util.List;
+
+/**
+ * An index based view of a flow graph, built once per flow. Every node is identified by a dense int index, and
+ * destinations of action sets and rules are stored as node indexes, so that the runner can walk a flow without
+ * hashing node UUIDs or following object references.
+ */
+public class CompiledFlow {
+
+    /**
+     * Index used for missing destinations and entry points
+     */
+    public static final int NONE = -1;
+
+    public static final int ACTION_SET = 1;
+
+    public static final int RULE_SET = 2;
+
+    protected Flow m_flow;
+
+    protected Flow.Node[] m_nodes;
+
+    protected int[] m_kinds;
+
+    protected ActionSet[] m_actionSets;
+
+    protected RuleSet[] m_ruleSets;
+
+    /**
+     * Destination of each action set, indexed by node
+     */
+    protected int[] m_destinations;
+
+    /**
+     * Offset of each rule set's first rule in m_ruleDestinations, indexed by node
+     */
+    protected int[] m_ruleOffsets;
+
+    /**
+     * Destination of each rule, grouped by rule set
+     */
+    protected int[] m_ruleDestinations;
+
+    protected int m_entry;
+
+    /**
+     * Compiles the given flow. Nodes are assigned their indexes in the order they're provided.
+     * @param flow the flow
+     * @param nodes the nodes of the flow
+     * @return the compiled flow
+     */
+    static CompiledFlow compile(Flow flow, List<Flow.Node> nodes) {
+        CompiledFlow compiled = new CompiledFlow();
+        int numNodes = nodes.size();
+
+        compiled.m_flow = flow;
+        compiled.m_nodes = nodes.toArray(new Flow.Node[numNodes]);
+        compiled.m_kinds = new int[numNodes];
+        compiled.m_actionSets = new ActionSet[numNodes];
+        compiled.m_ruleSets = new RuleSet[numNodes];
+        compiled.m_destinations = new int[numNodes];
+        compiled.m_ruleOffsets = new int[numNodes];
+
+        int numRules = 0;
+        for (int n = 0; n < numNodes; n++) {
+            Flow.Node node = compiled.m_nodes[n];
+            node.m_index = n;
+
+            if (node instanceof RuleSet) {
+                compiled.m_ruleOffsets[n] = numRules;
+                numRules += ((RuleSet) node).getRules().size();
+            }
+        }
+
+        compiled.m_ruleDestinations = new int[numRules];
+
+        for (int n = 0; n < numNodes; n++) {
+            Flow.Node node = compiled.m_nodes[n];
+
+            if (node instanceof ActionSet) {
+                ActionSet actionSet = (ActionSet) node;
+                compiled.m_kinds[n] = ACTION_SET;
+                compiled.m_actionSets[n] = actionSet;
+                compiled.m_destinations[n] = indexOf(actionSet.getDestination());
+            } else {
+                RuleSet ruleSet = (RuleSet) node;
+                compiled.m_kinds[n] = RULE_SET;
+                compiled.m_ruleSets[n] = ruleSet;
+                compiled.m_destinations[n] = NONE;
+
+                List<Rule> rules = ruleSet.getRules();
+                for (int r = 0; r < rules.size(); r++) {
+                    compiled.m_ruleDestinations[compiled.m_ruleOffsets[n] + r] = indexOf(rules.get(r).getDestination());
+                }
+            }
+        }
+
+        compiled.m_entry = indexOf(flow.getEntry());
+        return compiled;
+    }
+
+    protected static int indexOf(Flow.Node node) {
+        return node != null ? node.m_index : NONE;
+    }
+
+    public Flow getFlow() {
+        return m_flow;
+    }
+
+    /**
+     * Gets the number of nodes in this flow
+     */
+    public int getNodeCount() {
+        return m_nodes.length;
+    }
+
+    /**
+     * Gets the index of the entry node, or NONE if flow has no entry point
+     */
+    public int getEntry() {
+        return m_entry;
+    }
+
+    public Flow.Node getNode(int index) {
+        return m_nodes[index];
+    }
+
+    /**
+     * Gets the kind of the given node, i.e. ACTION_SET or RULE_SET
+     */
+    public int getKind(int index) {
+        return m_kinds[index];
+    }
+
+    public ActionSet getActionSet(int index) {
+        return m_actionSets[index];
+    }
+
+    public RuleSet getRuleSet(int index) {
+        return m_ruleSets[index];
+    }
+
+    /**
+     * Gets the destination of the given action set node, or NONE
+     */
+    public int getDestination(int index) {
+        return m_destinations[index];
+    }
+
+    /**
+     * Gets the destination of a rule in the given rule set node, or NONE
+     * @param index the rule set node index
+     * @param rule the position of the rule in the rule set
+     * @return the destination node index
+     */
+    public int getRuleDestination(int index, int rule) {
+        return m_ruleDestinations[m_ruleOffsets[index] + rule];
+    }
+}
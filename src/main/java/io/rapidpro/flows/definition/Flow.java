@@ -20,6 +20,34 @@ public class Flow {
     // supported versions of the flow spec
     public static Set<Integer> SPEC_VERSIONS = new HashSet<>(Arrays.asList(7, 8, 9, 10, 11));
 
+    // register factories for the references in flow definitions so that loading them doesn't need reflection
+    static {
+        JsonUtils.registerFactory(ContactRef.class, new JsonUtils.Factory<ContactRef>() {
+            @Override
+            public ContactRef fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return ContactRef.fromJson(elm, context);
+            }
+        });
+        JsonUtils.registerFactory(GroupRef.class, new JsonUtils.Factory<GroupRef>() {
+            @Override
+            public GroupRef fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return GroupRef.fromJson(elm, context);
+            }
+        });
+        JsonUtils.registerFactory(LabelRef.class, new JsonUtils.Factory<LabelRef>() {
+            @Override
+            public LabelRef fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return LabelRef.fromJson(elm, context);
+            }
+        });
+        JsonUtils.registerFactory(VariableRef.class, new JsonUtils.Factory<VariableRef>() {
+            @Override
+            public VariableRef fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return VariableRef.fromJson(elm, context);
+            }
+        });
+    }
+
     public enum Type {
         FLOW("F"),
         MESSAGE("M"),
@@ -54,6 +82,10 @@ public class Flow {
 
     protected JsonObject m_metadata;
 
+    protected CompiledFlow m_compiled;
+
+    protected Map<String, TemplateFolding.Kind> m_foldedTemplates;
+
     /**
      * Creates a flow from a JSON flow definition
      * @param json the JSON
@@ -91,9 +123,12 @@ public class Flow {
 
         DeserializationContext context = new DeserializationContext(new HashMap<String, Flow>());
 
+        List<Node> nodes = new ArrayList<>();
+
         for (JsonElement asElem : obj.get("action_sets").getAsJsonArray()) {
             ActionSet actionSet = ActionSet.fromJson(asElem.getAsJsonObject(), context);
             flow.m_elementsByUuid.put(actionSet.m_uuid, actionSet);
+            nodes.add(actionSet);
 
             // see what translations are set on this actionset
             for (Action action : actionSet.getActions()) {
@@ -106,6 +141,7 @@ public class Flow {
         for (JsonElement rsElem : obj.get("rule_sets").getAsJsonArray()) {
             RuleSet ruleSet = RuleSet.fromJson(rsElem.getAsJsonObject(), context);
             flow.m_elementsByUuid.put(ruleSet.m_uuid, ruleSet);
+            nodes.add(ruleSet);
 
             for (Rule rule : ruleSet.getRules()) {
                 flow.m_elementsByUuid.put(rule.getUuid(), rule);
@@ -128,6 +164,8 @@ public class Flow {
         }
 
         flow.m_entry = flow.getElementByUuid(JsonUtils.getAsString(obj, "entry"));
+        flow.m_compiled = CompiledFlow.compile(flow, nodes);
+        flow.m_foldedTemplates = TemplateFolding.fold(nodes);
         return flow;
     }
 
@@ -196,6 +234,8 @@ public class Flow {
      */
     public static abstract class Node extends Element {
 
+        protected int m_index;
+
         /**
          * Visits this node
          * @param runner the flow runner
@@ -206,6 +246,13 @@ public class Flow {
          */
         public abstract Node visit(Runner runner, RunState run, Step step, Input input);
 
+        /**
+         * Gets the index of this node in its compiled flow
+         */
+        public int getIndex() {
+            return m_index;
+        }
+
         /**
          * @see Object#toString()
          */
@@ -243,6 +290,20 @@ public class Flow {
         return m_entry;
     }
 
+    /**
+     * Gets the index based view of this flow used by the runner
+     */
+    public CompiledFlow getCompiled() {
+        return m_compiled;
+    }
+
+    /**
+     * Gets the templates in this flow which don't depend on the contact or run
+     */
+    public Map<String, TemplateFolding.Kind> getFoldedTemplates() {
+        return m_foldedTemplates;
+    }
+
     public JsonObject getMetadata() {
         return m_metadata;
     }
@@ -0,0 +1,190 @@
+package io.rapidpro.flows.definition;
+
+import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.definition.tests.numeric.*;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Index of the numeric rules in a rule set with constant bounds. Each such rule matches input containing a number in
+ * an interval, so the bounds of all the rules split the number line into regions where we know the first rule that
+ * matches. Finding the first numeric rule to match a number is then a binary search over those bounds. Rules with
+ * bounds which are templates aren't indexed and are evaluated as normal.
+ */
+public class NumericRuleIndex {
+
+    protected static final int NONE = Integer.MAX_VALUE;
+
+    protected final BitSet m_indexed;
+
+    // sorted distinct bounds of all the intervals
+    protected final BigDecimal[] m_bounds;
+
+    // for each region, the first rule which matches it. Region 2i+1 is the bound i, region 2i is the open interval
+    // below bound i, and the last region is everything above the last bound.
+    protected final int[] m_firstRules;
+
+    protected NumericRuleIndex(BitSet indexed, BigDecimal[] bounds, int[] firstRules) {
+        m_indexed = indexed;
+        m_bounds = bounds;
+        m_firstRules = firstRules;
+    }
+
+    /**
+     * Builds an index of the given rules
+     * @param rules the rules of the rule set
+     * @return the index or null if none of the rules can be indexed
+     */
+    public static NumericRuleIndex build(List<Rule> rules) {
+        BitSet indexed = new BitSet();
+        List<Interval> intervals = new ArrayList<>();
+        SortedSet<BigDecimal> bounds = new TreeSet<>();
+
+        for (int r = 0; r < rules.size(); r++) {
+            Test test = rules.get(r).getTest();
+            Interval interval;
+            try {
+                interval = toInterval(test, r);
+            } catch (NumberFormatException ex) {
+                // a constant bound that isn't a number, so the rule can never match
+                indexed.set(r);
+                continue;
+            }
+
+            if (interval != null) {
+                indexed.set(r);
+                intervals.add(interval);
+                if (interval.m_lower != null) {
+                    bounds.add(interval.m_lower);
+                }
+                if (interval.m_upper != null) {
+                    bounds.add(interval.m_upper);
+                }
+            }
+        }
+
+        if (indexed.isEmpty()) {
+            return null;
+        }
+
+        BigDecimal[] boundsArray = bounds.toArray(new BigDecimal[bounds.size()]);
+        int[] firstRules = new int[boundsArray.length * 2 + 1];
+        Arrays.fill(firstRules, NONE);
+
+        for (Interval interval : intervals) {
+            int from = 0, to = firstRules.length - 1;
+            if (interval.m_lower != null) {
+                int b = Arrays.binarySearch(boundsArray, interval.m_lower);
+                from = interval.m_lowerInclusive ? 2 * b + 1 : 2 * b + 2;
+            }
+            if (interval.m_upper != null) {
+                int b = Arrays.binarySearch(boundsArray, interval.m_upper);
+                to = interval.m_upperInclusive ? 2 * b + 1 : 2 * b;
+            }
+            for (int region = from; region <= to; region++) {
+                firstRules[region] = Math.min(firstRules[region], interval.m_rule);
+            }
+        }
+
+        return new NumericRuleIndex(indexed, boundsArray, firstRules);
+    }
+
+    /**
+     * Converts a numeric test to the interval of numbers it matches
+     * @return the interval or null if the test can't be indexed
+     */
+    protected static Interval toInterval(Test test, int rule) {
+        Class<?> type = test.getClass();
+
+        if (type == HasNumberTest.class) {
+            return new Interval(rule, null, false, null, false);
+        } else if (type == BetweenTest.class) {
+            BetweenTest between = (BetweenTest) test;
+            if (!isConstant(between.getMin()) || !isConstant(between.getMax())) {
+                return null;
+            }
+            return new Interval(rule, parse(between.getMin()), true, parse(between.getMax()), true);
+        } else if (test instanceof NumericComparisonTest) {
+            String bound = ((NumericComparisonTest) test).getTest();
+            if (!isConstant(bound)) {
+                return null;
+            }
+
+            if (type == LessThanTest.class) {
+                return new Interval(rule, null, false, parse(bound), false);
+            } else if (type == LessThanOrEqualTest.class) {
+                return new Interval(rule, null, false, parse(bound), true);
+            } else if (type == GreaterThanTest.class) {
+                return new Interval(rule, parse(bound), false, null, false);
+            } else if (type == GreaterThanOrEqualTest.class) {
+                return new Interval(rule, parse(bound), true, null, false);
+            } else if (type == EqualTest.class) {
+                BigDecimal value = parse(bound);
+                return new Interval(rule, value, true, value, true);
+            }
+        }
+        return null;
+    }
+
+    protected static boolean isConstant(String bound) {
+        return TemplateFolding.classify(bound) == TemplateFolding.Kind.CONSTANT;
+    }
+
+    protected static BigDecimal parse(String bound) {
+        return new BigDecimal(bound.trim());
+    }
+
+    /**
+     * Restricts the given candidate rules so that, of the indexed rules, only the first to match any of the given
+     * numbers remains
+     * @param candidates the positions of the rules to evaluate
+     * @param decimals the numbers in the input
+     */
+    public void restrict(BitSet candidates, List<BigDecimal> decimals) {
+        int first = NONE;
+        for (BigDecimal decimal : decimals) {
+            first = Math.min(first, getFirstRule(decimal));
+        }
+
+        candidates.andNot(m_indexed);
+        if (first != NONE) {
+            candidates.set(first);
+        }
+    }
+
+    /**
+     * Gets the first indexed rule which matches the given number
+     * @param decimal the number
+     * @return the rule position or NONE
+     */
+    protected int getFirstRule(BigDecimal decimal) {
+        int b = Arrays.binarySearch(m_bounds, decimal);
+        int region = b >= 0 ? 2 * b + 1 : 2 * (-b - 1);
+        return m_firstRules[region];
+    }
+
+    /**
+     * An interval of numbers matched by a rule, where a null bound is unbounded
+     */
+    protected static class Interval {
+
+        protected final int m_rule;
+
+        protected final BigDecimal m_lower;
+
+        protected final boolean m_lowerInclusive;
+
+        protected final BigDecimal m_upper;
+
+        protected final boolean m_upperInclusive;
+
+        public Interval(int rule, BigDecimal lower, boolean lowerInclusive, BigDecimal upper, boolean upperInclusive) {
+            m_rule = rule;
+            m_lower = lower;
+            m_lowerInclusive = lowerInclusive;
+            m_upper = upper;
+            m_upperInclusive = upperInclusive;
+        }
+    }
+}
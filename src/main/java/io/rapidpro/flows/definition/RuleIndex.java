@@ -0,0 +1,226 @@
+package io.rapidpro.flows.definition;
+
+import io.rapidpro.expressions.utils.ExpressionUtils;
+import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.definition.tests.text.ContainsAnyTest;
+import io.rapidpro.flows.definition.tests.text.ContainsTest;
+import io.rapidpro.flows.definition.tests.text.RegexTest;
+import io.rapidpro.flows.definition.tests.text.StartsWithTest;
+import io.rapidpro.flows.runner.InputAnalysis;
+import io.rapidpro.flows.utils.RegexSet;
+
+import java.util.*;
+
+/**
+ * Index of the keyword rules in a rule set for a given set of preferred languages. Contains, contains-any and
+ * starts-with tests with constant arguments can only match input which has one of their words, or starts with the
+ * first character of their text, so a single pass over the input words finds every such rule which could match. Only
+ * those rules and the rules which couldn't be indexed need to be evaluated, in their original order.
+ *
+ * Regex tests can optionally be combined into a single automaton, so that one pass over the input finds which of them
+ * could match. That automaton is only built the first time it's needed.
+ */
+public class RuleIndex {
+
+    protected final BitSet m_unindexed = new BitSet();
+
+    protected final Map<String, int[]> m_anyRulesByWord = new HashMap<>();
+
+    protected final Map<String, int[]> m_allRulesByWord = new HashMap<>();
+
+    protected final int[] m_allWordCounts;
+
+    protected final Map<Character, int[]> m_startsRulesByChar = new HashMap<>();
+
+    protected int m_indexedCount;
+
+    protected final List<Integer> m_regexRules = new ArrayList<>();
+
+    protected final List<String> m_regexPatterns = new ArrayList<>();
+
+    protected volatile RegexSet m_regexes;
+
+    /**
+     * Builds an index of the given rules
+     * @param rules the rules of the rule set
+     * @param preferredLanguages the languages to localize tests in
+     */
+    public RuleIndex(List<Rule> rules, List<String> preferredLanguages) {
+        m_allWordCounts = new int[rules.size()];
+
+        Map<String, List<Integer>> anyRulesByWord = new HashMap<>();
+        Map<String, List<Integer>> allRulesByWord = new HashMap<>();
+        Map<Character, List<Integer>> startsRulesByChar = new HashMap<>();
+
+        for (int r = 0; r < rules.size(); r++) {
+            Test test = rules.get(r).getTest();
+            Class<?> type = test.getClass();
+            String localized = null;
+
+            if (type == ContainsTest.class || type == ContainsAnyTest.class) {
+                localized = ((ContainsTest) test).getTest().getLocalized(preferredLanguages, "");
+            } else if (type == StartsWithTest.class) {
+                localized = ((StartsWithTest) test).getTest().getLocalized(preferredLanguages, "");
+            } else if (type == RegexTest.class) {
+                // regex tests don't evaluate expressions so can always be combined
+                m_regexRules.add(r);
+                m_regexPatterns.add(((RegexTest) test).getTest().getLocalized(preferredLanguages, ""));
+            }
+
+            // tests with expressions in their arguments depend on the run so can't be indexed
+            if (localized == null || localized.indexOf('@') >= 0) {
+                m_unindexed.set(r);
+                continue;
+            }
+
+            localized = localized.toLowerCase();
+
+            if (type == StartsWithTest.class) {
+                if (localized.isEmpty()) {
+                    m_unindexed.set(r);
+                } else {
+                    add(startsRulesByChar, localized.charAt(0), r);
+                }
+            } else {
+                Set<String> words = new LinkedHashSet<>(Arrays.asList(ExpressionUtils.tokenize(localized)));
+
+                // a contains test with no words matches anything, and a contains-any test with no words nothing
+                if (words.isEmpty() && type == ContainsTest.class) {
+                    m_unindexed.set(r);
+                    continue;
+                }
+
+                for (String word : words) {
+                    add(type == ContainsAnyTest.class ? anyRulesByWord : allRulesByWord, word, r);
+                }
+                m_allWordCounts[r] = words.size();
+            }
+            m_indexedCount++;
+        }
+
+        toArrays(anyRulesByWord, m_anyRulesByWord);
+        toArrays(allRulesByWord, m_allRulesByWord);
+        toArrays(startsRulesByChar, m_startsRulesByChar);
+    }
+
+    /**
+     * Finds the rules which could match the given input
+     * @param input the analysis of the input
+     * @return the positions of the rules to evaluate
+     */
+    public BitSet getCandidates(InputAnalysis input) {
+        return getCandidates(input, false);
+    }
+
+    /**
+     * Finds the rules which could match the given input
+     * @param input the analysis of the input
+     * @param combineRegexes whether to match regex tests with a single automaton
+     * @return the positions of the rules to evaluate
+     */
+    public BitSet getCandidates(InputAnalysis input, boolean combineRegexes) {
+        BitSet candidates = (BitSet) m_unindexed.clone();
+
+        if (combineRegexes && !m_regexRules.isEmpty()) {
+            restrictRegexRules(candidates, input.getText());
+        }
+
+        String[] words = input.getLowerTokens();
+        Set<String> seen = new HashSet<>();
+        int[] allCounts = null;
+
+        for (String word : words) {
+            if (!seen.add(word)) {
+                continue;
+            }
+
+            int[] anyRules = m_anyRulesByWord.get(word);
+            if (anyRules != null) {
+                for (int r : anyRules) {
+                    candidates.set(r);
+                }
+            }
+
+            // contains tests need every one of their words
+            int[] allRules = m_allRulesByWord.get(word);
+            if (allRules != null) {
+                if (allCounts == null) {
+                    allCounts = new int[m_allWordCounts.length];
+                }
+                for (int r : allRules) {
+                    if (++allCounts[r] == m_allWordCounts[r]) {
+                        candidates.set(r);
+                    }
+                }
+            }
+        }
+
+        String trimmed = input.getTrimmedLowerText();
+        if (!trimmed.isEmpty()) {
+            int[] startsRules = m_startsRulesByChar.get(trimmed.charAt(0));
+            if (startsRules != null) {
+                for (int r : startsRules) {
+                    candidates.set(r);
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Removes the regex rules which can't match the given input from the candidates. Rules with patterns that the
+     * automaton doesn't support remain candidates, as do all regex rules if the automaton has grown too large.
+     */
+    protected void restrictRegexRules(BitSet candidates, String text) {
+        RegexSet regexes = getRegexes();
+        BitSet matched = regexes.match(text);
+        if (matched == null) {
+            return;
+        }
+
+        for (int p = 0; p < m_regexRules.size(); p++) {
+            if (regexes.isSupported(p) && !matched.get(p)) {
+                candidates.clear(m_regexRules.get(p));
+            }
+        }
+    }
+
+    /**
+     * Gets the automaton of our regex tests, building it if necessary
+     */
+    protected RegexSet getRegexes() {
+        RegexSet regexes = m_regexes;
+        if (regexes == null) {
+            regexes = new RegexSet(m_regexPatterns);
+            m_regexes = regexes;
+        }
+        return regexes;
+    }
+
+    /**
+     * Gets the number of rules that were indexed
+     */
+    public int getIndexedCount() {
+        return m_indexedCount;
+    }
+
+    protected static <K> void add(Map<K, List<Integer>> map, K key, int rule) {
+        List<Integer> rules = map.get(key);
+        if (rules == null) {
+            rules = new ArrayList<>();
+            map.put(key, rules);
+        }
+        rules.add(rule);
+    }
+
+    protected static <K> void toArrays(Map<K, List<Integer>> lists, Map<K, int[]> arrays) {
+        for (Map.Entry<K, List<Integer>> entry : lists.entrySet()) {
+            int[] rules = new int[entry.getValue().size()];
+            for (int i = 0; i < rules.length; i++) {
+                rules[i] = entry.getValue().get(i);
+            }
+            arrays.put(entry.getKey(), rules);
+        }
+    }
+}
@@ -2,25 +2,32 @@ package io.rapidpro.flows.definition;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.expressions.utils.ExpressionUtils;
 import io.rapidpro.flows.definition.tests.Test;
 import io.rapidpro.flows.runner.Input;
+import io.rapidpro.flows.runner.InputAnalysis;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.runner.Step;
+import io.rapidpro.flows.utils.JsonStreamable;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A flow node which is a set of rules, each with its own destination node
@@ -57,6 +64,10 @@ public class RuleSet extends Flow.Node {
 
     protected List<Rule> m_rules = new ArrayList<>();
 
+    protected final ConcurrentMap<List<String>, RuleIndex> m_indexes = new ConcurrentHashMap<>();
+
+    protected NumericRuleIndex m_numericIndex;
+
     /**
      * If this rule is a subflow
      */
@@ -92,6 +103,8 @@ public class RuleSet extends Flow.Node {
         for (JsonElement ruleElem : obj.get("rules").getAsJsonArray()) {
             set.m_rules.add(Rule.fromJson(ruleElem.getAsJsonObject(), context));
         }
+
+        set.m_numericIndex = NumericRuleIndex.build(set.m_rules);
         return set;
     }
 
@@ -100,6 +113,19 @@ public class RuleSet extends Flow.Node {
      */
     @Override
     public Flow.Node visit(Runner runner, RunState run, Step step, Input input) {
+        int matched = evaluate(runner, run, step, input);
+        return matched >= 0 ? m_rules.get(matched).getDestination() : null;
+    }
+
+    /**
+     * Evaluates the rules of this rule set against the given input
+     * @param runner the flow runner
+     * @param run the run state
+     * @param step the current step
+     * @param input the last input
+     * @return the position of the matching rule, or -1 if no rule matched
+     */
+    public int evaluate(Runner runner, RunState run, Step step, Input input) {
         if (logger.isDebugEnabled()) {
             logger.debug("Visiting rule set " + m_uuid + " with input " + input + " from contact " + run.getContact().getUuid());
         }
@@ -108,12 +134,12 @@ public class RuleSet extends Flow.Node {
 
         EvaluationContext context = run.buildContext(runner, input);
 
-        Pair<Rule, Test.Result> match = findMatchingRule(runner, run, context);
+        Pair<Integer, Test.Result> match = findMatchingRule(runner, run, step, context);
         if (match == null) {
-            return null;
+            return -1;
         }
 
-        Rule rule = match.getLeft();
+        Rule rule = m_rules.get(match.getLeft());
         Test.Result testResult = match.getRight();
 
         // get category in the flow base language
@@ -126,17 +152,47 @@ public class RuleSet extends Flow.Node {
 
         run.updateValue(this, result, input.getTime());
 
-        return rule.getDestination();
+        return match.getLeft();
     }
 
     /**
      * Runs through the rules to find the first one that matches
      * @param runner the flow runner
      * @param run the current run state
+     * @param step the current step, which gets the errors of any tests that couldn't be evaluated
      * @param context the evaluation context
-     * @return the matching rule and the test result
+     * @return the position of the matching rule and the test result
      */
-    protected Pair<Rule, Test.Result> findMatchingRule(Runner runner, RunState run, EvaluationContext context) {
+    protected Pair<Integer, Test.Result> findMatchingRule(Runner runner, RunState run, Step step, EvaluationContext context) {
+        String operand = evaluateOperand(runner, context);
+
+        // only evaluate the rules which the index says could match
+        InputAnalysis analysis = InputAnalysis.of(context, operand);
+        RuleIndex index = getIndex(TranslatableText.getPreferredLanguages(run));
+        BitSet candidates = index.getCandidates(analysis, runner.isCombineRegexes());
+
+        if (m_numericIndex != null) {
+            m_numericIndex.restrict(candidates, analysis.getDecimals());
+        }
+
+        for (int r = candidates.nextSetBit(0); r >= 0; r = candidates.nextSetBit(r + 1)) {
+            Test.Result result = m_rules.get(r).matches(runner, run, context, operand);
+            if (result.isMatched()) {
+                return new ImmutablePair<>(r, result);
+            } else if (result.hasError()) {
+                step.addError(result.getError());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates the operand which our rules are tested against
+     * @param runner the flow runner
+     * @param context the evaluation context
+     * @return the operand text
+     */
+    public String evaluateOperand(Runner runner, EvaluationContext context) {
         String operand;
 
         // for form fields, construct operand as field expression
@@ -148,15 +204,24 @@ public class RuleSet extends Flow.Node {
             operand = m_operand;
         }
 
-        operand = runner.substituteVariables(operand, context).getOutput();
+        return runner.substituteVariables(operand, context).getOutput();
+    }
 
-        for (Rule rule : m_rules) {
-            Test.Result result = rule.matches(runner, run, context, operand);
-            if (result.isMatched()) {
-                return new ImmutablePair<>(rule, result);
+    /**
+     * Gets the index of our rules for the given languages, building it if necessary
+     * @param preferredLanguages the preferred languages of the run
+     * @return the index
+     */
+    protected RuleIndex getIndex(List<String> preferredLanguages) {
+        RuleIndex index = m_indexes.get(preferredLanguages);
+        if (index == null) {
+            index = new RuleIndex(m_rules, preferredLanguages);
+            RuleIndex existing = m_indexes.putIfAbsent(preferredLanguages, index);
+            if (existing != null) {
+                index = existing;
             }
         }
-        return null;
+        return index;
     }
 
     public Type getRuleSetType() {
@@ -199,7 +264,7 @@ public class RuleSet extends Flow.Node {
     /**
      * Holds the result of a ruleset evaluation
      */
-    public static class Result implements Jsonizable {
+    public static class Result implements JsonStreamable {
 
         protected Rule m_rule;
 
@@ -236,6 +301,33 @@ public class RuleSet extends Flow.Node {
             );
         }
 
+        /**
+         * Reads a rule result from a stream of JSON
+         * @param in the JSON reader
+         * @param context the deserialization context
+         * @return the result
+         */
+        public static Result readJson(JsonReader in, Flow.DeserializationContext context) throws IOException {
+            String ruleUuid = null, value = null, category = null, text = null, media = null, flowUuid = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "uuid": ruleUuid = JsonUtils.nextString(in); break;
+                    case "value": value = JsonUtils.nextString(in); break;
+                    case "category": category = JsonUtils.nextString(in); break;
+                    case "text": text = JsonUtils.nextString(in); break;
+                    case "media": media = JsonUtils.nextString(in); break;
+                    case "flow_uuid": flowUuid = JsonUtils.nextString(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+
+            Flow flow = context.getFlow(flowUuid);
+            return new Result((Rule) flow.getElementByUuid(ruleUuid), value, category, text, media, flow);
+        }
+
         @Override
         public JsonElement toJson() {
             return JsonUtils.object(
@@ -248,6 +340,21 @@ public class RuleSet extends Flow.Node {
             );
         }
 
+        /**
+         * @see JsonStreamable#writeJson(JsonWriter)
+         */
+        @Override
+        public void writeJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("uuid").value(m_rule.getUuid());
+            out.name("value").value(m_value);
+            out.name("category").value(m_category);
+            out.name("text").value(m_text);
+            out.name("media").value(m_media);
+            out.name("flow_uuid").value(m_flow.getUuid());
+            out.endObject();
+        }
+
         /**
          * Media is mutable since they can point to files that have been moved
          */
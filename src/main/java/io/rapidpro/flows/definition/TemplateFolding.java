@@ -0,0 +1,189 @@
+package io.rapidpro.flows.definition;
+
+import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.definition.actions.contact.SaveToContactAction;
+import io.rapidpro.flows.definition.actions.group.GroupMembershipAction;
+import io.rapidpro.flows.definition.actions.label.AddLabelsAction;
+import io.rapidpro.flows.definition.actions.message.EmailAction;
+import io.rapidpro.flows.definition.actions.message.MessageAction;
+import io.rapidpro.flows.definition.actions.message.SendAction;
+import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.definition.tests.date.DateComparisonTest;
+import io.rapidpro.flows.definition.tests.location.HasDistrictTest;
+import io.rapidpro.flows.definition.tests.location.HasWardTest;
+import io.rapidpro.flows.definition.tests.logic.AndTest;
+import io.rapidpro.flows.definition.tests.logic.OrTest;
+import io.rapidpro.flows.definition.tests.numeric.BetweenTest;
+import io.rapidpro.flows.definition.tests.numeric.NumericComparisonTest;
+import io.rapidpro.flows.definition.tests.text.TranslatableTest;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load time pass over the templates in a flow which finds those that don't depend on the contact or run. Constant
+ * templates contain no expressions at all and evaluate to themselves, and date templates only reference the current
+ * date so evaluate to the same thing for everyone in an org's timezone on a given day.
+ */
+public class TemplateFolding {
+
+    public enum Kind {
+        CONSTANT,
+        DATE
+    }
+
+    protected static final String[] DATE_VARIABLES = {"today", "tomorrow", "yesterday"};
+
+    /**
+     * Finds the foldable templates used by the given nodes
+     * @param nodes the flow nodes
+     * @return the map of template text to kind
+     */
+    public static Map<String, Kind> fold(Collection<? extends Flow.Node> nodes) {
+        Map<String, Kind> folded = new HashMap<>();
+
+        for (Flow.Node node : nodes) {
+            if (node instanceof ActionSet) {
+                for (Action action : ((ActionSet) node).getActions()) {
+                    foldAction(action, folded);
+                }
+            } else if (node instanceof RuleSet) {
+                RuleSet ruleSet = (RuleSet) node;
+                foldTemplate(ruleSet.getOperand(), folded);
+
+                for (Rule rule : ruleSet.getRules()) {
+                    foldTest(rule.getTest(), folded);
+                }
+            }
+        }
+        return folded;
+    }
+
+    protected static void foldAction(Action action, Map<String, Kind> folded) {
+        if (action instanceof MessageAction) {
+            foldTemplates(((MessageAction) action).getMsg(), folded);
+
+            if (action instanceof SendAction) {
+                for (VariableRef variable : ((SendAction) action).getVariables()) {
+                    foldTemplate(variable.getValue(), folded);
+                }
+            }
+        } else if (action instanceof EmailAction) {
+            EmailAction email = (EmailAction) action;
+            foldTemplate(email.getSubject(), folded);
+            foldTemplate(email.getMsg(), folded);
+            for (String address : email.getAddresses()) {
+                foldTemplate(address, folded);
+            }
+        } else if (action instanceof SaveToContactAction) {
+            foldTemplate(((SaveToContactAction) action).getValue(), folded);
+        } else if (action instanceof GroupMembershipAction) {
+            for (GroupRef group : ((GroupMembershipAction) action).getGroups()) {
+                if (group.getUuid() == null) {
+                    foldTemplate(group.getName(), folded);
+                }
+            }
+        } else if (action instanceof AddLabelsAction) {
+            for (LabelRef label : ((AddLabelsAction) action).getLabels()) {
+                if (label.getId() == null) {
+                    foldTemplate(label.getName(), folded);
+                }
+            }
+        }
+    }
+
+    protected static void foldTest(Test test, Map<String, Kind> folded) {
+        if (test instanceof TranslatableTest) {
+            foldTemplates(((TranslatableTest) test).getTest(), folded);
+        } else if (test instanceof NumericComparisonTest) {
+            foldTemplate(((NumericComparisonTest) test).getTest(), folded);
+        } else if (test instanceof BetweenTest) {
+            foldTemplate(((BetweenTest) test).getMin(), folded);
+            foldTemplate(((BetweenTest) test).getMax(), folded);
+        } else if (test instanceof DateComparisonTest) {
+            foldTemplate(((DateComparisonTest) test).getTest(), folded);
+        } else if (test instanceof HasDistrictTest) {
+            foldTemplate(((HasDistrictTest) test).getState(), folded);
+        } else if (test instanceof HasWardTest) {
+            foldTemplate(((HasWardTest) test).getState(), folded);
+            foldTemplate(((HasWardTest) test).getDistrict(), folded);
+        } else if (test instanceof AndTest) {
+            foldTests(((AndTest) test).getTests(), folded);
+        } else if (test instanceof OrTest) {
+            foldTests(((OrTest) test).getTests(), folded);
+        }
+    }
+
+    protected static void foldTests(List<Test> tests, Map<String, Kind> folded) {
+        for (Test test : tests) {
+            foldTest(test, folded);
+        }
+    }
+
+    protected static void foldTemplates(TranslatableText text, Map<String, Kind> folded) {
+        if (text != null) {
+            for (String template : text.getTexts()) {
+                foldTemplate(template, folded);
+            }
+        }
+    }
+
+    protected static void foldTemplate(String template, Map<String, Kind> folded) {
+        if (template != null) {
+            Kind kind = classify(template);
+            if (kind != null) {
+                folded.put(template, kind);
+            }
+        }
+    }
+
+    /**
+     * Classifies the given template
+     * @param template the template text
+     * @return the kind, or null if the template depends on the contact or run
+     */
+    public static Kind classify(String template) {
+        int pos = template.indexOf('@');
+        if (pos < 0) {
+            return Kind.CONSTANT;
+        }
+
+        while (pos >= 0) {
+            int end = matchDateVariable(template, pos + 1);
+            if (end < 0) {
+                return null;
+            }
+            pos = template.indexOf('@', end);
+        }
+        return Kind.DATE;
+    }
+
+    /**
+     * Matches a reference to a date variable like date.today at the given position
+     * @return the position after the reference, or -1 if there isn't one
+     */
+    protected static int matchDateVariable(String template, int start) {
+        if (!template.regionMatches(true, start, "date.", 0, 5)) {
+            return -1;
+        }
+
+        for (String variable : DATE_VARIABLES) {
+            int offset = start + 5;
+            if (template.regionMatches(true, offset, variable, 0, variable.length())) {
+                int end = offset + variable.length();
+
+                // anything that could continue the expression makes it something else
+                if (end < template.length()) {
+                    char next = template.charAt(end);
+                    if (Character.isLetterOrDigit(next) || next == '_' || next == '.' || next == '(') {
+                        return -1;
+                    }
+                }
+                return end;
+            }
+        }
+        return -1;
+    }
+}
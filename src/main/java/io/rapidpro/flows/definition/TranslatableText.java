@@ -97,7 +97,16 @@ public class TranslatableText implements Jsonizable {
      * @return the localized text
      */
     public String getLocalized(RunState run, String defaultText) {
-        List<String> preferredLanguages = new ArrayList<>();
+        return getLocalized(getPreferredLanguages(run), defaultText);
+    }
+
+    /**
+     * Gets the languages in order of precedence that text should be localized to for the given run
+     * @param run the run state
+     * @return the languages
+     */
+    public static List<String> getPreferredLanguages(RunState run) {
+        List<String> preferredLanguages = new ArrayList<>(3);
 
         if (StringUtils.isNotEmpty(run.getContact().getLanguage())) {
             preferredLanguages.add(run.getContact().getLanguage());
@@ -105,7 +114,7 @@ public class TranslatableText implements Jsonizable {
         preferredLanguages.add(run.getOrg().getPrimaryLanguage());
         preferredLanguages.add(run.getActiveFlow().getBaseLanguage());
 
-        return getLocalized(preferredLanguages, defaultText);
+        return preferredLanguages;
     }
 
     public String getLocalized(List<String> preferredLangs, String defaultText) {
@@ -131,6 +140,16 @@ public class TranslatableText implements Jsonizable {
         return m_translations != null ? m_translations.keySet() : Collections.<String>emptySet();
     }
 
+    /**
+     * Gets all the texts, i.e. the untranslated text or every translation
+     */
+    public Collection<String> getTexts() {
+        if (m_untranslated != null) {
+            return Collections.singletonList(m_untranslated);
+        }
+        return m_translations != null ? m_translations.values() : Collections.<String>emptyList();
+    }
+
     /**
      * JSON serialization and de-serialization
      */
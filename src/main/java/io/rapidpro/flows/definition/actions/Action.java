@@ -27,16 +27,56 @@ import java.util.Map;
  */
 public abstract class Action implements Jsonizable {
 
-    protected static Map<String, Class<? extends Action>> s_classByType = new HashMap<>();
+    protected static Map<String, JsonUtils.Factory<? extends Action>> s_factoryByType = new HashMap<>();
     static {
-        s_classByType.put(ReplyAction.TYPE, ReplyAction.class);
-        s_classByType.put(SendAction.TYPE, SendAction.class);
-        s_classByType.put(EmailAction.TYPE, EmailAction.class);
-        s_classByType.put(SaveToContactAction.TYPE, SaveToContactAction.class);
-        s_classByType.put(SetLanguageAction.TYPE, SetLanguageAction.class);
-        s_classByType.put(AddToGroupsAction.TYPE, AddToGroupsAction.class);
-        s_classByType.put(RemoveFromGroupsAction.TYPE, RemoveFromGroupsAction.class);
-        s_classByType.put(AddLabelsAction.TYPE, AddLabelsAction.class);
+        s_factoryByType.put(ReplyAction.TYPE, new JsonUtils.Factory<ReplyAction>() {
+            @Override
+            public ReplyAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return ReplyAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(SendAction.TYPE, new JsonUtils.Factory<SendAction>() {
+            @Override
+            public SendAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return SendAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(EmailAction.TYPE, new JsonUtils.Factory<EmailAction>() {
+            @Override
+            public EmailAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return EmailAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(SaveToContactAction.TYPE, new JsonUtils.Factory<SaveToContactAction>() {
+            @Override
+            public SaveToContactAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return SaveToContactAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(SetLanguageAction.TYPE, new JsonUtils.Factory<SetLanguageAction>() {
+            @Override
+            public SetLanguageAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return SetLanguageAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(AddToGroupsAction.TYPE, new JsonUtils.Factory<AddToGroupsAction>() {
+            @Override
+            public AddToGroupsAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return AddToGroupsAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(RemoveFromGroupsAction.TYPE, new JsonUtils.Factory<RemoveFromGroupsAction>() {
+            @Override
+            public RemoveFromGroupsAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return RemoveFromGroupsAction.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(AddLabelsAction.TYPE, new JsonUtils.Factory<AddLabelsAction>() {
+            @Override
+            public AddLabelsAction fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return AddLabelsAction.fromJson(elm, context);
+            }
+        });
     }
 
     /**
@@ -47,12 +87,12 @@ public abstract class Action implements Jsonizable {
      */
     public static Action fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         String type = elm.getAsJsonObject().get("type").getAsString();
-        Class<? extends Action> clazz = s_classByType.get(type);
-        if (clazz == null) {
+        JsonUtils.Factory<? extends Action> factory = s_factoryByType.get(type);
+        if (factory == null) {
             throw new FlowParseException("Unknown action type: " + type);
         }
 
-        return JsonUtils.fromJson(elm, context, clazz);
+        return factory.fromJson(elm, context);
     }
 
     /**
@@ -88,6 +88,8 @@ public class SaveToContactAction extends Action {
                 }
             }
 
+            run.invalidateContext();
+
             return Result.performed(new SaveToContactAction(field, label, value));
         }
         else {
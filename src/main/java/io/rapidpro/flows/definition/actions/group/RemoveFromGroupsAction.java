@@ -45,6 +45,7 @@ public class RemoveFromGroupsAction extends GroupMembershipAction {
             for (GroupRef group : groups) {
                 run.getContact().getGroups().remove(group.getName());
             }
+            run.invalidateContext();
             return Result.performed(new RemoveFromGroupsAction(groups));
         } else {
             return Result.errors(errors);
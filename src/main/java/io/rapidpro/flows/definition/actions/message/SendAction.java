@@ -6,6 +6,7 @@ import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.definition.*;
 import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.runner.RunEvaluationContext;
 import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
 
@@ -83,7 +84,7 @@ public class SendAction extends MessageAction {
         // create a new context without the @contact.* variables which will remain unresolved for now
         Map<String, Object> newVars = new HashMap<>(context.getVariables());
         newVars.remove("contact");
-        EvaluationContext contextForOtherContacts = new EvaluationContext(newVars, context.getTimezone(), context.getDateStyle());
+        EvaluationContext contextForOtherContacts = new RunEvaluationContext(newVars, context.getTimezone(), context.getDateStyle(), context.getNow());
 
         EvaluatedTemplate template = runner.substituteVariablesIfAvailable(msg, contextForOtherContacts);
         errors.addAll(template.getErrors());
@@ -1,14 +1,12 @@
 package io.rapidpro.flows.definition.tests;
 
 import com.google.gson.JsonElement;
-import com.google.i18n.phonenumbers.PhoneNumberMatch;
-import com.google.i18n.phonenumbers.PhoneNumberUtil;
-import com.google.i18n.phonenumbers.Phonenumber;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.utils.FlowUtils;
 import io.rapidpro.flows.utils.JsonUtils;
 
 /**
@@ -35,22 +33,9 @@ public class HasPhoneTest extends Test {
      */
     @Override
     public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
-        String country = run.getOrg().getCountry();
-        PhoneNumberUtil numberUtil = PhoneNumberUtil.getInstance();
-
         // try to find a phone number in the text we have been sent
-        Iterable<PhoneNumberMatch> matches = numberUtil.findNumbers(text, country);
-
-        // try it as an international number if we failed
-        if (!matches.iterator().hasNext()) {
-            matches = numberUtil.findNumbers("+" + text, country);
-        }
+        String number = FlowUtils.findPhoneNumber(text, run.getOrg().getCountry());
 
-        if (matches.iterator().hasNext()) {
-            Phonenumber.PhoneNumber number = matches.iterator().next().number();
-            return Result.match(numberUtil.format(number, PhoneNumberUtil.PhoneNumberFormat.E164));
-        } else {
-            return Result.NO_MATCH;
-        }
+        return number != null ? Result.match(number) : Result.NO_MATCH;
     }
 }
@@ -35,34 +35,164 @@ import java.util.Map;
  */
 public abstract class Test implements Jsonizable {
 
-    protected static Map<String, Class<? extends Test>> s_classByType = new HashMap<>();
+    protected static Map<String, JsonUtils.Factory<? extends Test>> s_factoryByType = new HashMap<>();
     static {
-        s_classByType.put(TrueTest.TYPE, TrueTest.class);
-        s_classByType.put(FalseTest.TYPE, FalseTest.class);
-        s_classByType.put(AndTest.TYPE, AndTest.class);
-        s_classByType.put(OrTest.TYPE, OrTest.class);
-        s_classByType.put(NotEmptyTest.TYPE, NotEmptyTest.class);
-        s_classByType.put(ContainsTest.TYPE, ContainsTest.class);
-        s_classByType.put(ContainsAnyTest.TYPE, ContainsAnyTest.class);
-        s_classByType.put(StartsWithTest.TYPE, StartsWithTest.class);
-        s_classByType.put(RegexTest.TYPE, RegexTest.class);
-        s_classByType.put(HasNumberTest.TYPE, HasNumberTest.class);
-        s_classByType.put(EqualTest.TYPE, EqualTest.class);
-        s_classByType.put(LessThanTest.TYPE, LessThanTest.class);
-        s_classByType.put(LessThanOrEqualTest.TYPE, LessThanOrEqualTest.class);
-        s_classByType.put(GreaterThanTest.TYPE, GreaterThanTest.class);
-        s_classByType.put(GreaterThanOrEqualTest.TYPE, GreaterThanOrEqualTest.class);
-        s_classByType.put(BetweenTest.TYPE, BetweenTest.class);
-        s_classByType.put(HasDateTest.TYPE, HasDateTest.class);
-        s_classByType.put(DateEqualTest.TYPE, DateEqualTest.class);
-        s_classByType.put(DateBeforeTest.TYPE, DateBeforeTest.class);
-        s_classByType.put(DateAfterTest.TYPE, DateAfterTest.class);
-        s_classByType.put(HasPhoneTest.TYPE, HasPhoneTest.class);
-        s_classByType.put(HasStateTest.TYPE, HasStateTest.class);
-        s_classByType.put(HasDistrictTest.TYPE, HasDistrictTest.class);
-        s_classByType.put(HasWardTest.TYPE, HasWardTest.class);
-        s_classByType.put(SubflowTest.TYPE, SubflowTest.class);
-        s_classByType.put(InGroupTest.TYPE, InGroupTest.class);
+        s_factoryByType.put(TrueTest.TYPE, new JsonUtils.Factory<TrueTest>() {
+            @Override
+            public TrueTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return TrueTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(FalseTest.TYPE, new JsonUtils.Factory<FalseTest>() {
+            @Override
+            public FalseTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return FalseTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(AndTest.TYPE, new JsonUtils.Factory<AndTest>() {
+            @Override
+            public AndTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return AndTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(OrTest.TYPE, new JsonUtils.Factory<OrTest>() {
+            @Override
+            public OrTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return OrTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(NotEmptyTest.TYPE, new JsonUtils.Factory<NotEmptyTest>() {
+            @Override
+            public NotEmptyTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return NotEmptyTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(ContainsTest.TYPE, new JsonUtils.Factory<ContainsTest>() {
+            @Override
+            public ContainsTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return ContainsTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(ContainsAnyTest.TYPE, new JsonUtils.Factory<ContainsAnyTest>() {
+            @Override
+            public ContainsAnyTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return ContainsAnyTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(StartsWithTest.TYPE, new JsonUtils.Factory<StartsWithTest>() {
+            @Override
+            public StartsWithTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return StartsWithTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(RegexTest.TYPE, new JsonUtils.Factory<RegexTest>() {
+            @Override
+            public RegexTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return RegexTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(HasNumberTest.TYPE, new JsonUtils.Factory<HasNumberTest>() {
+            @Override
+            public HasNumberTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return HasNumberTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(EqualTest.TYPE, new JsonUtils.Factory<EqualTest>() {
+            @Override
+            public EqualTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return EqualTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(LessThanTest.TYPE, new JsonUtils.Factory<LessThanTest>() {
+            @Override
+            public LessThanTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return LessThanTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(LessThanOrEqualTest.TYPE, new JsonUtils.Factory<LessThanOrEqualTest>() {
+            @Override
+            public LessThanOrEqualTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return LessThanOrEqualTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(GreaterThanTest.TYPE, new JsonUtils.Factory<GreaterThanTest>() {
+            @Override
+            public GreaterThanTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return GreaterThanTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(GreaterThanOrEqualTest.TYPE, new JsonUtils.Factory<GreaterThanOrEqualTest>() {
+            @Override
+            public GreaterThanOrEqualTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return GreaterThanOrEqualTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(BetweenTest.TYPE, new JsonUtils.Factory<BetweenTest>() {
+            @Override
+            public BetweenTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return BetweenTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(HasDateTest.TYPE, new JsonUtils.Factory<HasDateTest>() {
+            @Override
+            public HasDateTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return HasDateTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(DateEqualTest.TYPE, new JsonUtils.Factory<DateEqualTest>() {
+            @Override
+            public DateEqualTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return DateEqualTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(DateBeforeTest.TYPE, new JsonUtils.Factory<DateBeforeTest>() {
+            @Override
+            public DateBeforeTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return DateBeforeTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(DateAfterTest.TYPE, new JsonUtils.Factory<DateAfterTest>() {
+            @Override
+            public DateAfterTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return DateAfterTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(HasPhoneTest.TYPE, new JsonUtils.Factory<HasPhoneTest>() {
+            @Override
+            public HasPhoneTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return HasPhoneTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(HasStateTest.TYPE, new JsonUtils.Factory<HasStateTest>() {
+            @Override
+            public HasStateTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return HasStateTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(HasDistrictTest.TYPE, new JsonUtils.Factory<HasDistrictTest>() {
+            @Override
+            public HasDistrictTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return HasDistrictTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(HasWardTest.TYPE, new JsonUtils.Factory<HasWardTest>() {
+            @Override
+            public HasWardTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return HasWardTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(SubflowTest.TYPE, new JsonUtils.Factory<SubflowTest>() {
+            @Override
+            public SubflowTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return SubflowTest.fromJson(elm, context);
+            }
+        });
+        s_factoryByType.put(InGroupTest.TYPE, new JsonUtils.Factory<InGroupTest>() {
+            @Override
+            public InGroupTest fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return InGroupTest.fromJson(elm, context);
+            }
+        });
     }
 
     /**
@@ -73,12 +203,12 @@ public abstract class Test implements Jsonizable {
      */
     public static Test fromJson(JsonElement elm, Flow.DeserializationContext context) throws FlowParseException {
         String type = elm.getAsJsonObject().get("type").getAsString();
-        Class<? extends Test> clazz = s_classByType.get(type);
-        if (clazz == null) {
+        JsonUtils.Factory<? extends Test> factory = s_factoryByType.get(type);
+        if (factory == null) {
             throw new FlowParseException("Unknown test type: " + type);
         }
 
-        return JsonUtils.fromJson(elm, context, clazz);
+        return factory.fromJson(elm, context);
     }
 
     /**
@@ -115,11 +245,23 @@ public abstract class Test implements Jsonizable {
 
         protected Object m_value;
 
+        protected String m_error;
+
         public Result(boolean matched, Object value) {
             m_matched = matched;
             m_value = value;
         }
 
+        /**
+         * Creates a non-matching result for a test which couldn't be evaluated
+         * @param error the error message
+         */
+        public static Result error(String error) {
+            Result result = new Result(false, null);
+            result.m_error = error;
+            return result;
+        }
+
         public static Result match(String text) {
             return new Result(true, text);
         }
@@ -140,6 +282,14 @@ public abstract class Test implements Jsonizable {
             return m_value;
         }
 
+        public String getError() {
+            return m_error;
+        }
+
+        public boolean hasError() {
+            return m_error != null;
+        }
+
         @Override
         public String toString() {
             return "Test.Result{matched=" + m_matched + ", value=" + m_value + '}';
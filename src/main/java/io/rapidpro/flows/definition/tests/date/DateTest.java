@@ -1,9 +1,8 @@
 package io.rapidpro.flows.definition.tests.date;
 
 import io.rapidpro.expressions.EvaluationContext;
-import io.rapidpro.expressions.EvaluationError;
-import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.InputAnalysis;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import org.threeten.bp.LocalDate;
@@ -18,13 +17,12 @@ public abstract class DateTest extends Test {
      */
     @Override
     public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
-        try {
-            LocalDate date = Conversions.toDate(text, context);
-            if (evaluateForDate(runner, context, date)) {
-                return Result.match(date);
-            }
+        // the parsed date is shared with the other tests in the rule set
+        LocalDate date = InputAnalysis.of(context, text).getDate();
+
+        if (date != null && evaluateForDate(runner, context, date)) {
+            return Result.match(date);
         }
-        catch (EvaluationError ignored) {}
 
         return Result.NO_MATCH;
     }
@@ -52,7 +52,7 @@ public class AndTest extends Test {
             if (result.isMatched()) {
                 matches.add(Conversions.toString(result.getValue(), context));
             } else {
-                return Result.NO_MATCH;
+                return result.hasError() ? result : Result.NO_MATCH;
             }
         }
         return Test.Result.match(StringUtils.join(matches, " "));
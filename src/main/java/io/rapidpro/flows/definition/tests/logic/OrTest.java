@@ -43,13 +43,16 @@ public class OrTest extends Test {
      */
     @Override
     public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
+        Result error = null;
         for (Test test : m_tests) {
             Result result = test.evaluate(runner, run, context, text);
             if (result.isMatched()) {
                 return result;
+            } else if (result.hasError() && error == null) {
+                error = result;
             }
         }
-        return Result.NO_MATCH;
+        return error != null ? error : Result.NO_MATCH;
     }
 
     public List<Test> getTests() {
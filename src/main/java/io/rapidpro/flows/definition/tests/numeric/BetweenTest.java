@@ -2,15 +2,17 @@ package io.rapidpro.flows.definition.tests.numeric;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Test which returns whether input is a number between two numbers (inclusive)
@@ -42,23 +44,22 @@ public class BetweenTest extends NumericTest {
     }
 
     /**
-     * @see NumericTest#evaluateForDecimal(Runner, EvaluationContext, BigDecimal)
+     * @see NumericTest#evaluateArguments(Runner, RunState, EvaluationContext)
      */
     @Override
-    protected boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal decimal) {
-        EvaluatedTemplate min = runner.substituteVariables(m_min, context);
-        EvaluatedTemplate max = runner.substituteVariables(m_max, context);
+    protected List<BigDecimal> evaluateArguments(Runner runner, RunState run, EvaluationContext context) {
+        BigDecimal min = evaluateDecimal(runner, run, context, m_min);
+        BigDecimal max = evaluateDecimal(runner, run, context, m_max);
 
-        if (!min.hasErrors() && !max.hasErrors()) {
-            try {
-                BigDecimal minVal = new BigDecimal(min.getOutput().trim());
-                BigDecimal maxVal = new BigDecimal(max.getOutput().trim());
+        return min != null && max != null ? Arrays.asList(min, max) : null;
+    }
 
-                return decimal.compareTo(minVal) >= 0 && decimal.compareTo(maxVal) <= 0;
-            }
-            catch (NumberFormatException ignored) {}
-        }
-        return false;
+    /**
+     * @see NumericTest#evaluateForDecimal(BigDecimal, List)
+     */
+    @Override
+    protected boolean evaluateForDecimal(BigDecimal decimal, List<BigDecimal> args) {
+        return decimal.compareTo(args.get(0)) >= 0 && decimal.compareTo(args.get(1)) <= 0;
     }
 
     public String getMin() {
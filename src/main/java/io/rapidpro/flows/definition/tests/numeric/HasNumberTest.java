@@ -1,14 +1,13 @@
 package io.rapidpro.flows.definition.tests.numeric;
 
 import com.google.gson.JsonElement;
-import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
 import io.rapidpro.flows.definition.tests.Test;
-import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
 
 import java.math.BigDecimal;
+import java.util.List;
 
 /**
  * Test which returns whether input has a number
@@ -30,10 +29,10 @@ public class HasNumberTest extends NumericTest {
     }
 
     /**
-     * @see NumericTest#evaluateForDecimal(Runner, EvaluationContext, BigDecimal)
+     * @see NumericTest#evaluateForDecimal(BigDecimal, List)
      */
     @Override
-    protected boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal decimal) {
+    protected boolean evaluateForDecimal(BigDecimal decimal, List<BigDecimal> args) {
         return true; // this method is only called on decimals parsed from the input
     }
 }
@@ -1,10 +1,12 @@
 package io.rapidpro.flows.definition.tests.numeric;
 
-import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 
 import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Base class for numeric tests which compare the input against a value
@@ -18,20 +20,20 @@ public abstract class NumericComparisonTest extends NumericTest {
     }
 
     /**
-     * @see NumericTest#evaluateForDecimal(Runner, EvaluationContext, BigDecimal)
+     * @see NumericTest#evaluateArguments(Runner, RunState, EvaluationContext)
      */
     @Override
-    protected boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal input) {
-        EvaluatedTemplate test = runner.substituteVariables(m_test, context);
-
-        if (!test.hasErrors()) {
-            try {
-                BigDecimal testVal = new BigDecimal(test.getOutput().trim());
-                return doComparison(input, testVal);
-            }
-            catch (NumberFormatException ignored) {}
-        }
-        return false;
+    protected List<BigDecimal> evaluateArguments(Runner runner, RunState run, EvaluationContext context) {
+        BigDecimal test = evaluateDecimal(runner, run, context, m_test);
+        return test != null ? Collections.singletonList(test) : null;
+    }
+
+    /**
+     * @see NumericTest#evaluateForDecimal(BigDecimal, List)
+     */
+    @Override
+    protected boolean evaluateForDecimal(BigDecimal input, List<BigDecimal> args) {
+        return doComparison(input, args.get(0));
     }
 
     protected abstract boolean doComparison(BigDecimal input, BigDecimal test);
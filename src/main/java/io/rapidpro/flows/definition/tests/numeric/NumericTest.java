@@ -1,11 +1,17 @@
 package io.rapidpro.flows.definition.tests.numeric;
 
+import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.EvaluationError;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.Field;
+import io.rapidpro.flows.runner.InputAnalysis;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 
 import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,59 +20,94 @@ import java.util.regex.Pattern;
  */
 public abstract class NumericTest extends Test {
 
+    // an argument which is just a contact field, e.g. @contact.age
+    protected static final Pattern CONTACT_FIELD_ARGUMENT = Pattern.compile("@contact\\.([a-z0-9_]+)");
+
     /**
      * A very flexible decimal parser
      * @param text the text to be parsed
      * @return the decimal value
      */
     protected static BigDecimal extractDecimal(String text) {
-        // common substitutions
-        String originalText = text;
-        text = text.replace('l', '1').replace('o', '0').replace('O', '0');
+        return InputAnalysis.extractDecimal(text);
+    }
 
-        try {
-            return new BigDecimal(text);
+    /**
+     * @see Test#evaluate(Runner, RunState, EvaluationContext, String)
+     */
+    @Override
+    public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
+        // the decimals in the input are shared with the other tests in the rule set
+        List<BigDecimal> decimals = InputAnalysis.of(context, text).getDecimals();
+        if (decimals.isEmpty()) {
+            return Result.NO_MATCH;
         }
-        catch (NumberFormatException ex) {
-            // we only try this hard if we haven 't already substituted characters
-            if (originalText.equals(text)) {
-                // does this start with a number? just use that part if so
-                Matcher matcher = Pattern.compile("^(\\d+).*$").matcher(text);
-                if (matcher.matches()) {
-                    return new BigDecimal(matcher.group(1));
-                }
+
+        // evaluate our arguments once rather than for every word
+        List<BigDecimal> args = evaluateArguments(runner, run, context);
+        if (args == null) {
+            return Result.NO_MATCH;
+        }
+
+        // test every number in the message against our test
+        for (BigDecimal decimal : decimals) {
+            if (evaluateForDecimal(decimal, args)) {
+                return Test.Result.match(decimal);
             }
-            throw ex;
         }
+
+        return Result.NO_MATCH;
     }
 
     /**
-     * @see Test#evaluate(Runner, RunState, EvaluationContext, String)
+     * Evaluates the arguments of this test, e.g. the value to compare against. Subclasses with arguments should
+     * override this.
+     * @param runner the flow runner
+     * @param run the run state
+     * @param context the evaluation context
+     * @return the argument values or null if they couldn't be evaluated
      */
-    @Override
-    public Result evaluate(Runner runner, RunState run, EvaluationContext context, String text) {
-        text = text.replace(",", ""); // so that 1,234 is parsed as 1234
+    protected List<BigDecimal> evaluateArguments(Runner runner, RunState run, EvaluationContext context) {
+        return Collections.emptyList();
+    }
 
-        // test every word in the message against our test
-        for (String word : Pattern.compile("\\s+").split(text)) {
+    /**
+     * Evaluates an argument as a decimal. Arguments which are just a contact field use the contact's cached decimal
+     * value of that field rather than evaluating and parsing the field again.
+     * @param runner the flow runner
+     * @param run the run state
+     * @param context the evaluation context
+     * @param argument the argument template
+     * @return the decimal value or null if it couldn't be evaluated
+     */
+    protected static BigDecimal evaluateDecimal(Runner runner, RunState run, EvaluationContext context, String argument) {
+        Matcher matcher = CONTACT_FIELD_ARGUMENT.matcher(argument);
+        if (run != null && run.getContact() != null && matcher.matches()) {
             try {
-                BigDecimal decimal = extractDecimal(word);
-                if (evaluateForDecimal(runner, context, decimal)) {
-                    return Test.Result.match(decimal);
+                BigDecimal value = (BigDecimal) run.getContact().getTypedField(matcher.group(1), Field.ValueType.DECIMAL, context);
+                if (value != null) {
+                    return value;
                 }
+            } catch (EvaluationError ignored) {
+                // e.g. padded with whitespace, so parse it below as usual
             }
-            catch (NumberFormatException ignored) {}
         }
 
-        return Result.NO_MATCH;
+        EvaluatedTemplate evaluated = runner.substituteVariables(argument, context);
+        if (!evaluated.hasErrors()) {
+            try {
+                return new BigDecimal(evaluated.getOutput().trim());
+            }
+            catch (NumberFormatException ignored) {}
+        }
+        return null;
     }
 
     /**
      * Evaluates the test against the given decimal value. Subclasses must implement this.
-     * @param runner the flow runner
-     * @param context the evaluation context
      * @param decimal the decimal value
+     * @param args the evaluated arguments
      * @return the test result
      */
-    protected abstract boolean evaluateForDecimal(Runner runner, EvaluationContext context, BigDecimal decimal);
+    protected abstract boolean evaluateForDecimal(BigDecimal decimal, List<BigDecimal> args);
 }
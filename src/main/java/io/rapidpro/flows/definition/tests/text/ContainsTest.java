@@ -8,6 +8,7 @@ import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
 import io.rapidpro.flows.definition.TranslatableText;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.InputAnalysis;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
@@ -64,9 +65,10 @@ public class ContainsTest extends TranslatableTest {
         // tokenize our test
         String[] tests = ExpressionUtils.tokenize(localizedTest.toLowerCase());
 
-        // tokenize our input
-        String[] words = ExpressionUtils.tokenize(text.toLowerCase());
-        String[] rawWords = ExpressionUtils.tokenize(text);
+        // tokenize our input, which is shared with the other tests in the rule set
+        InputAnalysis analysis = InputAnalysis.of(context, text);
+        String[] words = analysis.getLowerTokens();
+        String[] rawWords = analysis.getTokens();
 
         // run through each of our tests
         SortedSet<Integer> matches = new TreeSet<>();
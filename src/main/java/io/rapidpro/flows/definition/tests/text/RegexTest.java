@@ -3,17 +3,16 @@ package io.rapidpro.flows.definition.tests.text;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import io.rapidpro.expressions.EvaluationContext;
-import io.rapidpro.expressions.utils.ExpressionUtils;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
 import io.rapidpro.flows.definition.TranslatableText;
 import io.rapidpro.flows.definition.tests.Test;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
+import io.rapidpro.flows.utils.BoundedCharSequence;
+import io.rapidpro.flows.utils.ConcurrentCache;
 import io.rapidpro.flows.utils.JsonUtils;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -25,8 +24,30 @@ public class RegexTest extends TranslatableTest {
 
     public static final String TYPE = "regex";
 
+    public static final int PATTERN_CACHE_SIZE = 1000;
+
+    protected static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE;
+
+    // placeholder for patterns which don't compile
+    protected static final Object INVALID = new Object();
+
+    // patterns for translated tests, shared by all regex tests
+    protected static final ConcurrentCache<String, Object> s_patterns = new ConcurrentCache<>(PATTERN_CACHE_SIZE);
+
+    protected static final String[] s_groupKeys = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"};
+
+    // the untranslated pattern compiled at parse time, or null if the test is translated or invalid
+    protected Pattern m_pattern;
+
     protected RegexTest(TranslatableText test) {
         super(test);
+
+        if (test.getLanguages().isEmpty() && test.getTexts().size() == 1) {
+            Object compiled = compile(test.getTexts().iterator().next());
+            if (compiled != INVALID) {
+                m_pattern = (Pattern) compiled;
+            }
+        }
     }
 
     /**
@@ -47,29 +68,71 @@ public class RegexTest extends TranslatableTest {
      */
     @Override
     protected Result evaluateForLocalized(Runner runner, RunState run, EvaluationContext context, String text, String localizedTest) {
-        try {
-            // check whether we match
-            int flags = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE;
-            Pattern regex = Pattern.compile(localizedTest, flags);
-            Matcher matcher = regex.matcher(text);
-
-            if (matcher.find()) {
-                String returnMatch = matcher.group(0);
+        Pattern regex = getPattern(localizedTest);
+        if (regex == null) {
+            return Result.NO_MATCH;
+        }
 
-                // add group values by index
-                Map<String, String> groupValues = new HashMap<>();
-                for (int g = 0; g <= matcher.groupCount(); g++) {
-                    String value = matcher.group(g);
-                    groupValues.put(String.valueOf(g), value);
-                }
+        // check whether we match, giving up if that takes too long
+        long timeout = runner.getRegexTimeout();
+        Matcher matcher = regex.matcher(timeout > 0 ? BoundedCharSequence.withTimeout(text, timeout) : text);
+        boolean found;
+        try {
+            found = matcher.find();
+        } catch (BoundedCharSequence.TimeoutException ex) {
+            runner.onRegexTimeout();
+            return Result.error("Regex \"" + localizedTest + "\" timed out after " + timeout + "ms");
+        }
 
-                // update @extra
-                runner.updateExtra(run, groupValues);
+        if (found) {
+            String returnMatch = matcher.group(0);
 
-                return Result.match(returnMatch);
+            // update @extra with group values by index
+            for (int g = 0; g <= matcher.groupCount(); g++) {
+                String key = g < s_groupKeys.length ? s_groupKeys[g] : String.valueOf(g);
+                runner.updateExtra(run, key, matcher.group(g));
             }
-        } catch (PatternSyntaxException ignored) {}
+
+            return Result.match(returnMatch);
+        }
 
         return Result.NO_MATCH;
     }
+
+    /**
+     * Gets the compiled pattern for the given localized test
+     * @param localizedTest the localized test
+     * @return the pattern or null if it's not a valid regular expression
+     */
+    protected Pattern getPattern(String localizedTest) {
+        if (m_pattern != null && m_pattern.pattern().equals(localizedTest)) {
+            return m_pattern;
+        }
+
+        Object compiled = s_patterns.get(localizedTest);
+        if (compiled == null) {
+            compiled = compile(localizedTest);
+            s_patterns.put(localizedTest, compiled);
+        }
+        return compiled != INVALID ? (Pattern) compiled : null;
+    }
+
+    /**
+     * Compiles the given regular expression
+     * @return the pattern or INVALID
+     */
+    protected static Object compile(String regex) {
+        try {
+            return Pattern.compile(regex, FLAGS);
+        } catch (PatternSyntaxException ex) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Gets the cache of patterns for translated tests
+     */
+    public static ConcurrentCache<String, Object> getPatternCache() {
+        return s_patterns;
+    }
 }
@@ -7,6 +7,7 @@ import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.FlowParseException;
 import io.rapidpro.flows.definition.TranslatableText;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.InputAnalysis;
 import io.rapidpro.flows.runner.RunState;
 import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
@@ -43,10 +44,11 @@ public class StartsWithTest extends TranslatableTest {
         localizedTest = runner.substituteVariables(localizedTest, context).getOutput();
 
         // strip leading and trailing whitespace
-        text = text.trim();
+        InputAnalysis analysis = InputAnalysis.of(context, text);
+        text = analysis.getTrimmedText();
 
         // see whether we start with our test
-        if (text.toLowerCase().startsWith(localizedTest.toLowerCase())) {
+        if (analysis.getTrimmedLowerText().startsWith(localizedTest.toLowerCase())) {
             return Result.match(text.substring(0, localizedTest.length()));
         } else {
             return Result.NO_MATCH;
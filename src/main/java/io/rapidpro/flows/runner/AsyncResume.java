@@ -0,0 +1,182 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resumes a run without blocking on location lookups. Each attempt runs against a copy of the original run state,
+ * answering location lookups from those already resolved. If an attempt needed any lookups which haven't been
+ * resolved, it's discarded, the missing lookups are issued to the asynchronous resolver, and another attempt is made
+ * once they've all completed. Every attempt resolves at least one new lookup so this always terminates.
+ */
+class AsyncResume implements Location.Resolver {
+
+    protected final Runner m_runner;
+
+    protected final Location.AsyncResolver m_asyncResolver;
+
+    protected final Map<String, Flow> m_flows;
+
+    protected final String m_snapshot;
+
+    // resolves the org of a run started from a registered org, as the snapshot then only has its id
+    protected final OrgRegistry m_orgs;
+
+    protected final Input m_input;
+
+    protected final Runner.ResumeCallback m_callback;
+
+    protected final Map<Lookup, Location> m_resolved = new ConcurrentHashMap<>();
+
+    protected final Set<Lookup> m_missing = new LinkedHashSet<>();
+
+    AsyncResume(Runner runner, Location.AsyncResolver asyncResolver, RunState run, Input input, Runner.ResumeCallback callback) {
+        m_runner = runner;
+        m_asyncResolver = asyncResolver;
+        m_flows = run.m_flows;
+        m_snapshot = run.toJsonString();
+        m_orgs = new OrgRegistry();
+        if (run.m_orgEntry != null) {
+            m_orgs.m_entries.put(run.m_orgEntry.getId(), run.m_orgEntry);
+        }
+        m_input = input;
+        m_callback = callback;
+    }
+
+    /**
+     * Makes an attempt at resuming the run
+     */
+    void attempt() {
+        Input input = m_input != null ? m_input.copy() : null;
+        Runner runner = new Runner(m_runner, this);
+
+        m_missing.clear();
+
+        RunState run = null;
+        FlowRunException error = null;
+        try {
+            run = RunState.fromJson(m_snapshot, m_flows, m_orgs);
+            runner.resume(run, input);
+        } catch (FlowRunException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            m_callback.onFailed(e);
+            return;
+        }
+
+        // if nothing was missing then this attempt is the real thing
+        if (m_missing.isEmpty()) {
+            if (error != null) {
+                m_callback.onFailed(error);
+            } else {
+                if (input != null && input.isConsumed()) {
+                    m_input.consume();
+                }
+                m_callback.onResumed(run);
+            }
+            return;
+        }
+
+        resolveMissing(new ArrayList<>(m_missing));
+    }
+
+    /**
+     * Issues the given lookups to the asynchronous resolver, and makes another attempt once they've all completed
+     */
+    protected void resolveMissing(List<Lookup> lookups) {
+        final AtomicInteger remaining = new AtomicInteger(lookups.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        for (final Lookup lookup : lookups) {
+            m_asyncResolver.resolveAsync(lookup.m_text, lookup.m_country, lookup.m_level, lookup.m_parent, new Location.Callback() {
+                @Override
+                public void onResolved(Location location) {
+                    m_resolved.put(lookup, location != null ? location : NOT_FOUND);
+
+                    if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                        attempt();
+                    }
+                }
+
+                @Override
+                public void onFailed(Exception error) {
+                    if (failed.compareAndSet(false, true)) {
+                        m_callback.onFailed(error);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @see Location.Resolver#resolve(String, String, Location.Level, Location)
+     */
+    @Override
+    public Location resolve(String text, String country, Location.Level level, Location parent) {
+        Lookup lookup = new Lookup(text, country, level, parent);
+        Location location = m_resolved.get(lookup);
+        if (location == null) {
+            m_missing.add(lookup);
+            return null;
+        }
+        return location != NOT_FOUND ? location : null;
+    }
+
+    /**
+     * Placeholder for lookups which resolved to nothing, as concurrent maps can't hold nulls
+     */
+    protected static final Location NOT_FOUND = new Location(null, null, null);
+
+    /**
+     * A single location lookup
+     */
+    protected static class Lookup {
+
+        protected final String m_text;
+
+        protected final String m_country;
+
+        protected final Location.Level m_level;
+
+        protected final Location m_parent;
+
+        public Lookup(String text, String country, Location.Level level, Location parent) {
+            m_text = text;
+            m_country = country;
+            m_level = level;
+            m_parent = parent;
+        }
+
+        protected String getParentId() {
+            return m_parent != null ? m_parent.getOsmId() : null;
+        }
+
+        /**
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Lookup lookup = (Lookup) o;
+
+            return Objects.equals(m_text, lookup.m_text)
+                    && Objects.equals(m_country, lookup.m_country)
+                    && m_level == lookup.m_level
+                    && Objects.equals(getParentId(), lookup.getParentId());
+        }
+
+        /**
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_text, m_country, m_level, getParentId());
+        }
+    }
+}
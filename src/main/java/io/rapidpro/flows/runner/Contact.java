@@ -2,19 +2,25 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
+import io.rapidpro.flows.utils.LazyMap;
 import org.apache.commons.lang3.StringUtils;
-import org.threeten.bp.ZonedDateTime;
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZoneId;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * A contact that can participate in a flow
  */
-public class Contact implements Jsonizable {
+public class Contact implements JsonStreamable {
 
     protected String m_uuid;
 
@@ -28,6 +34,9 @@ public class Contact implements Jsonizable {
 
     protected String m_language;
 
+    // typed values of fields, parsed on first use
+    protected Map<String, TypedValue> m_typedFields = new HashMap<>();
+
     public Contact() {
         m_urns = new ArrayList<>();
         m_groups = new HashSet<>();
@@ -60,6 +69,38 @@ public class Contact implements Jsonizable {
         );
     }
 
+    /**
+     * Reads a contact from a stream of JSON
+     * @param in the JSON reader
+     * @return the contact
+     */
+    public static Contact readJson(JsonReader in) throws IOException {
+        Contact contact = new Contact();
+        contact.m_groups = new LinkedHashSet<>();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "uuid": contact.m_uuid = JsonUtils.nextString(in); break;
+                case "name": contact.m_name = JsonUtils.nextString(in); break;
+                case "urns":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        contact.m_urns.add(ContactUrn.fromString(in.nextString()));
+                    }
+                    in.endArray();
+                    break;
+                case "groups": JsonUtils.readStrings(in, contact.m_groups); break;
+                case "fields": contact.m_fields = JsonUtils.readStringMap(in); break;
+                case "language": contact.m_language = JsonUtils.nextString(in); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return contact;
+    }
+
     @Override
     public JsonElement toJson() {
         return JsonUtils.object(
@@ -72,6 +113,24 @@ public class Contact implements Jsonizable {
         );
     }
 
+    /**
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("uuid").value(m_uuid);
+        out.name("name").value(m_name);
+        out.name("urns");
+        JsonUtils.writeArray(out, m_urns);
+        out.name("groups");
+        JsonUtils.writeArray(out, m_groups);
+        out.name("fields");
+        JsonUtils.writeObject(out, m_fields);
+        out.name("language").value(m_language);
+        out.endObject();
+    }
+
     public String getUuid() {
         return m_uuid;
     }
@@ -100,6 +159,48 @@ public class Contact implements Jsonizable {
         return m_fields;
     }
 
+    /**
+     * Sets the value of a field, discarding its typed value
+     * @param key the field key
+     * @param value the new raw value
+     */
+    public void setField(String key, String value) {
+        m_fields.put(key, value);
+        m_typedFields.remove(key);
+    }
+
+    /**
+     * Gets the value of a field as the given type, i.e. a ZonedDateTime for datetime fields, a BigDecimal for decimal
+     * fields and the raw string otherwise. The typed value is parsed once and reused until the raw value, the type or
+     * the timezone or date style of the context change.
+     * @param key the field key
+     * @param type the value type of the field
+     * @param context the evaluation context
+     * @return the typed value or null if the contact doesn't have a value for the field
+     * @throws io.rapidpro.expressions.EvaluationError if the raw value can't be converted to the type
+     */
+    public Object getTypedField(String key, Field.ValueType type, EvaluationContext context) {
+        TypedValue typed = getTypedValue(key, type, context);
+        return typed != null ? typed.m_value : null;
+    }
+
+    /**
+     * Gets the cached typed value of a field, parsing the raw value if there isn't one or it is stale
+     */
+    protected TypedValue getTypedValue(String key, Field.ValueType type, EvaluationContext context) {
+        String rawValue = m_fields.get(key);
+        if (rawValue == null) {
+            return null;
+        }
+
+        TypedValue typed = m_typedFields.get(key);
+        if (typed == null || !typed.isValid(rawValue, type, context)) {
+            typed = new TypedValue(rawValue, type, context);
+            m_typedFields.put(key, typed);
+        }
+        return typed;
+    }
+
     public String getLanguage() {
         return m_language;
     }
@@ -178,37 +279,129 @@ public class Contact implements Jsonizable {
      * @param container the containing evaluation context
      * @return the context
      */
-    public Map<String, String> buildContext(RunState run, EvaluationContext container) {
-        Map<String, String> context = new HashMap<>();
-        context.put("*", getDisplay(run.getOrg(), false));
+    public Map<String, String> buildContext(RunState run, final EvaluationContext container) {
+        final Org org = run.getOrg();
+        LazyMap<String> context = new LazyMap<>();
+
+        context.putDeferred("*", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return getDisplay(org, false);
+            }
+        });
         context.put("name", m_name);
-        context.put("first_name", getFirstName(run.getOrg()));
-        context.put("tel_e164", getUrnDisplay(run.getOrg(), ContactUrn.Scheme.TEL, true));
-        context.put("groups", StringUtils.join(m_groups, ","));
+        context.putDeferred("first_name", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return getFirstName(org);
+            }
+        });
+        context.putDeferred("tel_e164", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return getUrnDisplay(org, ContactUrn.Scheme.TEL, true);
+            }
+        });
+        context.putDeferred("groups", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return StringUtils.join(m_groups, ",");
+            }
+        });
         context.put("uuid", m_uuid);
         context.put("language", m_language);
 
         // add all URNs
-        for (ContactUrn.Scheme scheme : ContactUrn.Scheme.values()) {
-            context.put(scheme.name().toLowerCase(), getUrnDisplay(run.getOrg(), scheme, false));
+        for (final ContactUrn.Scheme scheme : ContactUrn.Scheme.values()) {
+            context.putDeferred(scheme.name().toLowerCase(), new LazyMap.Deferred<String>() {
+                @Override
+                public String compute() {
+                    return getUrnDisplay(org, scheme, false);
+                }
+            });
         }
 
         // add all fields
         for (Map.Entry<String, String> entry : m_fields.entrySet()) {
-            String rawValue = entry.getValue();
-            Field field = run.getOrCreateField(entry.getKey());
-            String value;
+            final String fieldKey = entry.getKey();
+            final String rawValue = entry.getValue();
+            Field field = run.getOrCreateField(fieldKey);
+            String key = fieldKey.toLowerCase();
 
             if (field != null && field.getValueType().equals(Field.ValueType.DATETIME)) {
-                ZonedDateTime asDatetime = Conversions.toDateTime(rawValue, container);
-                value = Conversions.toString(asDatetime, container);
+                context.putDeferred(key, new LazyMap.Deferred<String>() {
+                    @Override
+                    public String compute() {
+                        return getTypedValue(fieldKey, Field.ValueType.DATETIME, container).getDisplay(container);
+                    }
+                });
             } else {
-                value = entry.getValue();
+                context.put(key, rawValue);
             }
-
-            context.put(entry.getKey(), value);
         }
 
         return context;
     }
+
+    /**
+     * The typed value of a field, along with what it was parsed from
+     */
+    protected static class TypedValue {
+
+        protected final String m_rawValue;
+
+        protected final Field.ValueType m_type;
+
+        protected final ZoneId m_timezone;
+
+        protected final DateStyle m_dateStyle;
+
+        // partial dates are completed using the context's current date
+        protected final LocalDate m_parsedOn;
+
+        protected final Object m_value;
+
+        protected String m_display;
+
+        public TypedValue(String rawValue, Field.ValueType type, EvaluationContext context) {
+            m_rawValue = rawValue;
+            m_type = type;
+            m_timezone = context.getTimezone();
+            m_dateStyle = context.getDateStyle();
+            m_parsedOn = type == Field.ValueType.DATETIME ? today(context) : null;
+
+            switch (type) {
+                case DATETIME:
+                    m_value = Conversions.toDateTime(rawValue, context);
+                    break;
+                case DECIMAL:
+                    m_value = Conversions.toDecimal(rawValue, context);
+                    break;
+                default:
+                    m_value = rawValue;
+            }
+        }
+
+        public boolean isValid(String rawValue, Field.ValueType type, EvaluationContext context) {
+            return m_rawValue.equals(rawValue)
+                    && m_type == type
+                    && m_timezone.equals(context.getTimezone())
+                    && m_dateStyle == context.getDateStyle()
+                    && (m_parsedOn == null || m_parsedOn.equals(today(context)));
+        }
+
+        protected static LocalDate today(EvaluationContext context) {
+            return context.getNow().atZone(context.getTimezone()).toLocalDate();
+        }
+
+        /**
+         * Gets the value formatted as it appears in expressions
+         */
+        public String getDisplay(EvaluationContext context) {
+            if (m_display == null) {
+                m_display = Conversions.toString(m_value, context);
+            }
+            return m_display;
+        }
+    }
 }
@@ -2,15 +2,17 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonPrimitive;
-import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.flows.utils.FlowUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
+
 /**
  * A URN for a contact (e.g. a telephone number, twitter handle, or telegram chat id)
  */
-public class ContactUrn implements Jsonizable {
+public class ContactUrn implements JsonStreamable {
 
     public enum Scheme {
         TEL,
@@ -79,13 +81,12 @@ public class ContactUrn implements Jsonizable {
 
         if (m_scheme == Scheme.TEL && !full) {
             // if we don't want a full tell, see if we can show the national format instead
-            try {
-                if (StringUtils.isNotEmpty(m_path) && m_path.charAt(0) == '+') {
-                    PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
-                    return phoneUtil.format(phoneUtil.parse(m_path, null), PhoneNumberUtil.PhoneNumberFormat.NATIONAL);
+            if (StringUtils.isNotEmpty(m_path)) {
+                String national = FlowUtils.formatNationalNumber(m_path);
+                if (national != null) {
+                    return national;
                 }
             }
-            catch (Exception ignored) {}
         }
 
         return m_path;
@@ -104,6 +105,14 @@ public class ContactUrn implements Jsonizable {
         return new JsonPrimitive(toString());
     }
 
+    /**
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.value(toString());
+    }
+
     /**
      * @see Object#toString()
      */
@@ -2,9 +2,12 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -13,7 +16,7 @@ import java.util.regex.Pattern;
 /**
  * A contact field
  */
-public class Field implements Jsonizable {
+public class Field implements JsonStreamable {
 
     // can't create contact fields with these keys
     protected static Set<String> RESERVED_KEYS = new HashSet<>(Arrays.asList(
@@ -78,6 +81,28 @@ public class Field implements Jsonizable {
         );
     }
 
+    /**
+     * Reads a field from a stream of JSON
+     * @param in the JSON reader
+     * @return the field
+     */
+    public static Field readJson(JsonReader in) throws IOException {
+        String key = null, label = null, valueType = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "key": key = JsonUtils.nextString(in); break;
+                case "label": label = JsonUtils.nextString(in); break;
+                case "value_type": valueType = JsonUtils.nextString(in); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return new Field(key, label, ValueType.fromCode(valueType));
+    }
+
     @Override
     public JsonElement toJson() {
         return JsonUtils.object(
@@ -86,6 +111,18 @@ public class Field implements Jsonizable {
                 "value_type", m_valueType.m_code);
     }
 
+    /**
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("key").value(m_key);
+        out.name("label").value(m_label);
+        out.name("value_type").value(m_valueType.m_code);
+        out.endObject();
+    }
+
     public static String makeKey(String label) {
         String key = label.toLowerCase().replaceAll("([^a-z0-9]+)", " ").trim();
         return key.replaceAll("([^a-z0-9]+)", "_");
@@ -0,0 +1,163 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.TemplateFolding;
+
+import java.util.*;
+
+/**
+ * A thread-safe map of flow UUIDs to flows. Reads are lock free and see an immutable snapshot of the registry, whilst
+ * writes replace that snapshot with an updated copy. Flows are registered rarely and looked up on every run, so this
+ * favours readers. The registry also merges the foldable templates of all its flows so the runner can look them up
+ * without knowing which flow a template came from.
+ */
+public class FlowRegistry extends AbstractMap<String, Flow> {
+
+    protected volatile Map<String, Flow> m_snapshot = Collections.emptyMap();
+
+    protected volatile Map<String, TemplateFolding.Kind> m_foldedTemplates = Collections.emptyMap();
+
+    public FlowRegistry() {
+    }
+
+    public FlowRegistry(Collection<Flow> flows) {
+        register(flows);
+    }
+
+    /**
+     * Registers the given flow, replacing any existing flow with the same UUID
+     * @param flow the flow
+     */
+    public void register(Flow flow) {
+        // runs started with a flow register it every time, so don't take the lock if it's already registered
+        if (m_snapshot.get(flow.getUuid()) != flow) {
+            put(flow.getUuid(), flow);
+        }
+    }
+
+    /**
+     * Registers the given flows, replacing any existing flows with the same UUIDs
+     * @param flows the flows
+     */
+    public synchronized void register(Collection<Flow> flows) {
+        Map<String, Flow> updated = new HashMap<>(m_snapshot);
+        for (Flow flow : flows) {
+            updated.put(flow.getUuid(), flow);
+        }
+        update(updated, flows);
+    }
+
+    /**
+     * @see Map#get(Object)
+     */
+    @Override
+    public Flow get(Object key) {
+        return m_snapshot.get(key);
+    }
+
+    /**
+     * @see Map#containsKey(Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return m_snapshot.containsKey(key);
+    }
+
+    /**
+     * @see Map#size()
+     */
+    @Override
+    public int size() {
+        return m_snapshot.size();
+    }
+
+    /**
+     * @see Map#put(Object, Object)
+     */
+    @Override
+    public synchronized Flow put(String key, Flow value) {
+        if (m_snapshot.get(key) == value) {
+            return value;
+        }
+        Map<String, Flow> updated = new HashMap<>(m_snapshot);
+        Flow previous = updated.put(key, value);
+        update(updated, Collections.singletonList(value));
+        return previous;
+    }
+
+    /**
+     * @see Map#remove(Object)
+     */
+    @Override
+    public synchronized Flow remove(Object key) {
+        if (!m_snapshot.containsKey(key)) {
+            return null;
+        }
+        Map<String, Flow> updated = new HashMap<>(m_snapshot);
+        Flow previous = updated.remove(key);
+        update(updated);
+        return previous;
+    }
+
+    /**
+     * @see Map#clear()
+     */
+    @Override
+    public synchronized void clear() {
+        update(new HashMap<String, Flow>());
+    }
+
+    /**
+     * Gets the kind of the given template if it's a foldable template in one of the registered flows
+     * @param template the template text
+     * @return the kind or null
+     */
+    public TemplateFolding.Kind getTemplateKind(String template) {
+        return m_foldedTemplates.get(template);
+    }
+
+    /**
+     * Replaces the current snapshot with one which only adds or replaces the given flows, merging just their templates
+     * into the current ones. A template's kind only depends on its text, so templates of replaced flows can be left.
+     * Must be called whilst holding the lock.
+     */
+    protected void update(Map<String, Flow> flows, Collection<Flow> added) {
+        Map<String, TemplateFolding.Kind> folded = null;
+        for (Flow flow : added) {
+            if (flow.getFoldedTemplates() != null && !flow.getFoldedTemplates().isEmpty()) {
+                if (folded == null) {
+                    folded = new HashMap<>(m_foldedTemplates);
+                }
+                folded.putAll(flow.getFoldedTemplates());
+            }
+        }
+        if (folded != null) {
+            m_foldedTemplates = Collections.unmodifiableMap(folded);
+        }
+        m_snapshot = Collections.unmodifiableMap(flows);
+    }
+
+    /**
+     * Replaces the current snapshot, rebuilding the merged templates from all flows. Must be called whilst holding
+     * the lock.
+     */
+    protected void update(Map<String, Flow> flows) {
+        Map<String, TemplateFolding.Kind> folded = new HashMap<>();
+        for (Flow flow : flows.values()) {
+            if (flow.getFoldedTemplates() != null) {
+                folded.putAll(flow.getFoldedTemplates());
+            }
+        }
+        m_foldedTemplates = Collections.unmodifiableMap(folded);
+        m_snapshot = Collections.unmodifiableMap(flows);
+    }
+
+    /**
+     * Gets the entries of the current snapshot. This view is read-only and won't reflect later changes.
+     * @see Map#entrySet()
+     */
+    @Override
+    public Set<Entry<String, Flow>> entrySet() {
+        return m_snapshot.entrySet();
+    }
+}
@@ -2,12 +2,12 @@ package io.rapidpro.flows.runner;
 
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Conversions;
+import io.rapidpro.flows.utils.LazyMap;
 import org.threeten.bp.Instant;
 import org.threeten.bp.LocalDate;
 import org.threeten.bp.ZonedDateTime;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -27,6 +27,15 @@ public class Input {
         m_consumed = false;
     }
 
+    /**
+     * Creates an unconsumed copy of this input
+     */
+    Input copy() {
+        Input copy = new Input(m_value);
+        copy.m_time = m_time;
+        return copy;
+    }
+
     public static final class MediaResource {
         private String m_type;
         private String m_url;
@@ -73,13 +82,18 @@ public class Input {
      * @param contactContext the contact context
      * @return the context
      */
-    public Map<String, Object> buildContext(EvaluationContext container, Map<String, String> contactContext) {
-        Map<String, Object> context = new HashMap<>();
+    public Map<String, Object> buildContext(final EvaluationContext container, Map<String, String> contactContext) {
+        LazyMap<Object> context = new LazyMap<>(4);
         String asText = getValueAsText(container);
 
         context.put("*", asText);
         context.put("value", asText);
-        context.put("time", Conversions.toString(m_time.atZone(container.getTimezone()), container));
+        context.putDeferred("time", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return Conversions.toString(m_time.atZone(container.getTimezone()), container);
+            }
+        });
         context.put("contact", contactContext);
 
         return context;
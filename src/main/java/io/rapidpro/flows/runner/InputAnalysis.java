@@ -0,0 +1,219 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.EvaluationError;
+import io.rapidpro.expressions.evaluator.Conversions;
+import io.rapidpro.expressions.utils.ExpressionUtils;
+import org.threeten.bp.LocalDate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The analysis of a rule set operand which is shared by all the tests of that rule set. Each part is computed the first
+ * time a test asks for it, so a rule set with many rules only tokenizes or parses its input once. The returned arrays
+ * and lists are shared and mustn't be modified.
+ */
+public class InputAnalysis {
+
+    protected final String m_text;
+
+    protected final EvaluationContext m_context;
+
+    protected String m_lowerText;
+
+    protected String m_trimmedText;
+
+    protected String m_trimmedLowerText;
+
+    protected String[] m_tokens;
+
+    protected String[] m_lowerTokens;
+
+    protected List<BigDecimal> m_decimals;
+
+    protected boolean m_dateParsed;
+
+    protected LocalDate m_date;
+
+    public InputAnalysis(String text, EvaluationContext context) {
+        m_text = text;
+        m_context = context;
+    }
+
+    /**
+     * Gets the analysis of the given input text, which is shared with other tests if the context is a run context
+     * @param context the evaluation context
+     * @param text the input text
+     * @return the analysis
+     */
+    public static InputAnalysis of(EvaluationContext context, String text) {
+        if (context instanceof RunEvaluationContext) {
+            return ((RunEvaluationContext) context).analyze(text);
+        }
+        return new InputAnalysis(text, context);
+    }
+
+    public String getText() {
+        return m_text;
+    }
+
+    /**
+     * Gets the lowercase version of the text
+     */
+    public String getLowerText() {
+        if (m_lowerText == null) {
+            m_lowerText = m_text.toLowerCase();
+        }
+        return m_lowerText;
+    }
+
+    /**
+     * Gets the text without leading and trailing whitespace
+     */
+    public String getTrimmedText() {
+        if (m_trimmedText == null) {
+            m_trimmedText = m_text.trim();
+        }
+        return m_trimmedText;
+    }
+
+    /**
+     * Gets the lowercase version of the text without leading and trailing whitespace
+     */
+    public String getTrimmedLowerText() {
+        if (m_trimmedLowerText == null) {
+            m_trimmedLowerText = getTrimmedText().toLowerCase();
+        }
+        return m_trimmedLowerText;
+    }
+
+    /**
+     * Gets the words of the text
+     */
+    public String[] getTokens() {
+        if (m_tokens == null) {
+            m_tokens = ExpressionUtils.tokenize(m_text);
+        }
+        return m_tokens;
+    }
+
+    /**
+     * Gets the words of the lowercase text
+     */
+    public String[] getLowerTokens() {
+        if (m_lowerTokens == null) {
+            m_lowerTokens = ExpressionUtils.tokenize(getLowerText());
+        }
+        return m_lowerTokens;
+    }
+
+    /**
+     * Gets the decimals which can be extracted from the whitespace separated words of the text, in order
+     */
+    public List<BigDecimal> getDecimals() {
+        if (m_decimals == null) {
+            m_decimals = extractDecimals(m_text);
+        }
+        return m_decimals;
+    }
+
+    /**
+     * Gets the date parsed from the text
+     * @return the date or null if the text isn't a date
+     */
+    public LocalDate getDate() {
+        if (!m_dateParsed) {
+            try {
+                m_date = Conversions.toDate(m_text, m_context);
+            }
+            catch (EvaluationError ignored) {}
+
+            m_dateParsed = true;
+        }
+        return m_date;
+    }
+
+    /**
+     * Extracts decimals from each word in the given text
+     * @param text the text
+     * @return the decimals
+     */
+    protected static List<BigDecimal> extractDecimals(String text) {
+        text = text.replace(",", ""); // so that 1,234 is parsed as 1234
+
+        List<BigDecimal> decimals = null;
+        int length = text.length();
+        int pos = 0;
+        while (pos < length) {
+            while (pos < length && isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+
+            // only words with something that could be a digit can be parsed, so don't bother with any others
+            int start = pos;
+            boolean candidate = false;
+            while (pos < length && !isWhitespace(text.charAt(pos))) {
+                candidate = candidate || isDigitLike(text.charAt(pos));
+                pos++;
+            }
+
+            if (candidate) {
+                try {
+                    BigDecimal decimal = extractDecimal(text.substring(start, pos));
+                    if (decimals == null) {
+                        decimals = new ArrayList<>();
+                    }
+                    decimals.add(decimal);
+                }
+                catch (NumberFormatException ignored) {}
+            }
+        }
+        return decimals != null ? decimals : Collections.<BigDecimal>emptyList();
+    }
+
+    /**
+     * A very flexible decimal parser
+     * @param text the text to be parsed
+     * @return the decimal value
+     */
+    public static BigDecimal extractDecimal(String text) {
+        // common substitutions
+        String originalText = text;
+        text = text.replace('l', '1').replace('o', '0').replace('O', '0');
+
+        try {
+            return new BigDecimal(text);
+        }
+        catch (NumberFormatException ex) {
+            // we only try this hard if we haven 't already substituted characters
+            if (originalText.equals(text)) {
+                // does this start with a number? just use that part if so
+                int digits = 0;
+                while (digits < text.length() && text.charAt(digits) >= '0' && text.charAt(digits) <= '9') {
+                    digits++;
+                }
+                if (digits > 0) {
+                    return new BigDecimal(text.substring(0, digits));
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Whether the given character separates words, i.e. matches \s
+     */
+    protected static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+
+    /**
+     * Whether the given character is a digit or one that extractDecimal substitutes for a digit
+     */
+    protected static boolean isDigitLike(char ch) {
+        return Character.isDigit(ch) || ch == 'l' || ch == 'o' || ch == 'O';
+    }
+}
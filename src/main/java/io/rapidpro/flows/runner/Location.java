@@ -1,5 +1,8 @@
 package io.rapidpro.flows.runner;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Simple location model
  */
@@ -38,6 +41,74 @@ public class Location {
         Location resolve(String text, String country, Level level, Location parent);
     }
 
+    /**
+     * Interface for resolvers which can resolve many location names in one go, e.g. with a single database query
+     */
+    public interface BatchResolver extends Resolver {
+        /**
+         * Resolves location names from the given inputs
+         * @param texts the texts to parse
+         * @param country the 2-digit country code
+         * @param level the level
+         * @param parent the parent location (may be null)
+         * @return the locations in the same order as the texts, with null where no such location exists
+         */
+        List<Location> resolveAll(List<String> texts, String country, Level level, Location parent);
+    }
+
+    /**
+     * Interface for anything that can resolve location names without blocking the calling thread
+     */
+    public interface AsyncResolver {
+        /**
+         * Resolves a location name from the given input, notifying the callback when complete
+         * @param text the text to parse
+         * @param country the 2-digit country code
+         * @param level the level
+         * @param parent the parent location (may be null)
+         * @param callback the callback to notify with the location, or null if no such location exists
+         */
+        void resolveAsync(String text, String country, Level level, Location parent, Callback callback);
+    }
+
+    /**
+     * Callback for asynchronous location resolution
+     */
+    public interface Callback {
+        /**
+         * Called when a location has been resolved
+         * @param location the location or null if no such location exists
+         */
+        void onResolved(Location location);
+
+        /**
+         * Called if resolution failed
+         * @param error the error
+         */
+        void onFailed(Exception error);
+    }
+
+    /**
+     * Resolves location names with the given resolver, in one call if it's a batch resolver or one at a time if not
+     * @param resolver the resolver
+     * @param texts the texts to parse
+     * @param country the 2-digit country code
+     * @param level the level
+     * @param parent the parent location (may be null)
+     * @return the locations in the same order as the texts, with null where no such location exists
+     */
+    public static List<Location> resolveAll(Resolver resolver, List<String> texts, String country, Level level, Location parent) {
+        if (resolver instanceof BatchResolver) {
+            return ((BatchResolver) resolver).resolveAll(texts, country, level, parent);
+        }
+
+        List<Location> locations = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            locations.add(resolver.resolve(text, country, level, parent));
+        }
+        return locations;
+    }
+
     public String getOsmId() {
         return m_osmId;
     }
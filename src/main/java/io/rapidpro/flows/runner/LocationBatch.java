@@ -0,0 +1,166 @@
+package io.rapidpro.flows.runner;
+
+import java.util.*;
+
+/**
+ * Location resolver for a batch of runs. The lookups which the runs are going to make are added up front as chains,
+ * e.g. the state, district and ward names of a ward test, and then resolved level by level with one call to the
+ * underlying resolver per country and parent. Lookups which weren't anticipated are passed through to the underlying
+ * resolver. Once prefetched, a batch can be shared by the threads resuming the runs.
+ */
+public class LocationBatch implements Location.Resolver {
+
+    // placeholder for names which don't resolve
+    protected static final Location NOT_FOUND = new Location(null, null, null);
+
+    protected final Location.Resolver m_resolver;
+
+    protected final List<Chain> m_chains = new ArrayList<>();
+
+    protected final Map<Lookup, Location> m_resolved = new HashMap<>();
+
+    public LocationBatch(Location.Resolver resolver) {
+        m_resolver = resolver;
+    }
+
+    /**
+     * Adds a chain of lookups to be prefetched
+     * @param country the 2-digit country code
+     * @param texts the texts to parse at each level, starting with the state
+     */
+    public void add(String country, String... texts) {
+        m_chains.add(new Chain(country, texts));
+    }
+
+    public boolean isEmpty() {
+        return m_chains.isEmpty();
+    }
+
+    /**
+     * Resolves all of the added chains, level by level, grouping the lookups at each level by country and parent
+     */
+    public void prefetch() {
+        Location[] parents = new Location[m_chains.size()];
+
+        for (Location.Level level : Location.Level.values()) {
+            int depth = level.ordinal();
+            Map<Lookup, Set<String>> textsByGroup = new LinkedHashMap<>();
+            Map<Lookup, Location> parentsByGroup = new HashMap<>();
+
+            for (int c = 0; c < m_chains.size(); c++) {
+                Chain chain = m_chains.get(c);
+                if (depth >= chain.m_texts.length || (depth > 0 && parents[c] == null)) {
+                    continue;
+                }
+
+                Lookup group = new Lookup(null, chain.m_country, level, parents[c]);
+                Set<String> texts = textsByGroup.get(group);
+                if (texts == null) {
+                    texts = new LinkedHashSet<>();
+                    textsByGroup.put(group, texts);
+                    parentsByGroup.put(group, parents[c]);
+                }
+                texts.add(chain.m_texts[depth]);
+            }
+
+            for (Map.Entry<Lookup, Set<String>> entry : textsByGroup.entrySet()) {
+                Lookup group = entry.getKey();
+                Location parent = parentsByGroup.get(group);
+                List<String> texts = new ArrayList<>(entry.getValue());
+
+                List<Location> locations = Location.resolveAll(m_resolver, texts, group.m_country, level, parent);
+                for (int t = 0; t < texts.size(); t++) {
+                    Location location = locations.get(t);
+                    m_resolved.put(new Lookup(texts.get(t), group.m_country, level, parent), location != null ? location : NOT_FOUND);
+                }
+            }
+
+            // the locations found at this level are the parents at the next
+            for (int c = 0; c < m_chains.size(); c++) {
+                Chain chain = m_chains.get(c);
+                if (depth < chain.m_texts.length && (depth == 0 || parents[c] != null)) {
+                    Location location = m_resolved.get(new Lookup(chain.m_texts[depth], chain.m_country, level, parents[c]));
+                    parents[c] = location != NOT_FOUND ? location : null;
+                }
+            }
+        }
+
+        m_chains.clear();
+    }
+
+    /**
+     * @see Location.Resolver#resolve(String, String, Location.Level, Location)
+     */
+    @Override
+    public Location resolve(String text, String country, Location.Level level, Location parent) {
+        Location location = m_resolved.get(new Lookup(text, country, level, parent));
+        if (location == null) {
+            return m_resolver.resolve(text, country, level, parent);
+        }
+        return location != NOT_FOUND ? location : null;
+    }
+
+    /**
+     * The texts to be resolved at each level for one location test
+     */
+    protected static class Chain {
+
+        protected final String m_country;
+
+        protected final String[] m_texts;
+
+        public Chain(String country, String[] texts) {
+            m_country = country;
+            m_texts = texts;
+        }
+    }
+
+    /**
+     * A single lookup, or with a null text, a group of lookups with the same country, level and parent
+     */
+    protected static class Lookup {
+
+        protected final String m_text;
+
+        protected final String m_country;
+
+        protected final Location.Level m_level;
+
+        protected final String m_parentOsmId;
+
+        public Lookup(String text, String country, Location.Level level, Location parent) {
+            m_text = text;
+            m_country = country;
+            m_level = level;
+            m_parentOsmId = parent != null ? parent.getOsmId() : null;
+        }
+
+        /**
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Lookup lookup = (Lookup) o;
+
+            if (m_text != null ? !m_text.equals(lookup.m_text) : lookup.m_text != null) return false;
+            if (m_country != null ? !m_country.equals(lookup.m_country) : lookup.m_country != null) return false;
+            if (m_level != lookup.m_level) return false;
+            return !(m_parentOsmId != null ? !m_parentOsmId.equals(lookup.m_parentOsmId) : lookup.m_parentOsmId != null);
+        }
+
+        /**
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            int result = m_text != null ? m_text.hashCode() : 0;
+            result = 31 * result + (m_country != null ? m_country.hashCode() : 0);
+            result = 31 * result + (m_level != null ? m_level.hashCode() : 0);
+            result = 31 * result + (m_parentOsmId != null ? m_parentOsmId.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -2,15 +2,19 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
 import org.threeten.bp.ZoneId;
 
+import java.io.IOException;
+
 /**
  * An organization - used to provide additional information about how a flow should be run
  */
-public class Org implements Jsonizable {
+public class Org implements JsonStreamable {
 
     protected String m_country;
 
@@ -41,6 +45,31 @@ public class Org implements Jsonizable {
         );
     }
 
+    /**
+     * Reads an org from a stream of JSON
+     * @param in the JSON reader
+     * @return the org
+     */
+    public static Org readJson(JsonReader in) throws IOException {
+        String country = null, primaryLanguage = null, timezone = null, dateStyle = null;
+        boolean anon = false;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "country": country = JsonUtils.nextString(in); break;
+                case "primary_language": primaryLanguage = JsonUtils.nextString(in); break;
+                case "timezone": timezone = JsonUtils.nextString(in); break;
+                case "date_style": dateStyle = JsonUtils.nextString(in); break;
+                case "anon": anon = in.nextBoolean(); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return new Org(country, primaryLanguage, ZoneId.of(timezone), DateStyle.valueOf(dateStyle.toUpperCase()), anon);
+    }
+
     @Override
     public JsonElement toJson() {
         return JsonUtils.object(
@@ -52,6 +81,20 @@ public class Org implements Jsonizable {
         );
     }
 
+    /**
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("country").value(m_country);
+        out.name("primary_language").value(m_primaryLanguage);
+        out.name("timezone").value(m_timezone.getId());
+        out.name("date_style").value(m_dateStyle.name().toLowerCase());
+        out.name("anon").value(m_anon);
+        out.endObject();
+    }
+
     public String getCountry() {
         return m_country;
     }
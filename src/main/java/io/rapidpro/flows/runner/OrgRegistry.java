@@ -0,0 +1,79 @@
+package io.rapidpro.flows.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of orgs and their contact fields, keyed by org id, so that runs for the same org can share one org and one
+ * field schema rather than each carrying its own copy. Run states started from a registered org are serialized with
+ * just the org id and the fields they created, and are resolved against the registry again when loaded.
+ */
+public class OrgRegistry {
+
+    protected final ConcurrentMap<String, Entry> m_entries = new ConcurrentHashMap<>();
+
+    /**
+     * Registers an org and its contact fields, replacing any existing registration for the same id. Runs already
+     * using the previous registration are unaffected.
+     * @param id the org id
+     * @param org the org
+     * @param fields the contact fields
+     * @return the registry entry
+     */
+    public Entry register(String id, Org org, List<Field> fields) {
+        Entry entry = new Entry(id, org, fields);
+        m_entries.put(id, entry);
+        return entry;
+    }
+
+    /**
+     * Gets the registry entry for the given org id
+     * @param id the org id
+     * @return the entry or null if no org is registered with that id
+     */
+    public Entry get(String id) {
+        return m_entries.get(id);
+    }
+
+    /**
+     * Removes the org with the given id
+     * @param id the org id
+     */
+    public void unregister(String id) {
+        m_entries.remove(id);
+    }
+
+    /**
+     * A registered org and its contact fields. The fields list can't be modified - runs which create fields make their
+     * own copy.
+     */
+    public static class Entry {
+
+        protected final String m_id;
+
+        protected final Org m_org;
+
+        protected final List<Field> m_fields;
+
+        protected Entry(String id, Org org, List<Field> fields) {
+            m_id = id;
+            m_org = org;
+            m_fields = Collections.unmodifiableList(new ArrayList<>(fields));
+        }
+
+        public String getId() {
+            return m_id;
+        }
+
+        public Org getOrg() {
+            return m_org;
+        }
+
+        public List<Field> getFields() {
+            return m_fields;
+        }
+    }
+}
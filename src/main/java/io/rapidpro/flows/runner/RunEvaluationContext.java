@@ -0,0 +1,77 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.EvaluationError;
+import io.rapidpro.expressions.dates.DateStyle;
+import io.rapidpro.flows.utils.LazyMap;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+
+import java.util.Map;
+
+/**
+ * Evaluation context for flow runs. The base class copies every container it resolves a variable in to lowercase its
+ * keys, which would compute all values of a lazy map. The top-level variables and lazy maps built by the runner
+ * already have lowercase keys so are looked up directly.
+ *
+ * The context also holds the analysis of the input being tested by a rule set, so that its tests can share it.
+ */
+public class RunEvaluationContext extends EvaluationContext {
+
+    protected InputAnalysis m_inputAnalysis;
+
+    public RunEvaluationContext(Map<String, Object> variables, ZoneId timezone, DateStyle dateStyle) {
+        super(variables, timezone, dateStyle);
+    }
+
+    public RunEvaluationContext(Map<String, Object> variables, ZoneId timezone, DateStyle dateStyle, Instant now) {
+        super(variables, timezone, dateStyle, now);
+    }
+
+    /**
+     * Gets the analysis of the given input text, reusing the last analysis if it was of the same text
+     * @param text the input text
+     * @return the analysis
+     */
+    public InputAnalysis analyze(String text) {
+        if (m_inputAnalysis == null || !m_inputAnalysis.getText().equals(text)) {
+            m_inputAnalysis = new InputAnalysis(text, this);
+        }
+        return m_inputAnalysis;
+    }
+
+    /**
+     * @see EvaluationContext#resolveVariableInContainer(Map, String, String)
+     */
+    @Override
+    protected Object resolveVariableInContainer(Map<String, Object> container, String path, String originalPath) {
+        if (container != m_variables && !(container instanceof LazyMap)) {
+            return super.resolveVariableInContainer(container, path, originalPath);
+        }
+
+        String item, remainingPath;
+        int dot = path.indexOf('.');
+        if (dot >= 0) {
+            item = path.substring(0, dot);
+            remainingPath = path.substring(dot + 1);
+        } else {
+            item = path;
+            remainingPath = null;
+        }
+
+        if (!container.containsKey(item)) {
+            throw new EvaluationError("Undefined variable: " + originalPath);
+        }
+
+        Object value = container.get(item);
+
+        if (remainingPath != null && value != null) {
+            if (!(value instanceof Map)) {
+                throw new EvaluationError("Undefined variable: " + originalPath);
+            }
+            return resolveVariableInContainer((Map<String, Object>) value, remainingPath, originalPath);
+        }
+
+        return coerceToSupportedType(value);
+    }
+}
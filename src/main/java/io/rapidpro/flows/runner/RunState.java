@@ -3,6 +3,8 @@ package io.rapidpro.flows.runner;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.expressions.utils.ExpressionUtils;
@@ -10,21 +12,68 @@ import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.RuleSet;
 import io.rapidpro.flows.utils.FlowUtils;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
+import io.rapidpro.flows.utils.LazyMap;
 import org.apache.commons.lang3.StringUtils;
 import org.threeten.bp.Instant;
 import org.threeten.bp.LocalDate;
 import org.threeten.bp.ZonedDateTime;
 import org.threeten.bp.temporal.ChronoUnit;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
  * Represents state of a flow run after visiting one or more nodes in the flow
  */
-public class RunState implements Jsonizable {
-
-
+public class RunState implements JsonStreamable {
+
+    // register factories for the run state classes so that loading them from JSON trees doesn't need reflection
+    static {
+        JsonUtils.registerFactory(Org.class, new JsonUtils.Factory<Org>() {
+            @Override
+            public Org fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return Org.fromJson(elm);
+            }
+        });
+        JsonUtils.registerFactory(Field.class, new JsonUtils.Factory<Field>() {
+            @Override
+            public Field fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return Field.fromJson(elm);
+            }
+        });
+        JsonUtils.registerFactory(Contact.class, new JsonUtils.Factory<Contact>() {
+            @Override
+            public Contact fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return Contact.fromJson(elm);
+            }
+        });
+        JsonUtils.registerFactory(ContactUrn.class, new JsonUtils.Factory<ContactUrn>() {
+            @Override
+            public ContactUrn fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return ContactUrn.fromJson(elm);
+            }
+        });
+        JsonUtils.registerFactory(Value.class, new JsonUtils.Factory<Value>() {
+            @Override
+            public Value fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return Value.fromJson(elm);
+            }
+        });
+        JsonUtils.registerFactory(Step.class, new JsonUtils.Factory<Step>() {
+            @Override
+            public Step fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return Step.fromJson(elm, context);
+            }
+        });
+        JsonUtils.registerFactory(RuleSet.Result.class, new JsonUtils.Factory<RuleSet.Result>() {
+            @Override
+            public RuleSet.Result fromJson(JsonElement elm, Flow.DeserializationContext context) {
+                return RuleSet.Result.fromJson(elm, context);
+            }
+        });
+    }
 
     public enum State {
         IN_PROGRESS,
@@ -40,6 +89,9 @@ public class RunState implements Jsonizable {
 
     protected List<Field> m_fields;
 
+    // the registry entry the org and fields are shared from, if any
+    protected OrgRegistry.Entry m_orgEntry;
+
     protected Contact m_contact;
 
     protected Instant m_started;
@@ -60,6 +112,15 @@ public class RunState implements Jsonizable {
 
     protected int m_level;
 
+    protected EvaluationContext m_context;
+
+    protected Runner m_contextRunner;
+
+    protected Input m_contextInput;
+
+    // what this run state looked like when it was last loaded or saved
+    protected RunStateDelta.Baseline m_baseline;
+
     /**
      * Creates a run state for a new run by the given contact in the given flow
      * @param org the org
@@ -84,6 +145,17 @@ public class RunState implements Jsonizable {
         this.m_values.add(new HashMap<String, Value>());
     }
 
+    /**
+     * Creates a run state for a new run by the given contact in the given flow, sharing the org and fields of a
+     * registered org
+     * @param org the registered org
+     * @param contact the contact
+     */
+    public RunState(OrgRegistry.Entry org, Contact contact, Map<String,Flow> flows) {
+        this(org.getOrg(), org.getFields(), contact, flows);
+        this.m_orgEntry = org;
+    }
+
     public static Map<String,Flow> buildFlowMap(Flow flow) {
         Map<String,Flow> flows = new HashMap<>();
         flows.put(flow.getUuid(), flow);
@@ -97,6 +169,173 @@ public class RunState implements Jsonizable {
      * @return the run state
      */
     public static RunState fromJson(String json, Map<String,Flow> flows) {
+        return fromJson(json, flows, null);
+    }
+
+    /**
+     * Restores a run state from JSON, resolving its org against the given registry if it was serialized by reference
+     * @param json the JSON containing a serialized run state
+     * @param flows the flows the run state is for
+     * @param orgs the org registry
+     * @return the run state
+     */
+    public static RunState fromJson(String json, Map<String,Flow> flows, OrgRegistry orgs) {
+        try {
+            return fromJson(new StringReader(json), flows, orgs);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Restores a run state from a stream of JSON, building the run state directly rather than parsing a JSON tree
+     * first
+     * @param reader the reader of a serialized run state
+     * @param flows the flows the run state is for
+     * @return the run state
+     */
+    public static RunState fromJson(Reader reader, Map<String,Flow> flows) throws IOException {
+        return fromJson(reader, flows, null);
+    }
+
+    /**
+     * Restores a run state from a stream of JSON, resolving its org against the given registry if it was serialized
+     * by reference
+     * @param reader the reader of a serialized run state
+     * @param flows the flows the run state is for
+     * @param orgs the org registry
+     * @return the run state
+     */
+    public static RunState fromJson(Reader reader, Map<String,Flow> flows, OrgRegistry orgs) throws IOException {
+        Flow.DeserializationContext context = new Flow.DeserializationContext(flows);
+        JsonReader in = new JsonReader(reader);
+        in.setLenient(true);
+
+        RunState run = new RunState(null, new ArrayList<Field>(), null, flows);
+        run.m_values.clear();
+        String orgId = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "org":
+                    run.m_org = Org.readJson(in);
+                    break;
+                case "org_id":
+                    orgId = in.nextString();
+                    break;
+                case "fields":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        run.m_fields.add(Field.readJson(in));
+                    }
+                    in.endArray();
+                    break;
+                case "contact":
+                    run.m_contact = Contact.readJson(in);
+                    break;
+                case "started":
+                    run.m_started = ExpressionUtils.parseJsonDate(JsonUtils.nextString(in));
+                    break;
+                case "steps":
+                    readSteps(in, context, run.m_steps);
+                    break;
+                case "values":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        Map<String, Value> values = new HashMap<>();
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            values.put(in.nextName(), Value.readJson(in));
+                        }
+                        in.endObject();
+                        run.m_values.add(values);
+                    }
+                    in.endArray();
+                    break;
+                case "extra":
+                    run.m_extra = JsonUtils.readStringMap(in);
+                    break;
+                case "state":
+                    run.m_state = State.valueOf(in.nextString().toUpperCase());
+                    break;
+                case "active_flows":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        run.m_activeFlows.add(flows.get(in.nextString()));
+                    }
+                    in.endArray();
+                    break;
+                case "suspended_steps":
+                    readSteps(in, context, run.m_suspendedSteps);
+                    break;
+                case "level":
+                    run.m_level = in.nextInt();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if (orgId != null) {
+            run.useOrg(resolveOrg(orgs, orgId), run.m_fields);
+        }
+
+        return run;
+    }
+
+    /**
+     * Helper to find the registered org that a run state refers to
+     */
+    protected static OrgRegistry.Entry resolveOrg(OrgRegistry orgs, String orgId) throws IOException {
+        OrgRegistry.Entry entry = orgs != null ? orgs.get(orgId) : null;
+        if (entry == null) {
+            throw new IOException("Run state refers to unregistered org: " + orgId);
+        }
+        return entry;
+    }
+
+    /**
+     * Switches this run state to the shared org and fields of the given registered org, keeping the given fields
+     * created by this run which aren't in the org's fields
+     */
+    protected void useOrg(OrgRegistry.Entry entry, List<Field> createdFields) {
+        m_orgEntry = entry;
+        m_org = entry.getOrg();
+        m_fields = entry.getFields();
+
+        Set<String> sharedKeys = new HashSet<>();
+        for (Field field : m_fields) {
+            sharedKeys.add(field.getKey());
+        }
+        for (Field field : createdFields) {
+            if (!sharedKeys.contains(field.getKey())) {
+                addField(field);
+            }
+        }
+    }
+
+    /**
+     * Helper to read an array of steps
+     */
+    private static void readSteps(JsonReader in, Flow.DeserializationContext context, List<Step> steps) throws IOException {
+        in.beginArray();
+        while (in.hasNext()) {
+            steps.add(Step.readJson(in, context));
+        }
+        in.endArray();
+    }
+
+    /**
+     * Restores a run state from JSON by parsing it to a JSON tree first. This is the original loader and is kept to
+     * benchmark against and to check that {@link #fromJson(Reader, Map)} builds the same run state. It doesn't support
+     * run states of registered orgs, so isn't public.
+     * @param json the JSON containing a serialized run state
+     * @param flows the flows the run state is for
+     * @return the run state
+     */
+    static RunState fromJsonTree(String json, Map<String,Flow> flows) {
         JsonObject obj = JsonUtils.getGson().fromJson(json, JsonObject.class);
         Flow.DeserializationContext context = new Flow.DeserializationContext(flows);
 
@@ -139,19 +378,24 @@ public class RunState implements Jsonizable {
             flowUuids.add(flow.getUuid());
         }
 
-        return JsonUtils.object(
-                "org", m_org.toJson(),
-                "fields", JsonUtils.toJsonArray(m_fields),
-                "contact", m_contact.toJson(),
-                "started", ExpressionUtils.formatJsonDate(m_started),
-                "steps", JsonUtils.toJsonArray(m_steps),
-                "values", toJsonObjectArray(m_values),
-                "extra", JsonUtils.toJsonObject(m_extra),
-                "state", m_state.name().toLowerCase(),
-                "active_flows", JsonUtils.toJsonArray(flowUuids),
-                "suspended_steps", JsonUtils.toJsonArray(m_suspendedSteps),
-                "level", m_level
-        );
+        // runs of registered orgs only need the org id and the fields they created
+        JsonObject obj;
+        if (m_orgEntry != null) {
+            obj = JsonUtils.object("org_id", m_orgEntry.getId(), "fields", JsonUtils.toJsonArray(getLocalFields()));
+        } else {
+            obj = JsonUtils.object("org", m_org.toJson(), "fields", JsonUtils.toJsonArray(m_fields));
+        }
+
+        obj.add("contact", m_contact.toJson());
+        obj.addProperty("started", ExpressionUtils.formatJsonDate(m_started));
+        obj.add("steps", JsonUtils.toJsonArray(m_steps));
+        obj.add("values", toJsonObjectArray(m_values));
+        obj.add("extra", JsonUtils.toJsonObject(m_extra));
+        obj.addProperty("state", m_state.name().toLowerCase());
+        obj.add("active_flows", JsonUtils.toJsonArray(flowUuids));
+        obj.add("suspended_steps", JsonUtils.toJsonArray(m_suspendedSteps));
+        obj.addProperty("level", m_level);
+        return obj;
     }
 
     /**
@@ -165,12 +409,129 @@ public class RunState implements Jsonizable {
         return arr;
     }
 
+    /**
+     * Writes this run state as JSON without building a JSON tree first. The JSON is the same as {@link #toJson()}.
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        if (m_orgEntry != null) {
+            out.name("org_id").value(m_orgEntry.getId());
+            out.name("fields");
+            JsonUtils.writeArray(out, getLocalFields());
+        } else {
+            out.name("org");
+            m_org.writeJson(out);
+            out.name("fields");
+            JsonUtils.writeArray(out, m_fields);
+        }
+        out.name("contact");
+        m_contact.writeJson(out);
+        out.name("started").value(ExpressionUtils.formatJsonDate(m_started));
+        out.name("steps");
+        JsonUtils.writeArray(out, m_steps);
+        out.name("values");
+        out.beginArray();
+        for (Map<String, Value> item : m_values) {
+            JsonUtils.writeObject(out, item);
+        }
+        out.endArray();
+        out.name("extra");
+        JsonUtils.writeObject(out, m_extra);
+        out.name("state").value(m_state.name().toLowerCase());
+        out.name("active_flows");
+        out.beginArray();
+        for (Flow flow : m_activeFlows) {
+            out.value(flow.getUuid());
+        }
+        out.endArray();
+        out.name("suspended_steps");
+        JsonUtils.writeArray(out, m_suspendedSteps);
+        out.name("level").value(m_level);
+        out.endObject();
+    }
+
+    /**
+     * Writes this run state as JSON to the given writer
+     * @param out the writer
+     */
+    public void writeJson(Writer out) throws IOException {
+        JsonWriter writer = JsonUtils.newWriter(out);
+        writeJson(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes this run state as UTF-8 encoded JSON to the given stream
+     * @param out the stream
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        writeJson(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+    }
+
     /**
      * Serializes this run state to a JSON string
      * @return the JSON
      */
     public String toJsonString() {
-        return JsonUtils.getGson().toJson(toJson());
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Marks this run state as clean, i.e. saved, so that later deltas only include changes made after now. This takes a
+     * snapshot of the run state, so loaders don't do it - callers which want deltas should call this after loading or
+     * saving a run state.
+     */
+    public void markClean() {
+        m_baseline = new RunStateDelta.Baseline(this);
+    }
+
+    /**
+     * Gets the changes made to this run state since it was last marked clean
+     * @return the delta, which is full if this run state has never been marked clean
+     */
+    public RunStateDelta getDelta() {
+        return new RunStateDelta(m_baseline, this);
+    }
+
+    /**
+     * Serializes this run state to its compact binary form
+     * @return the bytes
+     * @see RunStateCodec
+     */
+    public byte[] toBytes() {
+        return RunStateCodec.encode(this);
+    }
+
+    /**
+     * Restores a run state from its compact binary form
+     * @param bytes the bytes
+     * @param flows the flows the run state is for
+     * @return the run state
+     * @see RunStateCodec
+     */
+    public static RunState fromBytes(byte[] bytes, Map<String,Flow> flows) {
+        return RunStateCodec.decode(bytes, flows);
+    }
+
+    /**
+     * Restores a run state from its compact binary form, resolving its org against the given registry if it was
+     * encoded by reference
+     * @param bytes the bytes
+     * @param flows the flows the run state is for
+     * @param orgs the org registry
+     * @return the run state
+     * @see RunStateCodec
+     */
+    public static RunState fromBytes(byte[] bytes, Map<String,Flow> flows, OrgRegistry orgs) {
+        return RunStateCodec.decode(bytes, flows, orgs);
     }
 
     /**
@@ -182,15 +543,20 @@ public class RunState implements Jsonizable {
     }
 
     /**
-     * Builds the top-level evaluation context (all variables, date information)
+     * Builds the top-level evaluation context (all variables, date information). The context is cached until it's
+     * invalidated or requested for a different runner or input.
      * @param input the current input
      * @return the context
      */
     public EvaluationContext buildContext(Runner runner, Input input) {
+        if (m_context != null && m_contextRunner == runner && m_contextInput == input) {
+            return m_context;
+        }
+
         // our concept of now may be overridden by the runner
         Instant now = runner.getNow() != null ? runner.getNow() : Instant.now();
 
-        EvaluationContext context = new EvaluationContext(new HashMap<String, Object>(), m_org.getTimezone(), m_org.getDateStyle(), now);
+        EvaluationContext context = new RunEvaluationContext(new HashMap<String, Object>(), m_org.getTimezone(), m_org.getDateStyle(), now);
 
         Map<String, String> contactContext = m_contact.buildContext(this, context);
 
@@ -213,20 +579,45 @@ public class RunState implements Jsonizable {
             context.putVariable("child", buildFlowContext(m_values.get(m_level + 1), context));
         }
 
+        m_context = context;
+        m_contextRunner = runner;
+        m_contextInput = input;
         return context;
     }
 
+    /**
+     * Discards the cached evaluation context so that it's rebuilt by the next call to buildContext. Anything which
+     * changes the contact, values or extra of this run should call this.
+     */
+    public void invalidateContext() {
+        m_context = null;
+        m_contextRunner = null;
+        m_contextInput = null;
+    }
+
     /**
      * Builds up a flow context from a set of flow values
      */
-    private Map<String,Object> buildFlowContext(Map<String,Value> flowValues, EvaluationContext context) {
-        Map<String, Object> flowContext = new HashMap<>();
-        List<String> values = new ArrayList<>();
-        for (Map.Entry<String, Value> entry : flowValues.entrySet()) {
-            flowContext.put(entry.getKey(), entry.getValue().buildContext(context));
-            values.add(entry.getKey() + ": " + entry.getValue().getValue());
+    private Map<String,Object> buildFlowContext(final Map<String,Value> flowValues, final EvaluationContext context) {
+        LazyMap<Object> flowContext = new LazyMap<>(flowValues.size() + 1);
+        for (final Map.Entry<String, Value> entry : flowValues.entrySet()) {
+            flowContext.putDeferred(entry.getKey(), new LazyMap.Deferred<Map<String, String>>() {
+                @Override
+                public Map<String, String> compute() {
+                    return entry.getValue().buildContext(context);
+                }
+            });
         }
-        flowContext.put("*", StringUtils.join(values, "\n"));
+        flowContext.putDeferred("*", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                List<String> values = new ArrayList<>();
+                for (Map.Entry<String, Value> entry : flowValues.entrySet()) {
+                    values.add(entry.getKey() + ": " + entry.getValue().getValue());
+                }
+                return StringUtils.join(values, "\n");
+            }
+        });
         return flowContext;
     }
 
@@ -239,6 +630,7 @@ public class RunState implements Jsonizable {
     public void updateValue(RuleSet ruleSet, RuleSet.Result result, Instant time) {
         String key = ruleSet.getLabel().toLowerCase().replaceAll("[^a-z0-9]+", "_");
         getValues().put(key, new Value(result.getValue(), result.getCategory(), result.getText(), time));
+        invalidateContext();
     }
 
     /**
@@ -256,6 +648,7 @@ public class RunState implements Jsonizable {
         // wipe any existing values at our new level
         getValues().clear();
 
+        invalidateContext();
     }
 
     /**
@@ -263,6 +656,8 @@ public class RunState implements Jsonizable {
      * @return the most recently suspended step
      */
     public Step exitSubflow() {
+        invalidateContext();
+
         m_level--;
         m_activeFlows.remove(m_activeFlows.size() - 1);
         return m_suspendedSteps.remove(m_suspendedSteps.size() - 1);
@@ -271,18 +666,37 @@ public class RunState implements Jsonizable {
     /**
      * Builds the date context (i.e. @date.now, @date.today, ...)
      */
-    protected static Map<String, String> buildDateContext(EvaluationContext container) {
-        ZonedDateTime asDateTime = container.getNow().atZone(container.getTimezone());
-        LocalDate asDate = asDateTime.toLocalDate();
-        String asDateTimeStr = Conversions.toString(asDateTime, container);
-        String asDateStr = Conversions.toString(asDate, container);
-
-        Map<String, String> dateContext = new HashMap<>();
-        dateContext.put("*", asDateTimeStr);
-        dateContext.put("now", asDateTimeStr);
-        dateContext.put("today", asDateStr);
-        dateContext.put("tomorrow", Conversions.toString(asDate.plus(1, ChronoUnit.DAYS), container));
-        dateContext.put("yesterday", Conversions.toString(asDate.minus(1, ChronoUnit.DAYS), container));
+    protected static Map<String, String> buildDateContext(final EvaluationContext container) {
+        final LocalDate asDate = container.getNow().atZone(container.getTimezone()).toLocalDate();
+
+        LazyMap.Deferred<String> now = new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return Conversions.toString(container.getNow().atZone(container.getTimezone()), container);
+            }
+        };
+
+        LazyMap<String> dateContext = new LazyMap<>(5);
+        dateContext.putDeferred("*", now);
+        dateContext.putDeferred("now", now);
+        dateContext.putDeferred("today", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return Conversions.toString(asDate, container);
+            }
+        });
+        dateContext.putDeferred("tomorrow", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return Conversions.toString(asDate.plus(1, ChronoUnit.DAYS), container);
+            }
+        });
+        dateContext.putDeferred("yesterday", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return Conversions.toString(asDate.minus(1, ChronoUnit.DAYS), container);
+            }
+        });
         return dateContext;
     }
 
@@ -290,6 +704,14 @@ public class RunState implements Jsonizable {
         return m_org;
     }
 
+    /**
+     * Gets the registered org whose org and fields this run shares
+     * @return the registry entry or null if this run has its own org and fields
+     */
+    public OrgRegistry.Entry getRegisteredOrg() {
+        return m_orgEntry;
+    }
+
     public Field getOrCreateField(String key) {
         return getOrCreateField(key, null, Field.ValueType.TEXT);
     }
@@ -319,10 +741,30 @@ public class RunState implements Jsonizable {
         }
 
         Field field = new Field(key, label, valueType, true);
-        m_fields.add(field);
+        addField(field);
         return field;
     }
 
+    /**
+     * Adds a field, first copying the fields if they're still those shared with a registered org
+     */
+    protected void addField(Field field) {
+        if (m_orgEntry != null && m_fields == m_orgEntry.getFields()) {
+            m_fields = new ArrayList<>(m_fields);
+        }
+        m_fields.add(field);
+    }
+
+    /**
+     * Gets the fields which this run has but its registered org doesn't, or all fields if its org isn't registered
+     */
+    protected List<Field> getLocalFields() {
+        if (m_orgEntry == null) {
+            return m_fields;
+        }
+        return m_fields.subList(m_orgEntry.getFields().size(), m_fields.size());
+    }
+
     public List<Field> getCreatedFields() {
         List<Field> created = new ArrayList<>();
         for (Field field : m_fields) {
@@ -0,0 +1,405 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.dates.DateStyle;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.Rule;
+import io.rapidpro.flows.definition.RuleSet;
+import io.rapidpro.flows.definition.actions.Action;
+import io.rapidpro.flows.utils.BinaryReader;
+import io.rapidpro.flows.utils.BinaryWriter;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compact binary alternative to the JSON serialization of run states. The flows a run state refers to are written
+ * once in a table, along with the nodes and rules of each flow that the run's steps refer to, so that steps refer to
+ * flows, nodes and rules by small integers. Integers are written as varints, timestamps as milliseconds since the
+ * epoch, and repeated strings are written once. A run state decoded from its binary form serializes to exactly the
+ * same JSON as the original. Run states of registered orgs are encoded with just the org id and the fields they created.
+ */
+public class RunStateCodec {
+
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Encodes a run state to bytes
+     * @param run the run state
+     * @return the bytes
+     */
+    public static byte[] encode(RunState run) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(run, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a run state to the given stream
+     * @param run the run state
+     * @param stream the output stream
+     */
+    public static void encode(RunState run, OutputStream stream) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(stream);
+        BinaryWriter out = new BinaryWriter(buffered);
+        out.writeByte(FORMAT_VERSION);
+
+        FlowTable flows = new FlowTable();
+        flows.addAll(run);
+        flows.write(out);
+
+        out.writeBoolean(run.m_orgEntry != null);
+        if (run.m_orgEntry != null) {
+            out.writeString(run.m_orgEntry.getId());
+        } else {
+            Org org = run.m_org;
+            out.writeString(org.m_country);
+            out.writeString(org.m_primaryLanguage);
+            out.writeString(org.m_timezone.getId());
+            out.writeString(org.m_dateStyle.name());
+            out.writeBoolean(org.m_anon);
+        }
+
+        List<Field> fields = run.getLocalFields();
+        out.writeVarInt(fields.size());
+        for (Field field : fields) {
+            out.writeString(field.m_key);
+            out.writeString(field.m_label);
+            out.writeString(field.m_valueType.m_code);
+        }
+
+        Contact contact = run.m_contact;
+        out.writeString(contact.m_uuid);
+        out.writeString(contact.m_name);
+        out.writeVarInt(contact.m_urns.size());
+        for (ContactUrn urn : contact.m_urns) {
+            out.writeString(urn.toString());
+        }
+        writeStrings(out, contact.m_groups);
+        writeStringMap(out, contact.m_fields);
+        out.writeString(contact.m_language);
+
+        out.writeInstant(run.m_started);
+        writeSteps(out, flows, run.m_steps);
+
+        out.writeVarInt(run.m_values.size());
+        for (Map<String, Value> values : run.m_values) {
+            out.writeVarInt(values.size());
+            for (Map.Entry<String, Value> entry : values.entrySet()) {
+                Value value = entry.getValue();
+                out.writeString(entry.getKey());
+                out.writeString(value.m_value);
+                out.writeString(value.m_category);
+                out.writeString(value.m_text);
+                out.writeInstant(value.m_time);
+            }
+        }
+
+        writeStringMap(out, run.m_extra);
+        out.writeString(run.m_state.name());
+
+        out.writeVarInt(run.m_activeFlows.size());
+        for (Flow flow : run.m_activeFlows) {
+            out.writeVarInt(flows.indexOf(flow));
+        }
+
+        writeSteps(out, flows, run.m_suspendedSteps);
+        out.writeVarInt(run.m_level);
+
+        buffered.flush();
+    }
+
+    /**
+     * Decodes a run state from bytes
+     * @param bytes the bytes
+     * @param flows the flows the run state is for
+     * @return the run state
+     */
+    public static RunState decode(byte[] bytes, Map<String, Flow> flows) {
+        return decode(bytes, flows, null);
+    }
+
+    /**
+     * Decodes a run state from bytes, resolving its org against the given registry if it was encoded by reference
+     * @param bytes the bytes
+     * @param flows the flows the run state is for
+     * @param orgs the org registry
+     * @return the run state
+     */
+    public static RunState decode(byte[] bytes, Map<String, Flow> flows, OrgRegistry orgs) {
+        try {
+            return decode(new ByteArrayInputStream(bytes), flows, orgs);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes a run state from the given stream
+     * @param stream the input stream
+     * @param flows the flows the run state is for
+     * @return the run state
+     */
+    public static RunState decode(InputStream stream, Map<String, Flow> flows) throws IOException {
+        return decode(stream, flows, null);
+    }
+
+    /**
+     * Decodes a run state from the given stream, resolving its org against the given registry if it was encoded by
+     * reference
+     * @param stream the input stream
+     * @param flows the flows the run state is for
+     * @param orgs the org registry
+     * @return the run state
+     */
+    public static RunState decode(InputStream stream, Map<String, Flow> flows, OrgRegistry orgs) throws IOException {
+        BinaryReader in = new BinaryReader(stream);
+        int version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported run state format version: " + version);
+        }
+
+        Flow.DeserializationContext context = new Flow.DeserializationContext(flows);
+        List<FlowEntry> flowTable = readFlowTable(in, flows);
+
+        OrgRegistry.Entry orgEntry = null;
+        Org org = null;
+        if (in.readBoolean()) {
+            orgEntry = RunState.resolveOrg(orgs, in.readString());
+        } else {
+            org = new Org(
+                    in.readString(),
+                    in.readString(),
+                    ZoneId.of(in.readString()),
+                    DateStyle.valueOf(in.readString()),
+                    in.readBoolean()
+            );
+        }
+
+        List<Field> fields = new ArrayList<>();
+        for (int f = in.readVarInt(); f > 0; f--) {
+            fields.add(new Field(in.readString(), in.readString(), Field.ValueType.fromCode(in.readString())));
+        }
+
+        String contactUuid = in.readString();
+        String contactName = in.readString();
+        List<ContactUrn> urns = new ArrayList<>();
+        for (int u = in.readVarInt(); u > 0; u--) {
+            urns.add(ContactUrn.fromString(in.readString()));
+        }
+        Set<String> groups = readStrings(in, new LinkedHashSet<String>());
+        Map<String, String> contactFields = readStringMap(in);
+        Contact contact = new Contact(contactUuid, contactName, urns, groups, contactFields, in.readString());
+
+        RunState run = new RunState(org, fields, contact, flows);
+        if (orgEntry != null) {
+            run.useOrg(orgEntry, fields);
+        }
+        run.m_started = in.readInstant();
+        readSteps(in, flowTable, context, run.m_steps);
+
+        run.m_values.clear();
+        for (int l = in.readVarInt(); l > 0; l--) {
+            Map<String, Value> values = new HashMap<>();
+            for (int v = in.readVarInt(); v > 0; v--) {
+                String key = in.readString();
+                String value = in.readString();
+                String category = in.readString();
+                String text = in.readString();
+                values.put(key, new Value(value, category, text, in.readInstant()));
+            }
+            run.m_values.add(values);
+        }
+
+        run.m_extra = readStringMap(in);
+        run.m_state = RunState.State.valueOf(in.readString());
+
+        for (int a = in.readVarInt(); a > 0; a--) {
+            run.m_activeFlows.add(flowTable.get(in.readVarInt()).m_flow);
+        }
+
+        readSteps(in, flowTable, context, run.m_suspendedSteps);
+        run.m_level = in.readVarInt();
+
+        return run;
+    }
+
+    protected static void writeSteps(BinaryWriter out, FlowTable flows, List<Step> steps) throws IOException {
+        out.writeVarInt(steps.size());
+        for (Step step : steps) {
+            out.writeVarInt(flows.indexOf(step.m_flow));
+            out.writeVarInt(flows.indexOf(step.m_flow, step.m_node));
+            out.writeInstant(step.m_arrivedOn);
+            out.writeInstant(step.m_leftOn);
+
+            RuleSet.Result result = step.m_ruleResult;
+            out.writeBoolean(result != null);
+            if (result != null) {
+                out.writeVarInt(flows.indexOf(result.getFlow()));
+                out.writeVarInt(flows.indexOf(result.getFlow(), result.getRule()));
+                out.writeString(result.getValue());
+                out.writeString(result.getCategory());
+                out.writeString(result.getText());
+                out.writeString(result.getMedia());
+            }
+
+            out.writeVarInt(step.m_actions.size());
+            for (Action action : step.m_actions) {
+                out.writeJson(action.toJson());
+            }
+            writeStrings(out, step.m_errors);
+        }
+    }
+
+    protected static void readSteps(BinaryReader in, List<FlowEntry> flowTable, Flow.DeserializationContext context, List<Step> steps) throws IOException {
+        for (int s = in.readVarInt(); s > 0; s--) {
+            FlowEntry flow = flowTable.get(in.readVarInt());
+            Flow.Node node = (Flow.Node) flow.m_elements.get(in.readVarInt());
+            Instant arrivedOn = in.readInstant();
+            Instant leftOn = in.readInstant();
+
+            RuleSet.Result result = null;
+            if (in.readBoolean()) {
+                FlowEntry resultFlow = flowTable.get(in.readVarInt());
+                Rule rule = (Rule) resultFlow.m_elements.get(in.readVarInt());
+                String value = in.readString();
+                String category = in.readString();
+                String text = in.readString();
+                result = new RuleSet.Result(rule, value, category, text, in.readString(), resultFlow.m_flow);
+            }
+
+            List<Action> actions = new ArrayList<>();
+            for (int a = in.readVarInt(); a > 0; a--) {
+                actions.add(Action.fromJson(in.readJson(), context));
+            }
+            List<String> errors = readStrings(in, new ArrayList<String>());
+
+            steps.add(new Step(flow.m_flow, node, arrivedOn, leftOn, result, actions, errors));
+        }
+    }
+
+    protected static List<FlowEntry> readFlowTable(BinaryReader in, Map<String, Flow> flows) throws IOException {
+        List<FlowEntry> table = new ArrayList<>();
+
+        for (int f = in.readVarInt(); f > 0; f--) {
+            String uuid = in.readUuid();
+            Flow flow = flows.get(uuid);
+            if (flow == null) {
+                throw new IOException("Run state refers to unknown flow: " + uuid);
+            }
+            List<Flow.Element> elements = new ArrayList<>();
+            for (int e = in.readVarInt(); e > 0; e--) {
+                elements.add(flow.getElementByUuid(in.readUuid()));
+            }
+            table.add(new FlowEntry(flow, elements));
+        }
+        return table;
+    }
+
+    protected static void writeStrings(BinaryWriter out, Collection<String> strings) throws IOException {
+        out.writeVarInt(strings.size());
+        for (String string : strings) {
+            out.writeString(string);
+        }
+    }
+
+    protected static <C extends Collection<String>> C readStrings(BinaryReader in, C strings) throws IOException {
+        for (int s = in.readVarInt(); s > 0; s--) {
+            strings.add(in.readString());
+        }
+        return strings;
+    }
+
+    protected static void writeStringMap(BinaryWriter out, Map<String, String> map) throws IOException {
+        out.writeVarInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeString(entry.getValue());
+        }
+    }
+
+    protected static Map<String, String> readStringMap(BinaryReader in) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        for (int e = in.readVarInt(); e > 0; e--) {
+            String key = in.readString();
+            map.put(key, in.readString());
+        }
+        return map;
+    }
+
+    /**
+     * The flows a run state refers to, each with the nodes and rules that its steps refer to
+     */
+    protected static class FlowTable {
+
+        protected final Map<Flow, Map<String, Integer>> m_elements = new LinkedHashMap<>();
+
+        protected final Map<Flow, Integer> m_indexes = new HashMap<>();
+
+        public void addAll(RunState run) {
+            for (Flow flow : run.m_activeFlows) {
+                indexOf(flow);
+            }
+            for (List<Step> steps : Arrays.asList(run.m_steps, run.m_suspendedSteps)) {
+                for (Step step : steps) {
+                    add(step.m_flow, step.m_node);
+                    if (step.m_ruleResult != null) {
+                        add(step.m_ruleResult.getFlow(), step.m_ruleResult.getRule());
+                    }
+                }
+            }
+        }
+
+        protected void add(Flow flow, Flow.Element element) {
+            Map<String, Integer> elements = m_elements.get(flow);
+            if (elements == null) {
+                elements = new LinkedHashMap<>();
+                m_elements.put(flow, elements);
+                m_indexes.put(flow, m_indexes.size());
+            }
+            if (element != null && !elements.containsKey(element.getUuid())) {
+                elements.put(element.getUuid(), elements.size());
+            }
+        }
+
+        public int indexOf(Flow flow) {
+            add(flow, null);
+            return m_indexes.get(flow);
+        }
+
+        public int indexOf(Flow flow, Flow.Element element) {
+            return m_elements.get(flow).get(element.getUuid());
+        }
+
+        public void write(BinaryWriter out) throws IOException {
+            out.writeVarInt(m_elements.size());
+            for (Map.Entry<Flow, Map<String, Integer>> entry : m_elements.entrySet()) {
+                out.writeUuid(entry.getKey().getUuid());
+                out.writeVarInt(entry.getValue().size());
+                for (String uuid : entry.getValue().keySet()) {
+                    out.writeUuid(uuid);
+                }
+            }
+        }
+    }
+
+    /**
+     * A decoded flow table entry
+     */
+    protected static class FlowEntry {
+
+        protected final Flow m_flow;
+
+        protected final List<Flow.Element> m_elements;
+
+        public FlowEntry(Flow flow, List<Flow.Element> elements) {
+            m_flow = flow;
+            m_elements = elements;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import io.rapidpro.flows.utils.Jsonizable;
+
+import java.util.*;
+
+/**
+ * Describes what changed in a run state since it was last marked clean, i.e. loaded or saved by something which wants
+ * deltas, so that the changes can be saved without rewriting the whole run state. A run state which has never been
+ * marked clean gives a full delta, meaning the whole run state should be saved.
+ */
+public class RunStateDelta implements Jsonizable {
+
+    protected final boolean m_full;
+
+    protected final List<Step> m_addedSteps = new ArrayList<>();
+
+    protected final List<Step> m_removedSteps = new ArrayList<>();
+
+    protected final List<ValueChange> m_valueChanges = new ArrayList<>();
+
+    protected final Map<String, String> m_changedExtra = new LinkedHashMap<>();
+
+    protected final Set<String> m_removedExtra = new LinkedHashSet<>();
+
+    protected final Map<String, String> m_changedFields = new LinkedHashMap<>();
+
+    protected final Set<String> m_removedFields = new LinkedHashSet<>();
+
+    protected final Set<String> m_addedGroups = new LinkedHashSet<>();
+
+    protected final Set<String> m_removedGroups = new LinkedHashSet<>();
+
+    protected final List<ContactUrn> m_addedUrns = new ArrayList<>();
+
+    protected final List<ContactUrn> m_removedUrns = new ArrayList<>();
+
+    protected final List<Field> m_addedFields = new ArrayList<>();
+
+    protected String m_name;
+
+    protected boolean m_nameChanged;
+
+    protected String m_language;
+
+    protected boolean m_languageChanged;
+
+    protected RunState.State m_previousState;
+
+    protected RunState.State m_state;
+
+    protected boolean m_subflowsChanged;
+
+    protected int m_level;
+
+    protected List<Flow> m_activeFlows;
+
+    protected List<Step> m_suspendedSteps;
+
+    /**
+     * Creates a delta of the given run state against its baseline
+     * @param baseline the baseline, or null for a full delta
+     * @param run the run state
+     */
+    protected RunStateDelta(Baseline baseline, RunState run) {
+        m_full = baseline == null;
+        m_state = run.m_state;
+
+        if (baseline == null) {
+            m_previousState = null;
+            return;
+        }
+        m_previousState = baseline.m_state;
+
+        diffSteps(baseline.m_steps, run.m_steps, m_addedSteps, m_removedSteps);
+
+        for (int level = 0; level < Math.max(baseline.m_values.size(), run.m_values.size()); level++) {
+            Map<String, Value> before = level < baseline.m_values.size() ? baseline.m_values.get(level) : Collections.<String, Value>emptyMap();
+            Map<String, Value> after = level < run.m_values.size() ? run.m_values.get(level) : Collections.<String, Value>emptyMap();
+
+            for (Map.Entry<String, Value> entry : after.entrySet()) {
+                if (before.get(entry.getKey()) != entry.getValue()) {
+                    m_valueChanges.add(new ValueChange(level, entry.getKey(), entry.getValue()));
+                }
+            }
+            for (String key : before.keySet()) {
+                if (!after.containsKey(key)) {
+                    m_valueChanges.add(new ValueChange(level, key, null));
+                }
+            }
+        }
+
+        diffMaps(baseline.m_extra, run.m_extra, m_changedExtra, m_removedExtra);
+
+        Contact contact = run.m_contact;
+        diffMaps(baseline.m_fields, contact.m_fields, m_changedFields, m_removedFields);
+
+        for (String group : contact.m_groups) {
+            if (!baseline.m_groups.contains(group)) {
+                m_addedGroups.add(group);
+            }
+        }
+        for (String group : baseline.m_groups) {
+            if (!contact.m_groups.contains(group)) {
+                m_removedGroups.add(group);
+            }
+        }
+
+        for (ContactUrn urn : contact.m_urns) {
+            if (!baseline.m_urns.contains(urn)) {
+                m_addedUrns.add(urn);
+            }
+        }
+        for (ContactUrn urn : baseline.m_urns) {
+            if (!contact.m_urns.contains(urn)) {
+                m_removedUrns.add(urn);
+            }
+        }
+
+        m_name = contact.m_name;
+        m_nameChanged = !Objects.equals(baseline.m_name, contact.m_name);
+        m_language = contact.m_language;
+        m_languageChanged = !Objects.equals(baseline.m_language, contact.m_language);
+
+        // fields are only ever appended to a run's fields
+        m_addedFields.addAll(run.m_fields.subList(baseline.m_fieldCount, run.m_fields.size()));
+
+        m_subflowsChanged = baseline.m_level != run.m_level
+                || !sameItems(baseline.m_activeFlows, run.m_activeFlows)
+                || !sameItems(baseline.m_suspendedSteps, run.m_suspendedSteps);
+        if (m_subflowsChanged) {
+            m_level = run.m_level;
+            m_activeFlows = new ArrayList<>(run.m_activeFlows);
+            m_suspendedSteps = new ArrayList<>(run.m_suspendedSteps);
+        }
+    }
+
+    protected static void diffSteps(List<Step> before, List<Step> after, List<Step> added, List<Step> removed) {
+        Set<Step> beforeSet = Collections.newSetFromMap(new IdentityHashMap<Step, Boolean>());
+        beforeSet.addAll(before);
+        Set<Step> afterSet = Collections.newSetFromMap(new IdentityHashMap<Step, Boolean>());
+        afterSet.addAll(after);
+
+        for (Step step : after) {
+            if (!beforeSet.contains(step)) {
+                added.add(step);
+            }
+        }
+        for (Step step : before) {
+            if (!afterSet.contains(step)) {
+                removed.add(step);
+            }
+        }
+    }
+
+    protected static void diffMaps(Map<String, String> before, Map<String, String> after, Map<String, String> changed, Set<String> removed) {
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (!before.containsKey(entry.getKey()) || !Objects.equals(before.get(entry.getKey()), entry.getValue())) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+    }
+
+    protected static boolean sameItems(List<?> before, List<?> after) {
+        if (before.size() != after.size()) {
+            return false;
+        }
+        for (int i = 0; i < before.size(); i++) {
+            if (before.get(i) != after.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether the run state has no baseline and so should be saved in full
+     */
+    public boolean isFull() {
+        return m_full;
+    }
+
+    /**
+     * Gets whether nothing has changed
+     */
+    public boolean isEmpty() {
+        return !m_full && m_addedSteps.isEmpty() && m_removedSteps.isEmpty() && m_valueChanges.isEmpty()
+                && m_changedExtra.isEmpty() && m_removedExtra.isEmpty() && !isContactChanged()
+                && m_addedFields.isEmpty() && !isStateChanged() && !m_subflowsChanged;
+    }
+
+    public List<Step> getAddedSteps() {
+        return m_addedSteps;
+    }
+
+    public List<Step> getRemovedSteps() {
+        return m_removedSteps;
+    }
+
+    public List<ValueChange> getValueChanges() {
+        return m_valueChanges;
+    }
+
+    public Map<String, String> getChangedExtra() {
+        return m_changedExtra;
+    }
+
+    public Set<String> getRemovedExtra() {
+        return m_removedExtra;
+    }
+
+    /**
+     * Gets whether any of the contact's name, language, URNs, groups or fields changed
+     */
+    public boolean isContactChanged() {
+        return m_nameChanged || m_languageChanged || !m_addedUrns.isEmpty() || !m_removedUrns.isEmpty()
+                || !m_addedGroups.isEmpty() || !m_removedGroups.isEmpty()
+                || !m_changedFields.isEmpty() || !m_removedFields.isEmpty();
+    }
+
+    public Map<String, String> getChangedFields() {
+        return m_changedFields;
+    }
+
+    public Set<String> getRemovedFields() {
+        return m_removedFields;
+    }
+
+    public Set<String> getAddedGroups() {
+        return m_addedGroups;
+    }
+
+    public Set<String> getRemovedGroups() {
+        return m_removedGroups;
+    }
+
+    public List<ContactUrn> getAddedUrns() {
+        return m_addedUrns;
+    }
+
+    public List<ContactUrn> getRemovedUrns() {
+        return m_removedUrns;
+    }
+
+    /**
+     * Gets the contact fields created by the run, e.g. by saving to a field which didn't exist
+     */
+    public List<Field> getAddedFields() {
+        return m_addedFields;
+    }
+
+    public boolean isNameChanged() {
+        return m_nameChanged;
+    }
+
+    public boolean isLanguageChanged() {
+        return m_languageChanged;
+    }
+
+    public boolean isStateChanged() {
+        return !m_full && m_previousState != m_state;
+    }
+
+    public RunState.State getPreviousState() {
+        return m_previousState;
+    }
+
+    public RunState.State getState() {
+        return m_state;
+    }
+
+    /**
+     * Gets whether the run entered or exited any subflows, i.e. its level, active flows or suspended steps changed.
+     * These are small so are saved in full when they change.
+     */
+    public boolean isSubflowsChanged() {
+        return m_subflowsChanged;
+    }
+
+    /**
+     * Gets the new level if the subflows changed
+     */
+    public int getLevel() {
+        return m_level;
+    }
+
+    /**
+     * Gets the new active flows if the subflows changed, otherwise null
+     */
+    public List<Flow> getActiveFlows() {
+        return m_activeFlows;
+    }
+
+    /**
+     * Gets the new suspended steps if the subflows changed, otherwise null
+     */
+    public List<Step> getSuspendedSteps() {
+        return m_suspendedSteps;
+    }
+
+    /**
+     * @see Jsonizable#toJson()
+     */
+    @Override
+    public JsonElement toJson() {
+        JsonObject obj = JsonUtils.object("full", m_full, "state", m_state.name().toLowerCase());
+        if (m_full) {
+            return obj;
+        }
+
+        if (isStateChanged()) {
+            obj.addProperty("previous_state", m_previousState.name().toLowerCase());
+        }
+        if (!m_addedSteps.isEmpty()) {
+            obj.add("added_steps", JsonUtils.toJsonArray(m_addedSteps));
+        }
+        if (!m_removedSteps.isEmpty()) {
+            obj.addProperty("removed_steps", m_removedSteps.size());
+        }
+        if (!m_valueChanges.isEmpty()) {
+            obj.add("values", JsonUtils.toJsonArray(m_valueChanges));
+        }
+        addChanges(obj, "extra", m_changedExtra, m_removedExtra);
+
+        if (!m_addedFields.isEmpty()) {
+            obj.add("added_fields", JsonUtils.toJsonArray(m_addedFields));
+        }
+        if (m_subflowsChanged) {
+            List<String> flowUuids = new ArrayList<>();
+            for (Flow flow : m_activeFlows) {
+                flowUuids.add(flow.getUuid());
+            }
+            obj.addProperty("level", m_level);
+            obj.add("active_flows", JsonUtils.toJsonArray(flowUuids));
+            obj.add("suspended_steps", JsonUtils.toJsonArray(m_suspendedSteps));
+        }
+
+        if (isContactChanged()) {
+            JsonObject contact = new JsonObject();
+            if (m_nameChanged) {
+                contact.add("name", JsonUtils.toJson(m_name));
+            }
+            if (m_languageChanged) {
+                contact.add("language", JsonUtils.toJson(m_language));
+            }
+            addChanges(contact, "fields", m_changedFields, m_removedFields);
+            if (!m_addedGroups.isEmpty()) {
+                contact.add("added_groups", JsonUtils.toJsonArray(m_addedGroups));
+            }
+            if (!m_removedGroups.isEmpty()) {
+                contact.add("removed_groups", JsonUtils.toJsonArray(m_removedGroups));
+            }
+            if (!m_addedUrns.isEmpty()) {
+                contact.add("added_urns", JsonUtils.toJsonArray(m_addedUrns));
+            }
+            if (!m_removedUrns.isEmpty()) {
+                contact.add("removed_urns", JsonUtils.toJsonArray(m_removedUrns));
+            }
+            obj.add("contact", contact);
+        }
+        return obj;
+    }
+
+    protected static void addChanges(JsonObject obj, String name, Map<String, String> changed, Set<String> removed) {
+        if (!changed.isEmpty()) {
+            obj.add("changed_" + name, JsonUtils.toJsonObject(changed));
+        }
+        if (!removed.isEmpty()) {
+            obj.add("removed_" + name, JsonUtils.toJsonArray(removed));
+        }
+    }
+
+    /**
+     * A value which was set or removed at a given flow level
+     */
+    public static class ValueChange implements Jsonizable {
+
+        protected final int m_level;
+
+        protected final String m_key;
+
+        protected final Value m_value;
+
+        public ValueChange(int level, String key, Value value) {
+            m_level = level;
+            m_key = key;
+            m_value = value;
+        }
+
+        /**
+         * @see Jsonizable#toJson()
+         */
+        @Override
+        public JsonElement toJson() {
+            return JsonUtils.object("level", m_level, "key", m_key, "value", m_value);
+        }
+
+        public int getLevel() {
+            return m_level;
+        }
+
+        public String getKey() {
+            return m_key;
+        }
+
+        /**
+         * Gets the new value, or null if the value was removed
+         */
+        public Value getValue() {
+            return m_value;
+        }
+    }
+
+    /**
+     * The parts of a run state which deltas are taken against. Collections are copied but the steps and values in
+     * them aren't, as they're replaced rather than modified once saved.
+     */
+    protected static class Baseline {
+
+        protected final List<Step> m_steps;
+
+        protected final List<Map<String, Value>> m_values;
+
+        protected final Map<String, String> m_extra;
+
+        protected final RunState.State m_state;
+
+        protected final int m_level;
+
+        protected final List<Flow> m_activeFlows;
+
+        protected final List<Step> m_suspendedSteps;
+
+        protected final String m_name;
+
+        protected final String m_language;
+
+        protected final List<ContactUrn> m_urns;
+
+        protected final Set<String> m_groups;
+
+        protected final Map<String, String> m_fields;
+
+        protected final int m_fieldCount;
+
+        public Baseline(RunState run) {
+            m_steps = new ArrayList<>(run.m_steps);
+            m_values = new ArrayList<>();
+            for (Map<String, Value> values : run.m_values) {
+                m_values.add(new HashMap<>(values));
+            }
+            m_extra = new HashMap<>(run.m_extra);
+            m_state = run.m_state;
+            m_level = run.m_level;
+            m_activeFlows = new ArrayList<>(run.m_activeFlows);
+            m_suspendedSteps = new ArrayList<>(run.m_suspendedSteps);
+
+            Contact contact = run.m_contact;
+            m_name = contact.m_name;
+            m_language = contact.m_language;
+            m_urns = new ArrayList<>(contact.m_urns);
+            m_groups = new HashSet<>(contact.m_groups);
+            m_fields = new HashMap<>(contact.m_fields);
+            m_fieldCount = run.m_fields.size();
+        }
+    }
+}
@@ -2,37 +2,94 @@ package io.rapidpro.flows.runner;
 
 import io.rapidpro.expressions.EvaluatedTemplate;
 import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.expressions.evaluator.Evaluator;
+import io.rapidpro.flows.definition.CompiledFlow;
 import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.Rule;
 import io.rapidpro.flows.definition.RuleSet;
+import io.rapidpro.flows.definition.TemplateFolding;
+import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.definition.tests.location.HasDistrictTest;
+import io.rapidpro.flows.definition.tests.location.HasStateTest;
+import io.rapidpro.flows.definition.tests.location.HasWardTest;
+import io.rapidpro.flows.utils.ConcurrentCache;
 import org.apache.commons.lang3.StringUtils;
 import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.ZoneId;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Implementation of the flow runner
+ * Implementation of the flow runner. A runner is thread-safe and is intended to be shared by all threads, so long as
+ * its evaluator and location resolver are too. Run states are not thread-safe, so a run should only be started or
+ * resumed by one thread at a time.
  */
 public class Runner {
 
-    protected Evaluator m_templateEvaluator;
+    protected static final int DATE_TEMPLATE_CACHE_SIZE = 1000;
 
-    protected Location.Resolver m_locationResolver;
+    protected final Evaluator m_templateEvaluator;
 
-    protected Instant m_now;
+    protected final Location.Resolver m_locationResolver;
 
-    protected Map<String,Flow> m_flows;
+    protected final Location.AsyncResolver m_asyncLocationResolver;
+
+    protected final Instant m_now;
+
+    protected final FlowRegistry m_flows;
+
+    protected final ConcurrentCache<DateTemplate, String> m_dateTemplates;
+
+    protected final boolean m_combineRegexes;
+
+    protected final long m_regexTimeout;
+
+    protected final AtomicLong m_regexTimeouts;
 
     public Runner(Evaluator templateEvaluator, Location.Resolver locationResolver, Instant now, List<Flow> flows) {
+        this(templateEvaluator, locationResolver, null, now, flows);
+    }
+
+    public Runner(Evaluator templateEvaluator, Location.Resolver locationResolver, Location.AsyncResolver asyncLocationResolver, Instant now, List<Flow> flows) {
+        this(templateEvaluator, locationResolver, asyncLocationResolver, now, flows, false, 0);
+    }
+
+    /**
+     * Creates a new runner
+     * @param combineRegexes whether rule sets should match their regex tests with a single automaton
+     * @param regexTimeout the time limit in milliseconds for evaluating a regex test, or 0 for no limit
+     */
+    public Runner(Evaluator templateEvaluator, Location.Resolver locationResolver, Location.AsyncResolver asyncLocationResolver, Instant now, List<Flow> flows, boolean combineRegexes, long regexTimeout) {
         m_templateEvaluator = templateEvaluator;
         m_locationResolver = locationResolver;
+        m_asyncLocationResolver = asyncLocationResolver;
         m_now = now;
+        m_flows = new FlowRegistry(flows);
+        m_dateTemplates = new ConcurrentCache<>(DATE_TEMPLATE_CACHE_SIZE);
+        m_combineRegexes = combineRegexes;
+        m_regexTimeout = regexTimeout;
+        m_regexTimeouts = new AtomicLong();
+    }
 
-        // create a map of flow uuid to flow
-        m_flows = new HashMap<>();
-        for (Flow flow : flows) {
-            m_flows.put(flow.getUuid(), flow);
-        }
+    /**
+     * Creates a runner which shares everything with the given runner except its location resolver
+     * @param runner the runner
+     * @param locationResolver the location resolver
+     */
+    protected Runner(Runner runner, Location.Resolver locationResolver) {
+        m_templateEvaluator = runner.m_templateEvaluator;
+        m_locationResolver = locationResolver;
+        m_asyncLocationResolver = null;
+        m_now = runner.m_now;
+        m_flows = runner.m_flows;
+        m_dateTemplates = runner.m_dateTemplates;
+        m_combineRegexes = runner.m_combineRegexes;
+        m_regexTimeout = runner.m_regexTimeout;
+        m_regexTimeouts = runner.m_regexTimeouts;
     }
 
     /**
@@ -58,10 +115,312 @@ public class Runner {
      * @return the run state
      */
     public RunState start(Org org, List<Field> fields, Contact contact, Flow flow) throws FlowRunException {
-        m_flows.put(flow.getUuid(), flow);
+        m_flows.register(flow);
         return start(org, fields, contact, flow.getUuid());
     }
 
+    /**
+     * Starts a new run which shares the org and fields of a registered org
+     * @param org the registered org
+     * @param contact the contact
+     * @param flowUuid the id of the flow to start
+     * @return the run state
+     */
+    public RunState start(OrgRegistry.Entry org, Contact contact, String flowUuid) throws FlowRunException {
+        RunState run = new RunState(org, contact, m_flows);
+        run.setActiveFlow(m_flows.get(flowUuid));
+        return resume(run, null);
+    }
+
+    /**
+     * Starts a new run which shares the org and fields of a registered org
+     * @param org the registered org
+     * @param contact the contact
+     * @param flow the flow to start
+     * @return the run state
+     */
+    public RunState start(OrgRegistry.Entry org, Contact contact, Flow flow) throws FlowRunException {
+        m_flows.register(flow);
+        return start(org, contact, flow.getUuid());
+    }
+
+    /**
+     * Starts new runs for the given contacts, spread across the shared worker pool
+     * @param org the org
+     * @param fields the contact fields
+     * @param contacts the contacts
+     * @param flowUuid the id of the flow to start
+     * @return the result of each run, in the same order as the contacts
+     */
+    public List<BatchResult> startAll(Org org, List<Field> fields, List<Contact> contacts, String flowUuid) throws InterruptedException {
+        return startAll(org, fields, contacts, flowUuid, getDefaultExecutor());
+    }
+
+    /**
+     * Starts new runs for the given contacts, spread across the given executor. Each run gets its own copy of the
+     * fields list, so fields created by a run are only visible through that run's state.
+     * @param org the org
+     * @param fields the contact fields
+     * @param contacts the contacts
+     * @param flowUuid the id of the flow to start
+     * @param executor the executor to run on
+     * @return the result of each run, in the same order as the contacts
+     */
+    public List<BatchResult> startAll(final Org org, final List<Field> fields, List<Contact> contacts, final String flowUuid, ExecutorService executor) throws InterruptedException {
+        List<Callable<BatchResult>> tasks = new ArrayList<>(contacts.size());
+        for (final Contact contact : contacts) {
+            tasks.add(new Callable<BatchResult>() {
+                @Override
+                public BatchResult call() {
+                    RunState run = new RunState(org, new ArrayList<>(fields), contact, m_flows);
+                    run.setActiveFlow(m_flows.get(flowUuid));
+                    return resumeForBatch(run, null);
+                }
+            });
+        }
+        return invokeAll(tasks, executor);
+    }
+
+    /**
+     * Starts new runs for the given contacts which share the org and fields of a registered org, spread across the
+     * shared worker pool
+     * @param org the registered org
+     * @param contacts the contacts
+     * @param flowUuid the id of the flow to start
+     * @return the result of each run, in the same order as the contacts
+     */
+    public List<BatchResult> startAll(OrgRegistry.Entry org, List<Contact> contacts, String flowUuid) throws InterruptedException {
+        return startAll(org, contacts, flowUuid, getDefaultExecutor());
+    }
+
+    /**
+     * Starts new runs for the given contacts which share the org and fields of a registered org, spread across the
+     * given executor. Runs only copy the fields if they create new ones.
+     * @param org the registered org
+     * @param contacts the contacts
+     * @param flowUuid the id of the flow to start
+     * @param executor the executor to run on
+     * @return the result of each run, in the same order as the contacts
+     */
+    public List<BatchResult> startAll(final OrgRegistry.Entry org, List<Contact> contacts, final String flowUuid, ExecutorService executor) throws InterruptedException {
+        List<Callable<BatchResult>> tasks = new ArrayList<>(contacts.size());
+        for (final Contact contact : contacts) {
+            tasks.add(new Callable<BatchResult>() {
+                @Override
+                public BatchResult call() {
+                    RunState run = new RunState(org, contact, m_flows);
+                    run.setActiveFlow(m_flows.get(flowUuid));
+                    return resumeForBatch(run, null);
+                }
+            });
+        }
+        return invokeAll(tasks, executor);
+    }
+
+    /**
+     * Resumes existing runs with new inputs, spread across the shared worker pool
+     * @param runs the previous run states
+     * @param inputs the new inputs, one for each run
+     * @return the result of each run, in the same order as the runs
+     */
+    public List<BatchResult> resumeAll(List<RunState> runs, List<Input> inputs) throws InterruptedException {
+        return resumeAll(runs, inputs, getDefaultExecutor());
+    }
+
+    /**
+     * Resumes existing runs with new inputs, spread across the given executor. Runs must be for different contacts
+     * as they are resumed concurrently.
+     * @param runs the previous run states
+     * @param inputs the new inputs, one for each run
+     * @param executor the executor to run on
+     * @return the result of each run, in the same order as the runs
+     */
+    public List<BatchResult> resumeAll(List<RunState> runs, List<Input> inputs, ExecutorService executor) throws InterruptedException {
+        if (runs.size() != inputs.size()) {
+            throw new IllegalArgumentException("Number of runs and inputs must match");
+        }
+
+        // look up the locations that the runs are going to need in as few calls to the resolver as possible
+        final Runner runner = prefetchLocations(runs, inputs);
+
+        List<Callable<BatchResult>> tasks = new ArrayList<>(runs.size());
+        for (int r = 0; r < runs.size(); r++) {
+            final RunState run = runs.get(r);
+            final Input input = inputs.get(r);
+            tasks.add(new Callable<BatchResult>() {
+                @Override
+                public BatchResult call() {
+                    return runner.resumeForBatch(run, input);
+                }
+            });
+        }
+        return invokeAll(tasks, executor);
+    }
+
+    /**
+     * If our location resolver is a batch resolver, resolves the locations which the location tests of the rule sets
+     * the given runs are waiting at will look up, and returns a runner which uses those results. Otherwise returns
+     * this runner.
+     * @param runs the runs to be resumed
+     * @param inputs the new inputs, one for each run
+     * @return the runner to resume the runs with
+     */
+    protected Runner prefetchLocations(List<RunState> runs, List<Input> inputs) {
+        if (!(m_locationResolver instanceof Location.BatchResolver)) {
+            return this;
+        }
+
+        LocationBatch batch = new LocationBatch(m_locationResolver);
+
+        for (int r = 0; r < runs.size(); r++) {
+            RunState run = runs.get(r);
+            String country = run.getOrg().getCountry();
+            List<Step> steps = run.getSteps();
+            if (StringUtils.isEmpty(country) || run.getState() == RunState.State.COMPLETED || steps.isEmpty()) {
+                continue;
+            }
+
+            Flow.Node node = steps.get(steps.size() - 1).getNode();
+            if (!(node instanceof RuleSet)) {
+                continue;
+            }
+
+            RuleSet ruleset = (RuleSet) node;
+            EvaluationContext context = null;
+            String operand = null;
+
+            for (Rule rule : ruleset.getRules()) {
+                Test test = rule.getTest();
+                if (!(test instanceof HasStateTest || test instanceof HasDistrictTest || test instanceof HasWardTest)) {
+                    continue;
+                }
+
+                if (context == null) {
+                    context = run.buildContext(this, inputs.get(r));
+                    operand = ruleset.evaluateOperand(this, context);
+                }
+
+                if (test instanceof HasStateTest) {
+                    batch.add(country, operand);
+                } else if (test instanceof HasDistrictTest) {
+                    EvaluatedTemplate state = substituteVariables(((HasDistrictTest) test).getState(), context);
+                    if (!state.hasErrors()) {
+                        batch.add(country, state.getOutput(), operand);
+                    }
+                } else {
+                    EvaluatedTemplate state = substituteVariables(((HasWardTest) test).getState(), context);
+                    EvaluatedTemplate district = substituteVariables(((HasWardTest) test).getDistrict(), context);
+                    if (!state.hasErrors() && !district.hasErrors()) {
+                        batch.add(country, state.getOutput(), district.getOutput(), operand);
+                    }
+                }
+            }
+
+            if (context != null) {
+                run.invalidateContext();
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return this;
+        }
+
+        batch.prefetch();
+        return new Runner(this, batch);
+    }
+
+    /**
+     * Resumes a single run in a batch, capturing rather than throwing any flow run exception
+     */
+    protected BatchResult resumeForBatch(RunState run, Input input) {
+        try {
+            return new BatchResult(resume(run, input), null);
+        } catch (FlowRunException e) {
+            return new BatchResult(run, e);
+        }
+    }
+
+    /**
+     * Runs the given batch tasks, running them inline if there's only one
+     */
+    protected static List<BatchResult> invokeAll(List<Callable<BatchResult>> tasks, ExecutorService executor) throws InterruptedException {
+        List<BatchResult> results = new ArrayList<>(tasks.size());
+
+        if (tasks.size() == 1) {
+            try {
+                results.add(tasks.get(0).call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return results;
+        }
+
+        for (Future<BatchResult> future : executor.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // anything other than a flow run exception is a bug so shouldn't be swallowed
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the worker pool used for batch operations when no executor is provided
+     */
+    protected static ExecutorService getDefaultExecutor() {
+        return DefaultExecutorHolder.s_executor;
+    }
+
+    /**
+     * Lazily creates the default worker pool with a thread per core
+     */
+    private static class DefaultExecutorHolder {
+        static final ExecutorService s_executor = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The result of a single run in a batch operation
+     */
+    public static class BatchResult {
+
+        protected RunState m_run;
+
+        protected FlowRunException m_error;
+
+        public BatchResult(RunState run, FlowRunException error) {
+            m_run = run;
+            m_error = error;
+        }
+
+        /**
+         * Whether this run completed without error
+         */
+        public boolean isSuccess() {
+            return m_error == null;
+        }
+
+        public RunState getRun() {
+            return m_run;
+        }
+
+        /**
+         * Gets the error which stopped this run, or null if there was no error
+         */
+        public FlowRunException getError() {
+            return m_error;
+        }
+    }
+
     /**
      * Resumes an existing run with new input
      * @param run the previous run state
@@ -78,89 +437,101 @@ public class Runner {
         // reset steps list so that it doesn't grow forever in a never-ending flow
         run.getSteps().clear();
 
-        Flow.Node currentNode;
+        // the contact may have been changed since the run was last resumed
+        run.invalidateContext();
+
+        CompiledFlow flow = run.getActiveFlow().getCompiled();
+        int current;
         if (lastStep != null) {
-            currentNode = lastStep.getNode(); // we're resuming an existing run
+            current = lastStep.getNode().getIndex(); // we're resuming an existing run
         }
         else {
-            currentNode = run.getActiveFlow().getEntry();  // we're starting a new run
-            if (currentNode == null) {
+            current = flow.getEntry();  // we're starting a new run
+            if (current == CompiledFlow.NONE) {
                 throw new FlowRunException("Flow has no entry point");
             }
         }
 
         // tracks nodes visited so we can detect loops
-        Set<Flow.Node> nodesVisited = new LinkedHashSet<>();
+        VisitTracker visits = new VisitTracker();
 
         Step resumeStep = null;
-        while (currentNode != null) {
+        while (current != CompiledFlow.NONE) {
             // if we're resuming a previously paused step, then use its arrived on value
             Instant arrivedOn;
-            if (lastStep != null && nodesVisited.size() == 0) {
+            if (lastStep != null && visits.isEmpty()) {
                 arrivedOn = lastStep.getArrivedOn();
             } else {
                 arrivedOn = Instant.now();
             }
 
-            // create our step for the current node
-            Step step = new Step(run.getActiveFlow(), currentNode, arrivedOn);
+            // each step gets a fresh context which is then shared by its actions and rules
+            run.invalidateContext();
+
+            Step step;
 
             // if we are resuming an old step, use that instead
             if (resumeStep != null) {
                 step = resumeStep;
-                currentNode = step.getNode();
             }
-            // otherwise add our step to our step list
+            // otherwise create our step for the current node and add it to our step list
             else {
+                step = new Step(run.getActiveFlow(), flow.getNode(current), arrivedOn);
                 run.getSteps().add(step);
-            }
 
-            // see if we need to dive into a subflow
-            if (currentNode instanceof RuleSet) {
-                RuleSet ruleset = (RuleSet) currentNode;
-                if (resumeStep == null && ruleset.isSubflow() && (lastStep == null || !ruleset.getUuid().equals(lastStep.getNode().getUuid()))) {
-                    run.enterSubflow(step, ruleset.getSubflowUuid());
-                    currentNode = run.getActiveFlow().getEntry();
+                // see if we need to dive into a subflow
+                if (flow.getKind(current) == CompiledFlow.RULE_SET) {
+                    RuleSet ruleset = flow.getRuleSet(current);
+                    if (ruleset.isSubflow() && (lastStep == null || lastStep.getNode() != ruleset)) {
+                        run.enterSubflow(step, ruleset.getSubflowUuid());
+                        flow = run.getActiveFlow().getCompiled();
+                        current = flow.getEntry();
+                        if (current == CompiledFlow.NONE) {
+                            throw new FlowRunException("Flow has no entry point");
+                        }
 
-                    // create our new step accordingly
-                    step = new Step(run.getActiveFlow(), currentNode, arrivedOn);
-                    run.getSteps().add(step);
+                        // create our new step accordingly
+                        step = new Step(run.getActiveFlow(), flow.getNode(current), arrivedOn);
+                        run.getSteps().add(step);
+                    }
                 }
             }
 
             // no longer resuming
             resumeStep = null;
 
+            int kind = flow.getKind(current);
+
             // should we pause at this node?
-            if (currentNode instanceof RuleSet) {
-                RuleSet ruleset = (RuleSet) currentNode;
+            if (kind == CompiledFlow.RULE_SET) {
+                RuleSet ruleset = flow.getRuleSet(current);
 
                 if (ruleset.isPause() && (input == null || input.isConsumed())) {
-                    // set our waiting state appropriately
-                    if (ruleset.getRuleSetType() == RuleSet.Type.WAIT_GPS) {
-                        run.setState(RunState.State.WAIT_GPS);
-                    } else if (ruleset.getRuleSetType() == RuleSet.Type.WAIT_PHOTO) {
-                        run.setState(RunState.State.WAIT_PHOTO);
-                    } else if (ruleset.getRuleSetType() == RuleSet.Type.WAIT_VIDEO) {
-                        run.setState(RunState.State.WAIT_VIDEO);
-                    } else if (ruleset.getRuleSetType() == RuleSet.Type.WAIT_AUDIO) {
-                        run.setState(RunState.State.WAIT_AUDIO);
-                    } else {
-                        run.setState(RunState.State.WAIT_MESSAGE);
-                    }
+                    run.setState(getWaitState(ruleset));
                     return run;
                 }
             }
 
             // check for an non-pausing loop
-            if (nodesVisited.contains(currentNode)) {
-                throw new FlowLoopException(nodesVisited);
-            } else {
-                nodesVisited.add(currentNode);
+            if (!visits.visit(flow, current)) {
+                throw new FlowLoopException(visits.getPath());
+            }
+
+            int next;
+            switch (kind) {
+                case CompiledFlow.ACTION_SET:
+                    flow.getActionSet(current).execute(this, run, step, input);
+                    next = flow.getDestination(current);
+                    break;
+                case CompiledFlow.RULE_SET:
+                    int rule = flow.getRuleSet(current).evaluate(this, run, step, input);
+                    next = rule >= 0 ? flow.getRuleDestination(current, rule) : CompiledFlow.NONE;
+                    break;
+                default:
+                    throw new FlowRunException("Unrecognized node type");
             }
 
-            Flow.Node nextNode = currentNode.visit(this, run, step, input);
-            if (nextNode != null) {
+            if (next != CompiledFlow.NONE) {
                 // if we have a next node, then record leaving this one
                 step.setLeftOn(Instant.now());
             }
@@ -176,16 +547,199 @@ public class Runner {
                 // otherwise, we are going up a level
                 else {
                     resumeStep = run.exitSubflow();
-                    nextNode = resumeStep.getNode();
+                    flow = run.getActiveFlow().getCompiled();
+                    next = resumeStep.getNode().getIndex();
                 }
             }
 
-            currentNode = nextNode;
+            current = next;
         }
 
         return run;
     }
 
+    /**
+     * Resumes an existing run with new input without blocking on location lookups, which are made using the
+     * asynchronous location resolver if this runner has one. The callback receives an updated copy of the run state,
+     * and the given run state is left unchanged.
+     * @param run the previous run state
+     * @param input the new input
+     * @param callback the callback to notify with the updated run state
+     */
+    public void resumeAsync(RunState run, Input input, ResumeCallback callback) {
+        if (run.getState().equals(RunState.State.COMPLETED)) {
+            callback.onFailed(new FlowRunException("Cannot resume a completed run"));
+            return;
+        }
+
+        new AsyncResume(this, getAsyncLocationResolver(), run, input, callback).attempt();
+    }
+
+    /**
+     * Gets the asynchronous location resolver, adapting the regular resolver if we don't have one
+     */
+    protected Location.AsyncResolver getAsyncLocationResolver() {
+        if (m_asyncLocationResolver != null) {
+            return m_asyncLocationResolver;
+        }
+
+        return new Location.AsyncResolver() {
+            @Override
+            public void resolveAsync(String text, String country, Location.Level level, Location parent, Location.Callback callback) {
+                Location location;
+                try {
+                    location = parseLocation(text, country, level, parent);
+                } catch (RuntimeException e) {
+                    callback.onFailed(e);
+                    return;
+                }
+                callback.onResolved(location);
+            }
+        };
+    }
+
+    /**
+     * Callback for asynchronous resumes
+     */
+    public interface ResumeCallback {
+        /**
+         * Called when the run has been resumed
+         * @param run the updated run state
+         */
+        void onResumed(RunState run);
+
+        /**
+         * Called if the run couldn't be resumed
+         * @param error the error
+         */
+        void onFailed(Exception error);
+    }
+
+    /**
+     * Gets the state a run should be in when paused at the given rule set
+     * @param ruleset the rule set
+     * @return the waiting state
+     */
+    protected static RunState.State getWaitState(RuleSet ruleset) {
+        switch (ruleset.getRuleSetType()) {
+            case WAIT_GPS:
+                return RunState.State.WAIT_GPS;
+            case WAIT_PHOTO:
+                return RunState.State.WAIT_PHOTO;
+            case WAIT_VIDEO:
+                return RunState.State.WAIT_VIDEO;
+            case WAIT_AUDIO:
+                return RunState.State.WAIT_AUDIO;
+            default:
+                return RunState.State.WAIT_MESSAGE;
+        }
+    }
+
+    /**
+     * Tracks the nodes visited during a single resume so that we can detect non-pausing loops. Visited nodes are
+     * recorded as bits in a set per compiled flow.
+     */
+    protected static class VisitTracker {
+
+        protected CompiledFlow m_flow;
+
+        protected BitSet m_visited;
+
+        protected Map<CompiledFlow, BitSet> m_visitedByFlow;
+
+        protected List<Flow.Node> m_path = new ArrayList<>();
+
+        /**
+         * Records a visit to the given node
+         * @param flow the compiled flow
+         * @param index the node index
+         * @return false if the node has already been visited
+         */
+        boolean visit(CompiledFlow flow, int index) {
+            if (flow != m_flow) {
+                if (m_flow != null) {
+                    // we've moved in or out of a subflow so track visits for each flow separately
+                    if (m_visitedByFlow == null) {
+                        m_visitedByFlow = new IdentityHashMap<>();
+                    }
+                    m_visitedByFlow.put(m_flow, m_visited);
+                    m_visited = m_visitedByFlow.get(flow);
+                }
+                if (m_visited == null) {
+                    m_visited = new BitSet(flow.getNodeCount());
+                }
+                m_flow = flow;
+            }
+
+            if (m_visited.get(index)) {
+                return false;
+            }
+            m_visited.set(index);
+            m_path.add(flow.getNode(index));
+            return true;
+        }
+
+        boolean isEmpty() {
+            return m_path.isEmpty();
+        }
+
+        /**
+         * Gets the visited nodes in the order they were visited
+         */
+        List<Flow.Node> getPath() {
+            return m_path;
+        }
+    }
+
+    /**
+     * Key for a date template evaluated in a given timezone and date style on a given day
+     */
+    protected static class DateTemplate {
+
+        protected final String m_template;
+
+        protected final ZoneId m_timezone;
+
+        protected final DateStyle m_dateStyle;
+
+        protected final LocalDate m_date;
+
+        public DateTemplate(String template, ZoneId timezone, DateStyle dateStyle, LocalDate date) {
+            m_template = template;
+            m_timezone = timezone;
+            m_dateStyle = dateStyle;
+            m_date = date;
+        }
+
+        /**
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            DateTemplate that = (DateTemplate) o;
+
+            return m_template.equals(that.m_template)
+                    && m_timezone.equals(that.m_timezone)
+                    && m_dateStyle == that.m_dateStyle
+                    && m_date.equals(that.m_date);
+        }
+
+        /**
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            int result = m_template.hashCode();
+            result = 31 * result + m_timezone.hashCode();
+            result = 31 * result + m_dateStyle.hashCode();
+            result = 31 * result + m_date.hashCode();
+            return result;
+        }
+    }
+
     /**
      * Performs variable substitution on the the given text
      * @param text the text, e.g. "Hi @contact.name"
@@ -193,6 +747,30 @@ public class Runner {
      * @return the evaluated template, e.g. "Hi Joe"
      */
     public EvaluatedTemplate substituteVariables(String text, EvaluationContext context) {
+        TemplateFolding.Kind kind = m_flows.getTemplateKind(text);
+
+        if (kind == TemplateFolding.Kind.CONSTANT) {
+            return new EvaluatedTemplate(text, Collections.<String>emptyList());
+        }
+
+        // date templates evaluate the same for the whole org on a given day, but only if the date variables in the
+        // context were built from its now, which is the case for contexts built by a run
+        if (kind == TemplateFolding.Kind.DATE && context instanceof RunEvaluationContext && context.getVariables().containsKey("date")) {
+            LocalDate today = context.getNow().atZone(context.getTimezone()).toLocalDate();
+            DateTemplate key = new DateTemplate(text, context.getTimezone(), context.getDateStyle(), today);
+
+            String output = m_dateTemplates.get(key);
+            if (output != null) {
+                return new EvaluatedTemplate(output, Collections.<String>emptyList());
+            }
+
+            EvaluatedTemplate evaluated = m_templateEvaluator.evaluateTemplate(text, context);
+            if (!evaluated.hasErrors()) {
+                m_dateTemplates.put(key, evaluated.getOutput());
+            }
+            return evaluated;
+        }
+
         return m_templateEvaluator.evaluateTemplate(text, context);
     }
 
@@ -206,6 +784,13 @@ public class Runner {
         return m_templateEvaluator.evaluateTemplate(text, context, false, Evaluator.EvaluationStrategy.RESOLVE_AVAILABLE);
     }
 
+    /**
+     * Gets the registry of flows known to this runner
+     */
+    public FlowRegistry getFlows() {
+        return m_flows;
+    }
+
     public Evaluator getTemplateEvaluator() {
         return m_templateEvaluator;
     }
@@ -300,7 +885,8 @@ public class Runner {
             }
         }
 
-        run.getContact().getFields().put(field.getKey(), actualValue);
+        run.getContact().setField(field.getKey(), actualValue);
+        run.invalidateContext();
         return field;
     }
 
@@ -311,6 +897,18 @@ public class Runner {
      */
     public void updateExtra(RunState run, Map<String, String> values) {
         run.getExtra().putAll(values);
+        run.invalidateContext();
+    }
+
+    /**
+     * Updates a single value in the extra key value store for the given run state
+     * @param run the run state
+     * @param key the key
+     * @param value the value
+     */
+    public void updateExtra(RunState run, String key, String value) {
+        run.getExtra().put(key, value);
+        run.invalidateContext();
     }
 
     /**
@@ -325,6 +923,28 @@ public class Runner {
         return null;
     }
 
+    public boolean isCombineRegexes() {
+        return m_combineRegexes;
+    }
+
+    public long getRegexTimeout() {
+        return m_regexTimeout;
+    }
+
+    /**
+     * Records that a regex test was abandoned because it exceeded the time limit
+     */
+    public void onRegexTimeout() {
+        m_regexTimeouts.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of regex tests which have exceeded the time limit
+     */
+    public long getRegexTimeoutCount() {
+        return m_regexTimeouts.get();
+    }
+
     public Instant getNow() {
         return m_now;
     }
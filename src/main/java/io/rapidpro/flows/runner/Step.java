@@ -2,21 +2,26 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.expressions.utils.ExpressionUtils;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.RuleSet;
 import io.rapidpro.flows.definition.actions.Action;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
 import org.threeten.bp.Instant;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A step taken by a contact or surveyor in a flow run
  */
-public class Step implements Jsonizable {
+public class Step implements JsonStreamable {
 
     protected Flow.Node m_node;
 
@@ -66,6 +71,57 @@ public class Step implements Jsonizable {
         );
     }
 
+    /**
+     * Reads a step from a stream of JSON
+     * @param in the JSON reader
+     * @param context the deserialization context
+     * @return the step
+     */
+    public static Step readJson(JsonReader in, Flow.DeserializationContext context) throws IOException {
+        String nodeUuid = null, arrivedOn = null, leftOn = null, flowUuid = null;
+        RuleSet.Result ruleResult = null;
+        List<Action> actions = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "node": nodeUuid = JsonUtils.nextString(in); break;
+                case "arrived_on": arrivedOn = JsonUtils.nextString(in); break;
+                case "left_on": leftOn = JsonUtils.nextString(in); break;
+                case "rule":
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                    } else {
+                        ruleResult = RuleSet.Result.readJson(in, context);
+                    }
+                    break;
+                case "actions":
+                    // actions are few and varied so are loaded from trees
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        actions.add(Action.fromJson(new JsonParser().parse(in), context));
+                    }
+                    in.endArray();
+                    break;
+                case "errors": JsonUtils.readStrings(in, errors); break;
+                case "flow_uuid": flowUuid = JsonUtils.nextString(in); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+
+        Flow flow = context.getFlow(flowUuid);
+        return new Step(flow,
+                (Flow.Node) flow.getElementByUuid(nodeUuid),
+                ExpressionUtils.parseJsonDate(arrivedOn),
+                ExpressionUtils.parseJsonDate(leftOn),
+                ruleResult,
+                actions,
+                errors
+        );
+    }
+
     @Override
     public JsonElement toJson() {
         return JsonUtils.object(
@@ -79,6 +135,25 @@ public class Step implements Jsonizable {
         );
     }
 
+    /**
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("node").value(m_node.getUuid());
+        out.name("arrived_on").value(ExpressionUtils.formatJsonDate(m_arrivedOn));
+        out.name("left_on").value(ExpressionUtils.formatJsonDate(m_leftOn));
+        out.name("rule");
+        JsonUtils.write(out, m_ruleResult);
+        out.name("actions");
+        JsonUtils.writeArray(out, m_actions);
+        out.name("errors");
+        JsonUtils.writeArray(out, m_errors);
+        out.name("flow_uuid").value(m_flow.getUuid());
+        out.endObject();
+    }
+
     public Flow.Node getNode() {
         return m_node;
     }
@@ -116,6 +191,10 @@ public class Step implements Jsonizable {
         }
     }
 
+    public void addError(String error) {
+        m_errors.add(error);
+    }
+
     public Flow getFlow() {
         return m_flow;
     }
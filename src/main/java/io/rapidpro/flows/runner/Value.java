@@ -2,20 +2,23 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.expressions.EvaluationContext;
 import io.rapidpro.expressions.evaluator.Conversions;
 import io.rapidpro.expressions.utils.ExpressionUtils;
 import io.rapidpro.flows.utils.JsonUtils;
-import io.rapidpro.flows.utils.Jsonizable;
+import io.rapidpro.flows.utils.JsonStreamable;
+import io.rapidpro.flows.utils.LazyMap;
 import org.threeten.bp.Instant;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
 
 /**
  * Holds the result of a contact's last visit to a ruleset
  */
-public class Value implements Jsonizable {
+public class Value implements JsonStreamable {
 
     protected String m_value;
 
@@ -42,6 +45,29 @@ public class Value implements Jsonizable {
         );
     }
 
+    /**
+     * Reads a value from a stream of JSON
+     * @param in the JSON reader
+     * @return the value
+     */
+    public static Value readJson(JsonReader in) throws IOException {
+        String value = null, category = null, text = null, time = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "value": value = JsonUtils.nextString(in); break;
+                case "category": category = JsonUtils.nextString(in); break;
+                case "text": text = JsonUtils.nextString(in); break;
+                case "time": time = JsonUtils.nextString(in); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return new Value(value, category, text, ExpressionUtils.parseJsonDate(time));
+    }
+
     @Override
     public JsonElement toJson() {
         return JsonUtils.object(
@@ -52,13 +78,31 @@ public class Value implements Jsonizable {
         );
     }
 
-    public Map<String, String> buildContext(EvaluationContext container) {
-        Map<String, String> context = new HashMap<>();
+    /**
+     * @see JsonStreamable#writeJson(JsonWriter)
+     */
+    @Override
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("value").value(m_value);
+        out.name("category").value(m_category);
+        out.name("text").value(m_text);
+        out.name("time").value(ExpressionUtils.formatJsonDate(m_time));
+        out.endObject();
+    }
+
+    public Map<String, String> buildContext(final EvaluationContext container) {
+        LazyMap<String> context = new LazyMap<>(5);
         context.put("*", m_value);
         context.put("value", m_value);
         context.put("category", m_category);
         context.put("text", m_text);
-        context.put("time", Conversions.toString(m_time.atZone(container.getTimezone()), container));
+        context.putDeferred("time", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                return Conversions.toString(m_time.atZone(container.getTimezone()), container);
+            }
+        });
         return context;
     }
 
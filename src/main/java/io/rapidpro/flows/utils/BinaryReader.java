@@ -0,0 +1,148 @@
+package io.rapidpro.flows.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.threeten.bp.Instant;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads values written by {@link BinaryWriter}
+ */
+public class BinaryReader {
+
+    protected final InputStream m_in;
+
+    protected final List<String> m_strings = new ArrayList<>();
+
+    public BinaryReader(InputStream in) {
+        m_in = in;
+    }
+
+    public int readByte() throws IOException {
+        int value = m_in.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readUuid() throws IOException {
+        int tag = readByte();
+        if (tag == BinaryWriter.UUID_BINARY) {
+            long mostSigBits = readFixedLong();
+            return new UUID(mostSigBits, readFixedLong()).toString();
+        } else if (tag == BinaryWriter.UUID_STRING) {
+            return readString();
+        }
+        throw new IOException("Invalid UUID tag: " + tag);
+    }
+
+    protected long readFixedLong() throws IOException {
+        long value = 0;
+        for (int b = 0; b < 8; b++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    public String readString() throws IOException {
+        int ref = readVarInt();
+        if (ref == 0) {
+            return null;
+        } else if (ref > 1) {
+            if (ref - 2 >= m_strings.size()) {
+                throw new IOException("Invalid string reference: " + ref);
+            }
+            return m_strings.get(ref - 2);
+        }
+
+        byte[] bytes = new byte[readVarInt()];
+        int read = 0;
+        while (read < bytes.length) {
+            int count = m_in.read(bytes, read, bytes.length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        m_strings.add(value);
+        return value;
+    }
+
+    public Instant readInstant() throws IOException {
+        if (!readBoolean()) {
+            return null;
+        }
+        long millis = readSignedVarLong();
+        return Instant.ofEpochMilli(millis).plusNanos(readVarInt());
+    }
+
+    public JsonElement readJson() throws IOException {
+        int tag = readByte();
+        switch (tag) {
+            case BinaryWriter.JSON_NULL:
+                return JsonNull.INSTANCE;
+            case BinaryWriter.JSON_TRUE:
+                return new JsonPrimitive(true);
+            case BinaryWriter.JSON_FALSE:
+                return new JsonPrimitive(false);
+            case BinaryWriter.JSON_STRING:
+                return new JsonPrimitive(readString());
+            case BinaryWriter.JSON_NUMBER:
+                // parse rather than convert so that the number is written back exactly as it was
+                return new JsonParser().parse(readString());
+            case BinaryWriter.JSON_ARRAY:
+                JsonArray arr = new JsonArray();
+                for (int i = readVarInt(); i > 0; i--) {
+                    arr.add(readJson());
+                }
+                return arr;
+            case BinaryWriter.JSON_OBJECT:
+                JsonObject obj = new JsonObject();
+                for (int i = readVarInt(); i > 0; i--) {
+                    String name = readString();
+                    obj.add(name, readJson());
+                }
+                return obj;
+            default:
+                throw new IOException("Invalid JSON tag: " + tag);
+        }
+    }
+}
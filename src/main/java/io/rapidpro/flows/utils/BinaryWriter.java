@@ -0,0 +1,173 @@
+package io.rapidpro.flows.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.threeten.bp.Instant;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes values in a compact binary format. Integers are written as varints, instants as milliseconds since the epoch,
+ * and strings are written in full the first time they're written and as references to that after. Read back with
+ * {@link BinaryReader}.
+ */
+public class BinaryWriter {
+
+    // JSON element tags
+    protected static final int JSON_NULL = 0;
+    protected static final int JSON_TRUE = 1;
+    protected static final int JSON_FALSE = 2;
+    protected static final int JSON_STRING = 3;
+    protected static final int JSON_NUMBER = 4;
+    protected static final int JSON_ARRAY = 5;
+    protected static final int JSON_OBJECT = 6;
+
+    // UUID tags
+    protected static final int UUID_BINARY = 0;
+    protected static final int UUID_STRING = 1;
+
+    protected final OutputStream m_out;
+
+    protected final Map<String, Integer> m_strings = new HashMap<>();
+
+    public BinaryWriter(OutputStream out) {
+        m_out = out;
+    }
+
+    public void writeByte(int value) throws IOException {
+        m_out.write(value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        m_out.write(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a non-negative integer as a varint, 7 bits per byte
+     */
+    public void writeVarInt(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            m_out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        m_out.write((int) value);
+    }
+
+    /**
+     * Writes a signed integer as a zig-zag encoded varint so that small negative numbers are also small
+     */
+    public void writeSignedVarLong(long value) throws IOException {
+        writeVarInt((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a UUID, as 16 bytes if it's in the canonical lowercase form and as a string otherwise
+     */
+    public void writeUuid(String value) throws IOException {
+        UUID uuid = parseUuid(value);
+        if (uuid != null) {
+            writeByte(UUID_BINARY);
+            writeFixedLong(uuid.getMostSignificantBits());
+            writeFixedLong(uuid.getLeastSignificantBits());
+        } else {
+            writeByte(UUID_STRING);
+            writeString(value);
+        }
+    }
+
+    protected void writeFixedLong(long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            m_out.write((int) (value >>> shift) & 0xFF);
+        }
+    }
+
+    /**
+     * Parses a UUID only if it will be formatted back to exactly the same string
+     */
+    protected static UUID parseUuid(String value) {
+        if (value == null || value.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(value);
+            return uuid.toString().equals(value) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a string, which may be null. Strings which have been written before are written as references.
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        Integer index = m_strings.get(value);
+        if (index != null) {
+            writeVarInt(index + 2);
+        } else {
+            m_strings.put(value, m_strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(1);
+            writeVarInt(bytes.length);
+            m_out.write(bytes);
+        }
+    }
+
+    /**
+     * Writes an instant, which may be null, as milliseconds since the epoch and any remaining nanoseconds
+     */
+    public void writeInstant(Instant value) throws IOException {
+        writeBoolean(value != null);
+        if (value != null) {
+            long millis = value.toEpochMilli();
+            writeSignedVarLong(millis);
+            writeVarInt(value.getNano() % 1000000);
+        }
+    }
+
+    /**
+     * Writes a JSON element
+     */
+    public void writeJson(JsonElement value) throws IOException {
+        if (value == null || value.isJsonNull()) {
+            writeByte(JSON_NULL);
+        } else if (value.isJsonObject()) {
+            JsonObject obj = value.getAsJsonObject();
+            writeByte(JSON_OBJECT);
+            writeVarInt(obj.entrySet().size());
+            for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+                writeString(entry.getKey());
+                writeJson(entry.getValue());
+            }
+        } else if (value.isJsonArray()) {
+            JsonArray arr = value.getAsJsonArray();
+            writeByte(JSON_ARRAY);
+            writeVarInt(arr.size());
+            for (JsonElement item : arr) {
+                writeJson(item);
+            }
+        } else {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                writeByte(primitive.getAsBoolean() ? JSON_TRUE : JSON_FALSE);
+            } else if (primitive.isNumber()) {
+                writeByte(JSON_NUMBER);
+                writeString(primitive.getAsNumber().toString());
+            } else {
+                writeByte(JSON_STRING);
+                writeString(primitive.getAsString());
+            }
+        }
+    }
+}
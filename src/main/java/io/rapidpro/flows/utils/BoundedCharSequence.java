@@ -0,0 +1,84 @@
+package io.rapidpro.flows.utils;
+
+/**
+ * A character sequence which throws a {@link TimeoutException} if it's still being read after a deadline. Regex
+ * matching reads its input one character at a time, so matching against one of these bounds the time spent
+ * backtracking, however pathological the pattern.
+ */
+public class BoundedCharSequence implements CharSequence {
+
+    // how many reads between checks of the clock
+    protected static final int CHECK_INTERVAL = 1024;
+
+    protected final CharSequence m_inner;
+
+    protected final long m_deadline;
+
+    protected int m_reads;
+
+    /**
+     * Creates a new bounded sequence
+     * @param inner the sequence to wrap
+     * @param deadline the deadline as a {@link System#nanoTime()} value
+     */
+    public BoundedCharSequence(CharSequence inner, long deadline) {
+        m_inner = inner;
+        m_deadline = deadline;
+    }
+
+    /**
+     * Creates a new bounded sequence which can be read for the given time from now
+     * @param inner the sequence to wrap
+     * @param timeoutMillis the time limit in milliseconds
+     */
+    public static BoundedCharSequence withTimeout(CharSequence inner, long timeoutMillis) {
+        return new BoundedCharSequence(inner, System.nanoTime() + timeoutMillis * 1000000L);
+    }
+
+    /**
+     * @see CharSequence#charAt(int)
+     */
+    @Override
+    public char charAt(int index) {
+        if (++m_reads >= CHECK_INTERVAL) {
+            m_reads = 0;
+            if (System.nanoTime() - m_deadline > 0) {
+                throw new TimeoutException();
+            }
+        }
+        return m_inner.charAt(index);
+    }
+
+    /**
+     * @see CharSequence#length()
+     */
+    @Override
+    public int length() {
+        return m_inner.length();
+    }
+
+    /**
+     * @see CharSequence#subSequence(int, int)
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new BoundedCharSequence(m_inner.subSequence(start, end), m_deadline);
+    }
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString() {
+        return m_inner.toString();
+    }
+
+    /**
+     * Thrown when a bounded sequence is read after its deadline
+     */
+    public static class TimeoutException extends RuntimeException {
+        public TimeoutException() {
+            super("Deadline exceeded", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.EvaluationError;
+import io.rapidpro.expressions.ExcellentLexer;
+import io.rapidpro.expressions.ExcellentParser;
+import io.rapidpro.expressions.evaluator.Evaluator;
+import io.rapidpro.expressions.evaluator.ExpressionVisitorImpl;
+import io.rapidpro.expressions.functions.FunctionManager;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.NoViableAltException;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Template evaluator which parses each distinct expression once. Flow definitions are static so the same expressions
+ * are evaluated over and over, and parsing dominates the cost of evaluating them. Parse trees, and the errors for
+ * expressions which can't be parsed, are kept in a bounded cache keyed by the expression text.
+ */
+public class CachingEvaluator extends Evaluator {
+
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    protected final FunctionManager m_functions = new FunctionManager();
+
+    protected final ConcurrentCache<String, Object> m_parsed;
+
+    public CachingEvaluator(char expressionPrefix, Set<String> allowedTopLevels, List<Class<?>> functionLibraries, int cacheSize) {
+        super(expressionPrefix, allowedTopLevels, functionLibraries);
+
+        for (Class<?> library : functionLibraries) {
+            m_functions.addLibrary(library);
+        }
+
+        m_parsed = new ConcurrentCache<>(cacheSize);
+    }
+
+    /**
+     * @see Evaluator#evaluateExpression(String, EvaluationContext, EvaluationStrategy)
+     */
+    @Override
+    public Object evaluateExpression(String expression, EvaluationContext context, EvaluationStrategy strategy) throws EvaluationError {
+        // partial evaluation works on the token stream rather than the parse tree
+        if (strategy == EvaluationStrategy.RESOLVE_AVAILABLE) {
+            return super.evaluateExpression(expression, context, strategy);
+        }
+
+        Object parsed = m_parsed.get(expression);
+        if (parsed == null) {
+            parsed = parse(expression);
+            m_parsed.put(expression, parsed);
+        }
+
+        if (parsed instanceof ParseFailure) {
+            throw new EvaluationError(((ParseFailure) parsed).m_message);
+        }
+
+        return new ExpressionVisitorImpl(m_functions, context).visit((ParseTree) parsed);
+    }
+
+    /**
+     * Parses the given expression, returning either its parse tree or a failure
+     */
+    protected Object parse(String expression) {
+        ExcellentLexer lexer = new ExcellentLexer(CharStreams.fromString(expression));
+        ExcellentParser parser = new ExcellentParser(new CommonTokenStream(lexer));
+        parser.setErrorHandler(new BailErrorStrategy());
+
+        try {
+            return parser.parse();
+        } catch (ParseCancellationException ex) {
+            String message = null;
+            if (ex.getCause() instanceof NoViableAltException) {
+                Token token = ((NoViableAltException) ex.getCause()).getOffendingToken();
+                if (token != null && token.getType() != Token.EOF) {
+                    message = "Expression error at: " + token.getText();
+                }
+            }
+            return new ParseFailure(message != null ? message : "Expression is invalid");
+        }
+    }
+
+    /**
+     * Gets the cache of parsed expressions
+     */
+    public ConcurrentCache<String, Object> getCache() {
+        return m_parsed;
+    }
+
+    /**
+     * An expression which couldn't be parsed
+     */
+    protected static class ParseFailure {
+
+        protected final String m_message;
+
+        public ParseFailure(String message) {
+            m_message = message;
+        }
+    }
+}
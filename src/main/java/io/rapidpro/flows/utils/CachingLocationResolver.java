@@ -0,0 +1,158 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.runner.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Location resolver which wraps another resolver and remembers its results. Resolving a ward means resolving its state
+ * and district first, and location tests resolve their parents on every evaluation, so the same names are resolved
+ * over and over. Results, including names which don't resolve, are kept in a bounded cache keyed by the country,
+ * level, parent and the trimmed lowercase text, so the wrapped resolver should treat names case-insensitively. Batch
+ * lookups only pass the names which aren't cached on to the wrapped resolver.
+ */
+public class CachingLocationResolver implements Location.BatchResolver {
+
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    // placeholder for names which don't resolve
+    protected static final Location NOT_FOUND = new Location(null, null, null);
+
+    protected final Location.Resolver m_resolver;
+
+    protected final ConcurrentCache<Key, Location> m_locations;
+
+    public CachingLocationResolver(Location.Resolver resolver, int cacheSize) {
+        m_resolver = resolver;
+        m_locations = new ConcurrentCache<>(cacheSize);
+    }
+
+    public CachingLocationResolver(Location.Resolver resolver) {
+        this(resolver, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @see Location.Resolver#resolve(String, String, Location.Level, Location)
+     */
+    @Override
+    public Location resolve(String text, String country, Location.Level level, Location parent) {
+        Key key = new Key(text.trim().toLowerCase(Locale.ROOT), country, level, parent != null ? parent.getOsmId() : null);
+
+        Location location = m_locations.get(key);
+        if (location == null) {
+            location = m_resolver.resolve(text, country, level, parent);
+            m_locations.put(key, location != null ? location : NOT_FOUND);
+        }
+        return location != NOT_FOUND ? location : null;
+    }
+
+    /**
+     * @see Location.BatchResolver#resolveAll(List, String, Location.Level, Location)
+     */
+    @Override
+    public List<Location> resolveAll(List<String> texts, String country, Location.Level level, Location parent) {
+        String parentOsmId = parent != null ? parent.getOsmId() : null;
+        List<Location> locations = new ArrayList<>(texts.size());
+        List<Integer> misses = new ArrayList<>();
+        List<String> missTexts = new ArrayList<>();
+
+        for (int t = 0; t < texts.size(); t++) {
+            Location location = m_locations.get(new Key(texts.get(t).trim().toLowerCase(Locale.ROOT), country, level, parentOsmId));
+            if (location == null) {
+                misses.add(t);
+                missTexts.add(texts.get(t));
+            }
+            locations.add(location != NOT_FOUND ? location : null);
+        }
+
+        if (!misses.isEmpty()) {
+            List<Location> resolved = Location.resolveAll(m_resolver, missTexts, country, level, parent);
+            for (int m = 0; m < misses.size(); m++) {
+                Location location = resolved.get(m);
+                m_locations.put(new Key(missTexts.get(m).trim().toLowerCase(Locale.ROOT), country, level, parentOsmId), location != null ? location : NOT_FOUND);
+                locations.set(misses.get(m), location);
+            }
+        }
+        return locations;
+    }
+
+    public Location.Resolver getResolver() {
+        return m_resolver;
+    }
+
+    public long getHits() {
+        return m_locations.getHits();
+    }
+
+    public long getMisses() {
+        return m_locations.getMisses();
+    }
+
+    /**
+     * Gets the proportion of lookups which were answered from the cache
+     * @return the hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits(), total = hits + getMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public int size() {
+        return m_locations.size();
+    }
+
+    public void clear() {
+        m_locations.clear();
+    }
+
+    /**
+     * Cache key of a location lookup
+     */
+    protected static class Key {
+
+        protected final String m_text;
+
+        protected final String m_country;
+
+        protected final Location.Level m_level;
+
+        protected final String m_parentOsmId;
+
+        public Key(String text, String country, Location.Level level, String parentOsmId) {
+            m_text = text;
+            m_country = country;
+            m_level = level;
+            m_parentOsmId = parentOsmId;
+        }
+
+        /**
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            if (!m_text.equals(key.m_text)) return false;
+            if (m_country != null ? !m_country.equals(key.m_country) : key.m_country != null) return false;
+            if (m_level != key.m_level) return false;
+            return !(m_parentOsmId != null ? !m_parentOsmId.equals(key.m_parentOsmId) : key.m_parentOsmId != null);
+        }
+
+        /**
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            int result = m_text.hashCode();
+            result = 31 * result + (m_country != null ? m_country.hashCode() : 0);
+            result = 31 * result + (m_level != null ? m_level.hashCode() : 0);
+            result = 31 * result + (m_parentOsmId != null ? m_parentOsmId.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package io.rapidpro.flows.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe, size bounded cache for values which are read from many threads. Unlike {@link LruCache}, reads never
+ * block. Eviction is approximately least recently used - entries are stamped with a clock which ticks on each put,
+ * and when the cache is full the entries with the oldest stamps are evicted in a batch by whichever thread gets
+ * there first. Null values aren't supported, so callers which want to cache the absence of something should use a
+ * placeholder value.
+ */
+public class ConcurrentCache<K, V> {
+
+    protected final int m_maxSize;
+
+    protected final ConcurrentHashMap<K, Entry<V>> m_entries;
+
+    protected final AtomicLong m_clock = new AtomicLong();
+
+    protected final AtomicLong m_hits = new AtomicLong();
+
+    protected final AtomicLong m_misses = new AtomicLong();
+
+    protected final ReentrantLock m_evictionLock = new ReentrantLock();
+
+    public ConcurrentCache(int maxSize) {
+        m_maxSize = maxSize;
+        m_entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets a cached value
+     * @param key the key
+     * @return the value or null if it isn't cached
+     */
+    public V get(K key) {
+        Entry<V> entry = m_entries.get(key);
+        if (entry == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+
+        // stamp as used after the latest put, but without ticking the clock as that would contend
+        entry.m_used = m_clock.get() * 2 + 1;
+        m_hits.incrementAndGet();
+        return entry.m_value;
+    }
+
+    /**
+     * Caches a value
+     * @param key the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        m_entries.put(key, new Entry<>(value, m_clock.incrementAndGet() * 2));
+
+        if (m_entries.size() > m_maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries so that there's room for about a tenth of the max size again. Threads
+     * which find another thread already evicting carry on without waiting.
+     */
+    protected void evict() {
+        if (!m_evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int target = m_maxSize - m_maxSize / 10;
+
+            // sort on a snapshot of the stamps as reads carry on changing them
+            List<Candidate<K, V>> candidates = new ArrayList<>(m_entries.size());
+            for (Map.Entry<K, Entry<V>> entry : m_entries.entrySet()) {
+                candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+            }
+            if (candidates.size() <= target) {
+                return;
+            }
+
+            Collections.sort(candidates, new Comparator<Candidate<K, V>>() {
+                @Override
+                public int compare(Candidate<K, V> c1, Candidate<K, V> c2) {
+                    return Long.compare(c1.m_used, c2.m_used);
+                }
+            });
+
+            for (int c = 0; c < candidates.size() - target; c++) {
+                // only remove the entry if it hasn't been replaced since
+                m_entries.remove(candidates.get(c).m_key, candidates.get(c).m_entry);
+            }
+        } finally {
+            m_evictionLock.unlock();
+        }
+    }
+
+    public void clear() {
+        m_entries.clear();
+    }
+
+    public int size() {
+        return m_entries.size();
+    }
+
+    public int getMaxSize() {
+        return m_maxSize;
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * A cached value and when it was last used
+     */
+    protected static class Entry<V> {
+
+        protected final V m_value;
+
+        protected volatile long m_used;
+
+        public Entry(V value, long used) {
+            m_value = value;
+            m_used = used;
+        }
+    }
+
+    /**
+     * An entry considered for eviction and when it was last used at the start of the eviction
+     */
+    protected static class Candidate<K, V> {
+
+        protected final K m_key;
+
+        protected final Entry<V> m_entry;
+
+        protected final long m_used;
+
+        public Candidate(K key, Entry<V> entry) {
+            m_key = key;
+            m_entry = entry;
+            m_used = entry.m_used;
+        }
+    }
+}
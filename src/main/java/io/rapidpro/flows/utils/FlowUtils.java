@@ -1,17 +1,35 @@
 package io.rapidpro.flows.utils;
 
 import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberMatch;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber;
 import org.apache.commons.lang3.text.WordUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.Iterator;
+
 /**
  * Miscellaneous utility methods
  */
 public class FlowUtils {
 
+    public static final int PHONE_CACHE_SIZE = 10000;
+
+    // the shortest number libphonenumber accepts is international, e.g. "+123", as it needs a country code of at least
+    // 1 digit and a national number of at least 2 (and no region allows local numbers shorter than 4), so text with
+    // fewer than 3 digits can't contain a number
+    protected static final int MIN_PHONE_DIGITS = 3;
+
+    // placeholder for texts which don't contain a number, compared by identity so must be a private instance
+    protected static final String NO_NUMBER = new String();
+
+    // results of the phone number methods below keyed by their text and country, shared by all threads
+    protected static final ConcurrentCache<Pair<String, String>, Pair<String, Boolean>> s_normalizedNumbers = new ConcurrentCache<>(PHONE_CACHE_SIZE);
+    protected static final ConcurrentCache<Pair<String, String>, String> s_foundNumbers = new ConcurrentCache<>(PHONE_CACHE_SIZE);
+    protected static final ConcurrentCache<Pair<String, String>, String> s_nationalNumbers = new ConcurrentCache<>(PHONE_CACHE_SIZE);
+
     /**
      * Normalizes the passed in number, they should be only digits, some backends prepend + and maybe crazy users put in
      * dashes or parentheses in the console
@@ -20,6 +38,16 @@ public class FlowUtils {
      * @return a pair of the normalized number and whether it looks like a possible full international number
      */
     public static Pair<String, Boolean> normalizeNumber(String number, String countryCode) {
+        Pair<String, String> key = new ImmutablePair<>(number, countryCode);
+        Pair<String, Boolean> normalized = s_normalizedNumbers.get(key);
+        if (normalized == null) {
+            normalized = normalizeNumberUncached(number, countryCode);
+            s_normalizedNumbers.put(key, normalized);
+        }
+        return normalized;
+    }
+
+    protected static Pair<String, Boolean> normalizeNumberUncached(String number, String countryCode) {
         PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
         number = number.toLowerCase();
 
@@ -36,19 +64,88 @@ public class FlowUtils {
             number = '+' + number;
         }
 
-        try {
-            Phonenumber.PhoneNumber normalized = phoneUtil.parse(number, countryCode);
+        if (hasPhoneDigits(number)) {
+            try {
+                Phonenumber.PhoneNumber normalized = phoneUtil.parse(number, countryCode);
 
-            // now does it look plausible ?
-            if (phoneUtil.isPossibleNumber(normalized)) {
-                return new ImmutablePair<>(phoneUtil.format(normalized, PhoneNumberUtil.PhoneNumberFormat.E164), true);
-            }
-        } catch (NumberParseException ignored) {}
+                // now does it look plausible ?
+                if (phoneUtil.isPossibleNumber(normalized)) {
+                    return new ImmutablePair<>(phoneUtil.format(normalized, PhoneNumberUtil.PhoneNumberFormat.E164), true);
+                }
+            } catch (NumberParseException ignored) {}
+        }
 
         // this must be a local number of some kind, just lowercase and save
         return new ImmutablePair<>(number.replaceAll("[^0-9a-z]", ""), false);
     }
 
+    /**
+     * Finds the first phone number in the given text, trying it as an international number if none is found
+     * @param text the text, e.g. "my number is 0788383383"
+     * @param country the 2-letter country code, e.g. "RW"
+     * @return the number in E164 format, or null if there's no number
+     */
+    public static String findPhoneNumber(String text, String country) {
+        Pair<String, String> key = new ImmutablePair<>(text, country);
+        String found = s_foundNumbers.get(key);
+        if (found == null) {
+            found = hasPhoneDigits(text) ? findPhoneNumberUncached(text, country) : null;
+            found = found != null ? found : NO_NUMBER;
+            s_foundNumbers.put(key, found);
+        }
+        return found != NO_NUMBER ? found : null;
+    }
+
+    protected static String findPhoneNumberUncached(String text, String country) {
+        PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
+
+        Iterator<PhoneNumberMatch> matches = phoneUtil.findNumbers(text, country).iterator();
+        if (!matches.hasNext()) {
+            matches = phoneUtil.findNumbers("+" + text, country).iterator();
+        }
+
+        return matches.hasNext() ? phoneUtil.format(matches.next().number(), PhoneNumberUtil.PhoneNumberFormat.E164) : null;
+    }
+
+    /**
+     * Formats an international number in the national format of its country
+     * @param number the number, e.g. "+250788383383"
+     * @return the formatted number, e.g. "0788 383 383", or null if it's not an international number
+     */
+    public static String formatNationalNumber(String number) {
+        if (number.isEmpty() || number.charAt(0) != '+') {
+            return null;
+        }
+
+        Pair<String, String> key = new ImmutablePair<>(number, null);
+        String formatted = s_nationalNumbers.get(key);
+        if (formatted == null) {
+            formatted = NO_NUMBER;
+            if (hasPhoneDigits(number)) {
+                try {
+                    PhoneNumberUtil phoneUtil = PhoneNumberUtil.getInstance();
+                    formatted = phoneUtil.format(phoneUtil.parse(number, null), PhoneNumberUtil.PhoneNumberFormat.NATIONAL);
+                } catch (NumberParseException ignored) {}
+            }
+            s_nationalNumbers.put(key, formatted);
+        }
+        return formatted != NO_NUMBER ? formatted : null;
+    }
+
+    /**
+     * Checks whether the given text has enough digits to possibly contain a phone number, without the expense of
+     * asking libphonenumber
+     */
+    protected static boolean hasPhoneDigits(String text) {
+        int digits = 0;
+        for (int c = 0; c < text.length(); c++) {
+            if (Character.isDigit(text.charAt(c)) && ++digits >= MIN_PHONE_DIGITS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Equivalent to str.title() in Python
      */
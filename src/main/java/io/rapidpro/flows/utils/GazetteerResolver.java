@@ -0,0 +1,172 @@
+package io.rapidpro.flows.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.rapidpro.expressions.utils.ExpressionUtils;
+import io.rapidpro.flows.runner.Location;
+
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Location resolver which holds the state, district and ward hierarchies of one or more countries in memory. The
+ * hierarchies are loaded from JSON like:
+ *
+ *   [{"country": "RW", "locations": [
+ *       {"osm_id": "S0001", "name": "Kigali", "aliases": ["Kigali City"], "children": [
+ *           {"osm_id": "D0001", "name": "Gasabo", "children": [...]}
+ *       ]}
+ *   ]}]
+ *
+ * Names and aliases are matched case-insensitively and word by word, either against the whole text or against any run
+ * of words in it, so "I live in kigali city" resolves to Kigali. Each lookup is a few hash lookups with no I/O. The
+ * resolver is immutable once loaded and so is thread-safe.
+ */
+public class GazetteerResolver implements Location.Resolver {
+
+    // the parent part of the key for lookups without a parent
+    protected static final String ANY_PARENT = "*";
+
+    protected final Map<String, Location> m_index = new HashMap<>();
+
+    protected final int m_maxNameWords;
+
+    /**
+     * Creates a resolver from the given JSON
+     * @param json a country object or an array of them
+     */
+    public GazetteerResolver(JsonElement json) {
+        int maxNameWords = 0;
+
+        JsonArray countries;
+        if (json.isJsonArray()) {
+            countries = json.getAsJsonArray();
+        } else {
+            countries = new JsonArray();
+            countries.add(json);
+        }
+
+        for (JsonElement countryElem : countries) {
+            JsonObject countryObj = countryElem.getAsJsonObject();
+            String country = countryObj.get("country").getAsString();
+
+            maxNameWords = Math.max(maxNameWords, addLocations(country, countryObj.get("locations").getAsJsonArray(), 0, null));
+        }
+
+        m_maxNameWords = maxNameWords;
+    }
+
+    public static GazetteerResolver fromJson(String json) {
+        return new GazetteerResolver(new JsonParser().parse(json));
+    }
+
+    public static GazetteerResolver load(Reader reader) {
+        return new GazetteerResolver(new JsonParser().parse(reader));
+    }
+
+    /**
+     * Adds the given locations and their descendants to the index
+     * @return the most words in any of the names or aliases
+     */
+    protected int addLocations(String country, JsonArray locations, int depth, Location parent) {
+        Location.Level[] levels = Location.Level.values();
+        if (depth >= levels.length) {
+            throw new IllegalArgumentException("Locations can't be nested deeper than " + levels[levels.length - 1]);
+        }
+        Location.Level level = levels[depth];
+        int maxNameWords = 0;
+
+        for (JsonElement locationElem : locations) {
+            JsonObject locationObj = locationElem.getAsJsonObject();
+            Location location = new Location(locationObj.get("osm_id").getAsString(), locationObj.get("name").getAsString(), level);
+
+            maxNameWords = Math.max(maxNameWords, addName(country, level, parent, location.getName(), location));
+
+            if (locationObj.has("aliases")) {
+                for (JsonElement alias : locationObj.get("aliases").getAsJsonArray()) {
+                    maxNameWords = Math.max(maxNameWords, addName(country, level, parent, alias.getAsString(), location));
+                }
+            }
+            if (locationObj.has("children")) {
+                maxNameWords = Math.max(maxNameWords, addLocations(country, locationObj.get("children").getAsJsonArray(), depth + 1, location));
+            }
+        }
+        return maxNameWords;
+    }
+
+    /**
+     * Adds a name of a location to the index, under its parent and for lookups without a parent. Where names clash
+     * the first location added wins.
+     * @return the number of words in the name
+     */
+    protected int addName(String country, Location.Level level, Location parent, String name, Location location) {
+        String[] words = ExpressionUtils.tokenize(name.toLowerCase());
+        if (words.length == 0) {
+            return 0;
+        }
+        String normalized = join(words, 0, words.length);
+
+        if (parent != null) {
+            putIfAbsent(key(country, level, parent.getOsmId(), normalized), location);
+        }
+        putIfAbsent(key(country, level, ANY_PARENT, normalized), location);
+        return words.length;
+    }
+
+    /**
+     * @see Location.Resolver#resolve(String, String, Location.Level, Location)
+     */
+    @Override
+    public Location resolve(String text, String country, Location.Level level, Location parent) {
+        String[] words = ExpressionUtils.tokenize(text.toLowerCase());
+        if (words.length == 0 || country == null) {
+            return null;
+        }
+
+        String parentId = parent != null ? parent.getOsmId() : ANY_PARENT;
+
+        // try the whole text first
+        Location location = m_index.get(key(country, level, parentId, join(words, 0, words.length)));
+        if (location != null) {
+            return location;
+        }
+
+        // then every run of words in the text, preferring earlier and then longer runs
+        for (int start = 0; start < words.length; start++) {
+            for (int count = Math.min(m_maxNameWords, words.length - start); count > 0; count--) {
+                location = m_index.get(key(country, level, parentId, join(words, start, start + count)));
+                if (location != null) {
+                    return location;
+                }
+            }
+        }
+        return null;
+    }
+
+    protected void putIfAbsent(String key, Location location) {
+        if (!m_index.containsKey(key)) {
+            m_index.put(key, location);
+        }
+    }
+
+    protected static String key(String country, Location.Level level, String parentId, String name) {
+        return country.toUpperCase() + '\n' + level.ordinal() + '\n' + parentId + '\n' + name;
+    }
+
+    protected static String join(String[] words, int from, int to) {
+        if (to - from == 1) {
+            return words[from];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int w = from; w < to; w++) {
+            if (w > from) {
+                sb.append(' ');
+            }
+            sb.append(words[w]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,14 @@
+package io.rapidpro.flows.utils;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Interface for anything that can write itself as JSON without building a tree first. The JSON written must be the
+ * same as {@link #toJson()}.
+ */
+public interface JsonStreamable extends Jsonizable {
+
+    void writeJson(JsonWriter out) throws IOException;
+}
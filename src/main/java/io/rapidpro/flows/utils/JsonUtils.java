@@ -1,11 +1,17 @@
 package io.rapidpro.flows.utils;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import io.rapidpro.flows.definition.Flow;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * JSON utility methods
@@ -14,6 +20,16 @@ public class JsonUtils {
 
     protected static Gson s_gson = new GsonBuilder().create();
 
+    /**
+     * Creates objects of a given class from JSON
+     */
+    public interface Factory<T> {
+        T fromJson(JsonElement elm, Flow.DeserializationContext context);
+    }
+
+    // factories registered by the classes which can be loaded from JSON, read on every load so not locked
+    protected static final Map<Class<?>, Factory<?>> s_factories = new ConcurrentHashMap<>();
+
     public static Gson getGson() {
         return s_gson;
     }
@@ -114,7 +130,130 @@ public class JsonUtils {
     }
 
     /**
-     * Loads an object from JSON. If object is not a primitive, it's class must declare a fromJson method.
+     * Creates a JSON writer which writes the same JSON as our Gson instance, i.e. HTML-safe and omitting null members
+     * of objects
+     * @param out the writer to write to
+     * @return the JSON writer
+     */
+    public static JsonWriter newWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    /**
+     * Writes a value as JSON, writing the same JSON as {@link #toJson(Object)}
+     * @param out the JSON writer
+     * @param value the value to write
+     */
+    public static void write(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Boolean) {
+            out.value((Boolean) value);
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else if (value instanceof JsonStreamable) {
+            ((JsonStreamable) value).writeJson(out);
+        } else {
+            s_gson.toJson(toJson(value), out);
+        }
+    }
+
+    /**
+     * Writes a map as a JSON object
+     * @param out the JSON writer
+     * @param map the map to write
+     */
+    public static void writeObject(JsonWriter out, Map<String, ?> map) throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            out.name(entry.getKey());
+            write(out, entry.getValue());
+        }
+        out.endObject();
+    }
+
+    /**
+     * Writes an iterable of items as a JSON array
+     * @param out the JSON writer
+     * @param items the items to write
+     */
+    public static void writeArray(JsonWriter out, Iterable<?> items) throws IOException {
+        out.beginArray();
+        for (Object item : items) {
+            write(out, item);
+        }
+        out.endArray();
+    }
+
+    /**
+     * Registers the factory used to load objects of the given class from JSON
+     * @param clazz the class
+     * @param factory the factory
+     */
+    public static <T> void registerFactory(Class<T> clazz, Factory<T> factory) {
+        s_factories.put(clazz, factory);
+    }
+
+    /**
+     * Gets the factory registered for the given class
+     * @param clazz the class
+     * @return the factory or null if none is registered
+     */
+    public static <T> Factory<T> getFactory(Class<T> clazz) {
+        return (Factory<T>) s_factories.get(clazz);
+    }
+
+    /**
+     * Reads the next value as a string, returning null if it's null
+     * @param in the JSON reader
+     * @return the string value or null
+     */
+    public static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Reads an array of strings
+     * @param in the JSON reader
+     * @param items the collection to add the strings to
+     * @return the collection
+     */
+    public static <C extends Collection<String>> C readStrings(JsonReader in, C items) throws IOException {
+        in.beginArray();
+        while (in.hasNext()) {
+            items.add(nextString(in));
+        }
+        in.endArray();
+        return items;
+    }
+
+    /**
+     * Reads an object of string values
+     * @param in the JSON reader
+     * @return the map
+     */
+    public static Map<String, String> readStringMap(JsonReader in) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            map.put(in.nextName(), nextString(in));
+        }
+        in.endObject();
+        return map;
+    }
+
+    /**
+     * Loads an object from JSON. If object is not a primitive, it's class must have a registered factory or declare a
+     * fromJson method.
      * @param elm the JSON element
      * @param context the deserialization context (may be null)
      * @param clazz the class to instantiate
@@ -133,6 +272,11 @@ public class JsonUtils {
             return (T) (Integer) elm.getAsInt();
         }
 
+        Factory<T> factory = getFactory(clazz);
+        if (factory != null) {
+            return factory.fromJson(elm, context);
+        }
+
         try {
             if (context != null) {
                 Method method = clazz.getDeclaredMethod("fromJson", JsonElement.class, Flow.DeserializationContext.class);
@@ -0,0 +1,114 @@
+package io.rapidpro.flows.utils;
+
+import java.util.*;
+
+/**
+ * A map whose values can be deferred, i.e. computed on first access rather than when they are put. Iterating over the
+ * entries computes all deferred values. Not thread-safe.
+ */
+public class LazyMap<V> extends AbstractMap<String, V> {
+
+    /**
+     * A value which is computed when first needed
+     */
+    public static abstract class Deferred<V> {
+        /**
+         * Computes the value
+         * @return the value
+         */
+        public abstract V compute();
+    }
+
+    protected Map<String, Object> m_values;
+
+    public LazyMap() {
+        m_values = new HashMap<>();
+    }
+
+    public LazyMap(int expectedSize) {
+        m_values = new HashMap<>(expectedSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Puts a value which will be computed on first access
+     * @param key the key
+     * @param value the deferred value
+     */
+    public void putDeferred(String key, Deferred<? extends V> value) {
+        m_values.put(key, value);
+    }
+
+    /**
+     * @see Map#put(Object, Object)
+     */
+    @Override
+    public V put(String key, V value) {
+        return resolve(m_values.put(key, value));
+    }
+
+    /**
+     * @see Map#get(Object)
+     */
+    @Override
+    public V get(Object key) {
+        Object value = m_values.get(key);
+        if (value instanceof Deferred) {
+            return computeAndStore((String) key, (Deferred<V>) value);
+        }
+        return (V) value;
+    }
+
+    /**
+     * @see Map#containsKey(Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return m_values.containsKey(key);
+    }
+
+    /**
+     * @see Map#remove(Object)
+     */
+    @Override
+    public V remove(Object key) {
+        return resolve(m_values.remove(key));
+    }
+
+    /**
+     * @see Map#size()
+     */
+    @Override
+    public int size() {
+        return m_values.size();
+    }
+
+    /**
+     * Gets the entries of this map, computing any deferred values
+     * @see Map#entrySet()
+     */
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        for (Entry<String, Object> entry : m_values.entrySet()) {
+            if (entry.getValue() instanceof Deferred) {
+                entry.setValue(((Deferred<V>) entry.getValue()).compute());
+            }
+        }
+        return (Set) m_values.entrySet();
+    }
+
+    protected V computeAndStore(String key, Deferred<V> deferred) {
+        V value = deferred.compute();
+        m_values.put(key, value);
+        return value;
+    }
+
+    /**
+     * Resolves a value which has been removed or replaced
+     */
+    protected V resolve(Object value) {
+        if (value instanceof Deferred) {
+            return ((Deferred<V>) value).compute();
+        }
+        return (V) value;
+    }
+}
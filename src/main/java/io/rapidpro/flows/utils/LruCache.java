@@ -0,0 +1,73 @@
+package io.rapidpro.flows.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe, size bounded cache which evicts the least recently used entry when full. Null values aren't
+ * supported, so callers which want to cache the absence of something should use a placeholder value.
+ */
+public class LruCache<K, V> {
+
+    protected final int m_maxSize;
+
+    protected final LinkedHashMap<K, V> m_entries;
+
+    protected long m_hits;
+
+    protected long m_misses;
+
+    public LruCache(final int maxSize) {
+        m_maxSize = maxSize;
+        m_entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached value
+     * @param key the key
+     * @return the value or null if it isn't cached
+     */
+    public synchronized V get(K key) {
+        V value = m_entries.get(key);
+        if (value != null) {
+            m_hits++;
+        } else {
+            m_misses++;
+        }
+        return value;
+    }
+
+    /**
+     * Caches a value
+     * @param key the key
+     * @param value the value
+     */
+    public synchronized void put(K key, V value) {
+        m_entries.put(key, value);
+    }
+
+    public synchronized void clear() {
+        m_entries.clear();
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    public int getMaxSize() {
+        return m_maxSize;
+    }
+
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+}
@@ -0,0 +1,939 @@
+package io.rapidpro.flows.utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A set of regular expressions compiled into a single automaton, which finds which of them occur in an input with one
+ * linear pass, i.e. which of them java.util.regex would find with the CASE_INSENSITIVE and MULTILINE flags. The DFA is
+ * built lazily from an NFA as inputs are matched, and is shared by all threads.
+ *
+ * Only the common subset of the regex syntax is supported: literals, escapes, character classes, the predefined
+ * classes, groups, alternation, greedy or reluctant quantifiers and the ^ $ \b \B anchors. Patterns which use anything
+ * else, e.g. backreferences or lookarounds, are reported as unsupported and should be matched with java.util.regex.
+ * The automaton only answers whether a pattern occurs, so callers which need the match itself or its groups should
+ * use java.util.regex for the pattern that wins.
+ */
+public class RegexSet {
+
+    public static final int DEFAULT_MAX_STATES = 2000;
+
+    protected static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE;
+
+    protected static final int MAX_NFA_STATES = 10000;
+
+    protected static final int MAX_REPEAT = 100;
+
+    // the position conditions which anchors can test
+    protected static final int AT_LINE_START = 1;
+    protected static final int AT_LINE_END = 2;
+    protected static final int AT_BOUNDARY = 4;
+    protected static final int NOT_AT_BOUNDARY = 8;
+
+    // NFA state types
+    protected static final int CONSUME = 0;
+    protected static final int SPLIT = 1;
+    protected static final int ASSERT = 2;
+    protected static final int ACCEPT = 3;
+
+    protected final int m_patternCount;
+
+    protected final BitSet m_supported = new BitSet();
+
+    protected final List<NfaState> m_nfa = new ArrayList<>();
+
+    protected final int m_start;
+
+    protected final int m_conditionMask;
+
+    protected final int m_maxStates;
+
+    protected final ConcurrentMap<StateSet, DfaState> m_dfaStates = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<StateSet, ClosedState> m_closedStates = new ConcurrentHashMap<>();
+
+    protected final DfaState m_initial;
+
+    /**
+     * Compiles the given patterns
+     * @param patterns the regular expressions
+     * @param maxStates the maximum number of DFA states to build before giving up on new inputs
+     */
+    public RegexSet(List<String> patterns, int maxStates) {
+        m_patternCount = patterns.size();
+        m_maxStates = maxStates;
+
+        // state 0 loops so that patterns can start anywhere, and branches to each supported pattern
+        m_nfa.add(new NfaState(SPLIT));
+        List<Integer> starts = new ArrayList<>();
+        int conditions = 0;
+
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            int mark = m_nfa.size();
+            try {
+                Pattern.compile(pattern, FLAGS); // patterns which Java can't compile never match
+                Parser parser = new Parser(pattern);
+                Node node = parser.parse();
+
+                int accept = add(new NfaState(ACCEPT));
+                m_nfa.get(accept).m_pattern = p;
+                starts.add(compile(node, accept));
+                conditions |= parser.m_conditions;
+                m_supported.set(p);
+            }
+            catch (PatternSyntaxException | UnsupportedOperationException ex) {
+                // discard any states we made for this pattern
+                while (m_nfa.size() > mark) {
+                    m_nfa.remove(m_nfa.size() - 1);
+                }
+            }
+        }
+
+        m_start = 0;
+        m_nfa.get(0).m_outs = toArray(starts);
+        m_conditionMask = conditions;
+        m_initial = getDfaState(new StateSet(new int[] { m_start }));
+    }
+
+    public RegexSet(List<String> patterns) {
+        this(patterns, DEFAULT_MAX_STATES);
+    }
+
+    /**
+     * Gets whether the given pattern is supported by the automaton
+     * @param pattern the pattern position
+     */
+    public boolean isSupported(int pattern) {
+        return m_supported.get(pattern);
+    }
+
+    /**
+     * Finds which of the supported patterns occur in the given input
+     * @param input the input
+     * @return the positions of the patterns which occur, or null if the automaton grew too large to match this input
+     */
+    public BitSet match(String input) {
+        BitSet matched = new BitSet(m_patternCount);
+        int matchedCount = 0;
+        int supportedCount = m_supported.cardinality();
+
+        DfaState state = m_initial;
+        int length = input.length();
+        int prev = -1;
+        int i = 0;
+
+        while (true) {
+            int cp = i < length ? input.codePointAt(i) : -1;
+
+            ClosedState closed = state.close(this, conditionsAt(input, i, prev, cp) & m_conditionMask);
+            if (closed == null) {
+                return null;
+            }
+
+            if (closed.m_accepts != null) {
+                for (int p : closed.m_accepts) {
+                    if (!matched.get(p)) {
+                        matched.set(p);
+                        matchedCount++;
+                    }
+                }
+                if (matchedCount == supportedCount) {
+                    break;
+                }
+            }
+
+            if (cp < 0) {
+                break;
+            }
+
+            state = closed.step(this, cp);
+            if (state == null) {
+                return null;
+            }
+
+            prev = cp;
+            i += Character.charCount(cp);
+        }
+        return matched;
+    }
+
+    /**
+     * Gets the conditions which may hold at the given position, erring on the side of including a condition
+     */
+    protected static int conditionsAt(String input, int i, int prev, int cp) {
+        int conditions = 0;
+        int length = input.length();
+
+        // multiline ^ matches at the start or after a line terminator, but not at the end or within \r\n
+        if (i < length && (i == 0 || (isLineTerminator(input.charAt(i - 1)) && !(input.charAt(i - 1) == '\r' && input.charAt(i) == '\n')))) {
+            conditions |= AT_LINE_START;
+        }
+
+        // multiline $ matches at the end or before a line terminator, but not within \r\n
+        if (i == length || (isLineTerminator(input.charAt(i)) && !(input.charAt(i) == '\n' && i > 0 && input.charAt(i - 1) == '\r'))) {
+            conditions |= AT_LINE_END;
+        }
+
+        int left = prev >= 0 ? wordness(prev) : 0;
+        int right = cp >= 0 ? wordness(cp) : 0;
+
+        // wordness is 0 for a non-word character, 1 for a word character and 2 for one which we're not sure about
+        if (left == 2 || right == 2) {
+            conditions |= AT_BOUNDARY | NOT_AT_BOUNDARY;
+        } else {
+            conditions |= left != right ? AT_BOUNDARY : NOT_AT_BOUNDARY;
+        }
+        return conditions;
+    }
+
+    /**
+     * Whether a character counts as a word character for \b. Java's definition of this for non-ASCII characters has
+     * changed between versions so we treat them as unknown.
+     */
+    protected static int wordness(int cp) {
+        if (cp < 128) {
+            return (cp >= 'a' && cp <= 'z') || (cp >= 'A' && cp <= 'Z') || (cp >= '0' && cp <= '9') || cp == '_' ? 1 : 0;
+        }
+        if (Character.isLetterOrDigit(cp) || Character.getType(cp) == Character.NON_SPACING_MARK) {
+            return 2;
+        }
+        return 0;
+    }
+
+    protected static boolean isLineTerminator(int ch) {
+        return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+
+    /**
+     * Compiles a node to NFA states which lead to the given next state
+     * @return the first state
+     */
+    protected int compile(Node node, int next) {
+        if (m_nfa.size() > MAX_NFA_STATES) {
+            throw new UnsupportedOperationException("Pattern is too large");
+        }
+
+        switch (node.m_type) {
+            case Node.EMPTY:
+                return next;
+            case Node.CHARS: {
+                NfaState state = new NfaState(CONSUME);
+                state.m_chars = node.m_chars;
+                state.m_outs = new int[] { next };
+                return add(state);
+            }
+            case Node.ANCHOR: {
+                NfaState state = new NfaState(ASSERT);
+                state.m_condition = node.m_condition;
+                state.m_outs = new int[] { next };
+                return add(state);
+            }
+            case Node.CONCAT: {
+                int start = next;
+                for (int c = node.m_children.size() - 1; c >= 0; c--) {
+                    start = compile(node.m_children.get(c), start);
+                }
+                return start;
+            }
+            case Node.ALTERNATION: {
+                int[] outs = new int[node.m_children.size()];
+                for (int c = 0; c < outs.length; c++) {
+                    outs[c] = compile(node.m_children.get(c), next);
+                }
+                NfaState state = new NfaState(SPLIT);
+                state.m_outs = outs;
+                return add(state);
+            }
+            case Node.REPEAT: {
+                Node child = node.m_children.get(0);
+                int start = next;
+
+                if (node.m_max < 0) {
+                    // unbounded, so loop back through a split
+                    int loop = add(new NfaState(SPLIT));
+                    int body = compile(child, loop);
+                    m_nfa.get(loop).m_outs = new int[] { body, next };
+                    start = loop;
+                } else {
+                    for (int r = node.m_min; r < node.m_max; r++) {
+                        int body = compile(child, start);
+                        NfaState optional = new NfaState(SPLIT);
+                        optional.m_outs = new int[] { body, next };
+                        start = add(optional);
+                        next = start;
+                    }
+                }
+
+                for (int r = 0; r < node.m_min; r++) {
+                    start = compile(child, start);
+                }
+                return start;
+            }
+            default:
+                throw new UnsupportedOperationException("Unknown node type");
+        }
+    }
+
+    protected int add(NfaState state) {
+        m_nfa.add(state);
+        return m_nfa.size() - 1;
+    }
+
+    /**
+     * Gets the DFA state for the given set of NFA states
+     * @return the state or null if there are too many states
+     */
+    protected DfaState getDfaState(StateSet set) {
+        DfaState state = m_dfaStates.get(set);
+        if (state == null) {
+            if (m_dfaStates.size() >= m_maxStates) {
+                return null;
+            }
+            state = new DfaState(set);
+            DfaState existing = m_dfaStates.putIfAbsent(set, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Gets the closed state for the given set of NFA states
+     * @return the state or null if there are too many states
+     */
+    protected ClosedState getClosedState(StateSet set) {
+        ClosedState state = m_closedStates.get(set);
+        if (state == null) {
+            if (m_closedStates.size() >= m_maxStates) {
+                return null;
+            }
+
+            List<Integer> accepts = new ArrayList<>();
+            for (int s : set.m_states) {
+                if (m_nfa.get(s).m_type == ACCEPT) {
+                    accepts.add(m_nfa.get(s).m_pattern);
+                }
+            }
+
+            state = new ClosedState(set, accepts.isEmpty() ? null : toArray(accepts));
+            ClosedState existing = m_closedStates.putIfAbsent(set, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Follows every epsilon transition from the given states which is allowed by the given conditions
+     */
+    protected StateSet closure(int[] states, int conditions) {
+        BitSet visited = new BitSet(m_nfa.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int s : states) {
+            stack.push(s);
+        }
+
+        while (!stack.isEmpty()) {
+            int s = stack.pop();
+            if (visited.get(s)) {
+                continue;
+            }
+            visited.set(s);
+
+            NfaState state = m_nfa.get(s);
+            if (state.m_type == SPLIT) {
+                for (int out : state.m_outs) {
+                    stack.push(out);
+                }
+            } else if (state.m_type == ASSERT && (conditions & state.m_condition) != 0) {
+                stack.push(state.m_outs[0]);
+            }
+        }
+
+        // only keep the states which consume or accept
+        List<Integer> kept = new ArrayList<>();
+        for (int s = visited.nextSetBit(0); s >= 0; s = visited.nextSetBit(s + 1)) {
+            int type = m_nfa.get(s).m_type;
+            if (type == CONSUME || type == ACCEPT) {
+                kept.add(s);
+            }
+        }
+        return new StateSet(toArray(kept));
+    }
+
+    /**
+     * Steps from the given closed states over the given character, always including the start state
+     */
+    protected StateSet step(int[] states, int cp) {
+        SortedSet<Integer> next = new TreeSet<>();
+        next.add(m_start);
+        for (int s : states) {
+            NfaState state = m_nfa.get(s);
+            if (state.m_type == CONSUME && state.m_chars.contains(cp)) {
+                next.add(state.m_outs[0]);
+            }
+        }
+        return new StateSet(toArray(next));
+    }
+
+    protected static int[] toArray(Collection<Integer> values) {
+        int[] array = new int[values.size()];
+        int i = 0;
+        for (int value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    /**
+     * A state of the NFA
+     */
+    protected static class NfaState {
+
+        protected final int m_type;
+
+        protected CharSet m_chars;
+
+        protected int m_condition;
+
+        protected int m_pattern;
+
+        protected int[] m_outs;
+
+        public NfaState(int type) {
+            m_type = type;
+        }
+    }
+
+    /**
+     * A sorted set of NFA states, used as the key of a DFA state
+     */
+    protected static class StateSet {
+
+        protected final int[] m_states;
+
+        protected final int m_hash;
+
+        public StateSet(int[] states) {
+            m_states = states;
+            m_hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet && Arrays.equals(m_states, ((StateSet) o).m_states);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+    }
+
+    /**
+     * A DFA state before epsilon transitions are followed, which depends on the conditions at the next position
+     */
+    protected static class DfaState {
+
+        protected final StateSet m_set;
+
+        protected final ClosedState[] m_closed = new ClosedState[16];
+
+        public DfaState(StateSet set) {
+            m_set = set;
+        }
+
+        protected ClosedState close(RegexSet regexes, int conditions) {
+            ClosedState closed = m_closed[conditions];
+            if (closed == null) {
+                closed = regexes.getClosedState(regexes.closure(m_set.m_states, conditions));
+                m_closed[conditions] = closed;
+            }
+            return closed;
+        }
+    }
+
+    /**
+     * A DFA state after epsilon transitions are followed, which has transitions on characters
+     */
+    protected static class ClosedState {
+
+        protected final StateSet m_set;
+
+        protected final int[] m_accepts;
+
+        protected final DfaState[] m_ascii = new DfaState[128];
+
+        protected final ConcurrentMap<Integer, DfaState> m_other = new ConcurrentHashMap<>();
+
+        public ClosedState(StateSet set, int[] accepts) {
+            m_set = set;
+            m_accepts = accepts;
+        }
+
+        protected DfaState step(RegexSet regexes, int cp) {
+            DfaState next = cp < 128 ? m_ascii[cp] : m_other.get(cp);
+            if (next == null) {
+                next = regexes.getDfaState(regexes.step(m_set.m_states, cp));
+                if (next != null) {
+                    if (cp < 128) {
+                        m_ascii[cp] = next;
+                    } else {
+                        m_other.put(cp, next);
+                    }
+                }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * A set of code points stored as sorted, disjoint, inclusive ranges
+     */
+    protected static class CharSet {
+
+        protected static final int MAX = Character.MAX_CODE_POINT;
+
+        protected final int[] m_ranges;
+
+        public CharSet(int[] ranges) {
+            m_ranges = ranges;
+        }
+
+        public static CharSet of(List<int[]> ranges) {
+            List<int[]> sorted = new ArrayList<>(ranges);
+            Collections.sort(sorted, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return Integer.compare(a[0], b[0]);
+                }
+            });
+
+            List<Integer> merged = new ArrayList<>();
+            for (int[] range : sorted) {
+                int last = merged.size() - 1;
+                if (last > 0 && range[0] <= merged.get(last) + 1) {
+                    merged.set(last, Math.max(merged.get(last), range[1]));
+                } else {
+                    merged.add(range[0]);
+                    merged.add(range[1]);
+                }
+            }
+            return new CharSet(toArray(merged));
+        }
+
+        public boolean contains(int cp) {
+            // binary search for the last range starting at or before cp
+            int lo = 0, hi = m_ranges.length / 2 - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (m_ranges[mid * 2] > cp) {
+                    hi = mid - 1;
+                } else if (m_ranges[mid * 2 + 1] < cp) {
+                    lo = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public List<int[]> toRanges() {
+            List<int[]> ranges = new ArrayList<>();
+            for (int r = 0; r < m_ranges.length; r += 2) {
+                ranges.add(new int[] { m_ranges[r], m_ranges[r + 1] });
+            }
+            return ranges;
+        }
+
+        public CharSet negate() {
+            List<int[]> ranges = new ArrayList<>();
+            int from = 0;
+            for (int r = 0; r < m_ranges.length; r += 2) {
+                if (m_ranges[r] > from) {
+                    ranges.add(new int[] { from, m_ranges[r] - 1 });
+                }
+                from = m_ranges[r + 1] + 1;
+            }
+            if (from <= MAX) {
+                ranges.add(new int[] { from, MAX });
+            }
+            return of(ranges);
+        }
+
+        /**
+         * Adds the other case of any ASCII letters, as the CASE_INSENSITIVE flag does
+         */
+        public CharSet foldCase() {
+            List<int[]> ranges = toRanges();
+            for (int[] range : toRanges()) {
+                addShifted(ranges, range, 'A', 'Z', 'a' - 'A');
+                addShifted(ranges, range, 'a', 'z', 'A' - 'a');
+            }
+            return of(ranges);
+        }
+
+        protected static void addShifted(List<int[]> ranges, int[] range, int from, int to, int shift) {
+            int start = Math.max(range[0], from), end = Math.min(range[1], to);
+            if (start <= end) {
+                ranges.add(new int[] { start + shift, end + shift });
+            }
+        }
+    }
+
+    /**
+     * A node of a parsed pattern
+     */
+    protected static class Node {
+
+        static final int EMPTY = 0;
+        static final int CHARS = 1;
+        static final int ANCHOR = 2;
+        static final int CONCAT = 3;
+        static final int ALTERNATION = 4;
+        static final int REPEAT = 5;
+
+        protected final int m_type;
+
+        protected CharSet m_chars;
+
+        protected int m_condition;
+
+        protected List<Node> m_children = new ArrayList<>();
+
+        protected int m_min;
+
+        protected int m_max;
+
+        public Node(int type) {
+            m_type = type;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset of the regex syntax. Throws UnsupportedOperationException
+     * for anything outside that subset.
+     */
+    protected static class Parser {
+
+        protected final String m_pattern;
+
+        protected int m_pos;
+
+        protected int m_conditions;
+
+        public Parser(String pattern) {
+            m_pattern = pattern;
+        }
+
+        public Node parse() {
+            Node node = parseAlternation();
+            if (m_pos < m_pattern.length()) {
+                throw unsupported();
+            }
+            return node;
+        }
+
+        protected Node parseAlternation() {
+            Node first = parseConcatenation();
+            if (!lookingAt('|')) {
+                return first;
+            }
+
+            Node node = new Node(Node.ALTERNATION);
+            node.m_children.add(first);
+            while (lookingAt('|')) {
+                m_pos++;
+                node.m_children.add(parseConcatenation());
+            }
+            return node;
+        }
+
+        protected Node parseConcatenation() {
+            Node node = new Node(Node.CONCAT);
+            while (m_pos < m_pattern.length() && !lookingAt('|') && !lookingAt(')')) {
+                node.m_children.add(parseRepetition());
+            }
+            return node.m_children.isEmpty() ? new Node(Node.EMPTY) : node;
+        }
+
+        protected Node parseRepetition() {
+            Node atom = parseAtom();
+            if (m_pos >= m_pattern.length()) {
+                return atom;
+            }
+
+            int min, max;
+            char ch = m_pattern.charAt(m_pos);
+            if (ch == '*') {
+                min = 0;
+                max = -1;
+                m_pos++;
+            } else if (ch == '+') {
+                min = 1;
+                max = -1;
+                m_pos++;
+            } else if (ch == '?') {
+                min = 0;
+                max = 1;
+                m_pos++;
+            } else if (ch == '{') {
+                m_pos++;
+                min = parseNumber();
+                max = min;
+                if (lookingAt(',')) {
+                    m_pos++;
+                    max = lookingAt('}') ? -1 : parseNumber();
+                }
+                expect('}');
+                if (min > MAX_REPEAT || max > MAX_REPEAT) {
+                    throw unsupported();
+                }
+            } else {
+                return atom;
+            }
+
+            // reluctant quantifiers match the same inputs, possessive ones may not
+            if (lookingAt('?')) {
+                m_pos++;
+            } else if (lookingAt('+')) {
+                throw unsupported();
+            }
+
+            // java.util.regex doesn't treat a quantifier after a quantifier as repeating the repetition, e.g. a+{2}
+            // matches "a", so leave those to it
+            if (lookingAt('*') || lookingAt('+') || lookingAt('?') || lookingAt('{')) {
+                throw unsupported();
+            }
+
+            Node repeat = new Node(Node.REPEAT);
+            repeat.m_children.add(atom);
+            repeat.m_min = min;
+            repeat.m_max = max;
+            return repeat;
+        }
+
+        protected Node parseAtom() {
+            int cp = m_pattern.codePointAt(m_pos);
+            m_pos += Character.charCount(cp);
+
+            switch (cp) {
+                case '(':
+                    if (lookingAt('?')) {
+                        if (m_pattern.startsWith("?:", m_pos)) {
+                            m_pos += 2;
+                        } else if (m_pattern.startsWith("?<", m_pos) && m_pos + 2 < m_pattern.length() && Character.isLetter(m_pattern.charAt(m_pos + 2))) {
+                            m_pos = m_pattern.indexOf('>', m_pos) + 1;
+                        } else {
+                            throw unsupported();
+                        }
+                    }
+                    Node group = parseAlternation();
+                    expect(')');
+                    return group;
+                case '[':
+                    return chars(parseClass());
+                case '.':
+                    return chars(CharSet.of(Arrays.asList(new int[] {'\n', '\n'}, new int[] {'\r', '\r'}, new int[] {'\u0085', '\u0085'}, new int[] {'\u2028', '\u2029'})).negate());
+                case '^':
+                    return anchor(AT_LINE_START);
+                case '$':
+                    return anchor(AT_LINE_END);
+                case '\\':
+                    return parseEscape();
+                case ')': case '*': case '+': case '?': case '{': case '|':
+                    throw unsupported();
+                default:
+                    return chars(single(cp).foldCase());
+            }
+        }
+
+        protected Node parseEscape() {
+            if (m_pos >= m_pattern.length()) {
+                throw unsupported();
+            }
+            char ch = m_pattern.charAt(m_pos);
+            if (ch == 'b') {
+                m_pos++;
+                return anchor(AT_BOUNDARY);
+            } else if (ch == 'B') {
+                m_pos++;
+                return anchor(NOT_AT_BOUNDARY);
+            }
+            return chars(parseEscapedChars().foldCase());
+        }
+
+        /**
+         * Parses an escape which is a character or a predefined class, positioned after the backslash
+         */
+        protected CharSet parseEscapedChars() {
+            if (m_pos >= m_pattern.length()) {
+                throw unsupported();
+            }
+            int cp = m_pattern.codePointAt(m_pos);
+            m_pos += Character.charCount(cp);
+
+            switch (cp) {
+                case 'd': return digits();
+                case 'D': return digits().negate();
+                case 'w': return wordChars();
+                case 'W': return wordChars().negate();
+                case 's': return spaces();
+                case 'S': return spaces().negate();
+                case 't': return single('\t');
+                case 'n': return single('\n');
+                case 'r': return single('\r');
+                case 'f': return single('\f');
+                case 'a': return single('\u0007');
+                case 'e': return single('\u001B');
+                case 'x': return single(parseHex(2));
+                case 'u':
+                    // Java joins escaped surrogate pairs into one character, which we don't
+                    int ch = parseHex(4);
+                    if (Character.isSurrogate((char) ch)) {
+                        throw unsupported();
+                    }
+                    return single(ch);
+                default:
+                    // other letters and digits are classes, backreferences or quoting which we don't support
+                    if (Character.isLetterOrDigit(cp)) {
+                        throw unsupported();
+                    }
+                    return single(cp);
+            }
+        }
+
+        protected CharSet parseClass() {
+            boolean negated = false;
+            if (lookingAt('^')) {
+                negated = true;
+                m_pos++;
+            }
+            if (lookingAt(']')) {
+                throw unsupported();
+            }
+
+            List<int[]> ranges = new ArrayList<>();
+            while (!lookingAt(']')) {
+                if (m_pos >= m_pattern.length() || lookingAt('[') || m_pattern.startsWith("&&", m_pos)) {
+                    throw unsupported();
+                }
+
+                CharSet item;
+                if (lookingAt('\\')) {
+                    m_pos++;
+                    item = parseEscapedChars();
+                } else {
+                    int cp = m_pattern.codePointAt(m_pos);
+                    m_pos += Character.charCount(cp);
+                    item = single(cp);
+                }
+
+                // is this the start of a range?
+                if (lookingAt('-') && m_pos + 1 < m_pattern.length() && m_pattern.charAt(m_pos + 1) != ']') {
+                    int[] itemRanges = item.m_ranges;
+                    if (itemRanges.length != 2 || itemRanges[0] != itemRanges[1]) {
+                        throw unsupported();
+                    }
+                    m_pos++;
+
+                    int end;
+                    if (lookingAt('\\')) {
+                        m_pos++;
+                        int[] endRanges = parseEscapedChars().m_ranges;
+                        if (endRanges.length < 2) {
+                            throw unsupported();
+                        }
+                        end = endRanges[0];
+                    } else if (lookingAt('[')) {
+                        throw unsupported();
+                    } else {
+                        end = m_pattern.codePointAt(m_pos);
+                        m_pos += Character.charCount(end);
+                    }
+                    ranges.add(new int[] { itemRanges[0], end });
+                } else {
+                    ranges.addAll(item.toRanges());
+                }
+            }
+            m_pos++;
+
+            CharSet set = CharSet.of(ranges).foldCase();
+            return negated ? set.negate() : set;
+        }
+
+        protected int parseNumber() {
+            int start = m_pos;
+            while (m_pos < m_pattern.length() && Character.isDigit(m_pattern.charAt(m_pos)) && m_pos - start < 4) {
+                m_pos++;
+            }
+            if (m_pos == start) {
+                throw unsupported();
+            }
+            return Integer.parseInt(m_pattern.substring(start, m_pos));
+        }
+
+        protected int parseHex(int digits) {
+            if (m_pos + digits > m_pattern.length()) {
+                throw unsupported();
+            }
+            try {
+                int value = Integer.parseInt(m_pattern.substring(m_pos, m_pos + digits), 16);
+                m_pos += digits;
+                return value;
+            } catch (NumberFormatException ex) {
+                throw unsupported();
+            }
+        }
+
+        protected Node chars(CharSet set) {
+            Node node = new Node(Node.CHARS);
+            node.m_chars = set;
+            return node;
+        }
+
+        protected Node anchor(int condition) {
+            Node node = new Node(Node.ANCHOR);
+            node.m_condition = condition;
+            m_conditions |= condition;
+            return node;
+        }
+
+        protected static CharSet single(int cp) {
+            return new CharSet(new int[] { cp, cp });
+        }
+
+        protected static CharSet digits() {
+            return new CharSet(new int[] { '0', '9' });
+        }
+
+        protected static CharSet wordChars() {
+            return new CharSet(new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' });
+        }
+
+        protected static CharSet spaces() {
+            return new CharSet(new int[] { '\t', '\r', ' ', ' ' });
+        }
+
+        protected boolean lookingAt(char ch) {
+            return m_pos < m_pattern.length() && m_pattern.charAt(m_pos) == ch;
+        }
+
+        protected void expect(char ch) {
+            if (!lookingAt(ch)) {
+                throw unsupported();
+            }
+            m_pos++;
+        }
+
+        protected UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException("Unsupported pattern: " + m_pattern);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.rapidpro.flows.definition;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link CompiledFlow}
+ */
+public class CompiledFlowTest extends BaseFlowsTest {
+
+    @Test
+    public void compile() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        CompiledFlow compiled = flow.getCompiled();
+
+        assertThat(compiled.getFlow(), is(flow));
+        assertThat(compiled.getNodeCount(), is(6));
+
+        // every node knows its own index
+        for (int n = 0; n < compiled.getNodeCount(); n++) {
+            assertThat(compiled.getNode(n).getIndex(), is(n));
+        }
+
+        int as1 = compiled.getEntry();
+        assertThat(compiled.getNode(as1), is(flow.getEntry()));
+        assertThat(compiled.getKind(as1), is(CompiledFlow.ACTION_SET));
+        assertThat(compiled.getActionSet(as1), is((ActionSet) flow.getEntry()));
+        assertThat(compiled.getRuleSet(as1), is(nullValue()));
+
+        int rs1 = compiled.getDestination(as1);
+        assertThat(compiled.getKind(rs1), is(CompiledFlow.RULE_SET));
+        assertThat(compiled.getNode(rs1).getUuid(), is("1e318293-4730-481c-b455-daaaf86b2e6c"));
+        assertThat(compiled.getDestination(rs1), is(CompiledFlow.NONE));
+
+        int as2 = compiled.getRuleDestination(rs1, 0);
+        int as3 = compiled.getRuleDestination(rs1, 1);
+        int as4 = compiled.getRuleDestination(rs1, 2);
+
+        assertThat(compiled.getNode(as2).getUuid(), is("6d12cde9-dbbf-4673-acd7-afa1776d382b"));
+        assertThat(compiled.getNode(as3).getUuid(), is("4ef2b232-1484-4db7-b470-98af1a2349d3"));
+        assertThat(compiled.getNode(as4).getUuid(), is("e277932e-d546-4e0c-a483-ce6cce06b929"));
+        assertThat(compiled.getDestination(as2), is(compiled.getDestination(as3)));
+        assertThat(compiled.getDestination(as4), is(rs1));
+
+        // terminal node has no destination
+        int as5 = compiled.getDestination(as2);
+        assertThat(compiled.getNode(as5).getUuid(), is("6891e592-1e29-426b-b227-e3ae466662ab"));
+        assertThat(compiled.getDestination(as5), is(CompiledFlow.NONE));
+    }
+
+    @Test
+    public void compile_emptyFlow() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/empty.json"));
+        CompiledFlow compiled = flow.getCompiled();
+
+        assertThat(compiled.getNodeCount(), is(0));
+        assertThat(compiled.getEntry(), is(CompiledFlow.NONE));
+    }
+}
@@ -0,0 +1,83 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link NumericRuleIndex}
+ */
+public class NumericRuleIndexTest extends BaseFlowsTest {
+
+    @Test
+    public void restrict() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(rule(JsonUtils.object("type", "lt", "test", "0")));                   // 0
+        rules.add(rule(JsonUtils.object("type", "between", "min", "18", "max", "35")));  // 1
+        rules.add(rule(JsonUtils.object("type", "eq", "test", "40")));                  // 2
+        rules.add(rule(JsonUtils.object("type", "gte", "test", "@contact.age")));       // 3
+        rules.add(rule(JsonUtils.object("type", "gt", "test", "35 ")));                 // 4
+        rules.add(rule(JsonUtils.object("type", "lte", "test", "abc")));                // 5
+        rules.add(rule(JsonUtils.object("type", "number")));                            // 6
+        rules.add(rule(JsonUtils.object("type", "true")));                              // 7
+
+        NumericRuleIndex index = NumericRuleIndex.build(rules);
+
+        assertThat(restrict(index, "-1"), is(bits(0, 3, 7)));
+        assertThat(restrict(index, "0"), is(bits(3, 6, 7)));
+        assertThat(restrict(index, "18"), is(bits(1, 3, 7)));
+        assertThat(restrict(index, "35.0"), is(bits(1, 3, 7)));
+        assertThat(restrict(index, "35.5"), is(bits(3, 4, 7)));
+        assertThat(restrict(index, "40"), is(bits(2, 3, 7)));
+        assertThat(restrict(index, "10"), is(bits(3, 6, 7)));
+
+        // with several numbers we want the first rule that any of them matches
+        assertThat(restrict(index, "40", "20"), is(bits(1, 3, 7)));
+
+        // no numbers means no indexed rule can match
+        assertThat(restrict(index), is(bits(3, 7)));
+    }
+
+    @Test
+    public void build_withNoNumericRules() throws Exception {
+        List<Rule> rules = Collections.singletonList(rule(JsonUtils.object("type", "true")));
+
+        assertThat(NumericRuleIndex.build(rules), nullValue());
+    }
+
+    protected static Rule rule(JsonObject test) throws FlowParseException {
+        JsonObject obj = JsonUtils.object("uuid", "8b5a6f4e-ecb0-4a9c-8a4d-1e2f0c3d4b5a", "test", test, "category", "Other");
+        return Rule.fromJson(obj, new Flow.DeserializationContext(new HashMap<String, Flow>()));
+    }
+
+    protected static BitSet restrict(NumericRuleIndex index, String... decimals) {
+        BitSet candidates = new BitSet();
+        candidates.set(0, 8);
+
+        List<BigDecimal> values = new ArrayList<>();
+        for (String decimal : decimals) {
+            values.add(new BigDecimal(decimal));
+        }
+        index.restrict(candidates, values);
+        return candidates;
+    }
+
+    protected static BitSet bits(int... positions) {
+        BitSet bits = new BitSet();
+        for (int position : positions) {
+            bits.set(position);
+        }
+        return bits;
+    }
+}
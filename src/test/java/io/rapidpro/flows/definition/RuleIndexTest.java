@@ -0,0 +1,91 @@
+package io.rapidpro.flows.definition;
+
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.runner.InputAnalysis;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link RuleIndex}
+ */
+public class RuleIndexTest extends BaseFlowsTest {
+
+    @Test
+    public void getCandidates() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(rule("contains_any", JsonUtils.object("eng", "yes yeah", "fre", "oui")));   // 0
+        rules.add(rule("contains", JsonUtils.object("eng", "no thanks")));                    // 1
+        rules.add(rule("starts", JsonUtils.object("eng", "Stop")));                           // 2
+        rules.add(rule("contains_any", JsonUtils.object("eng", "@contact.name")));            // 3
+        rules.add(rule("contains", JsonUtils.object("eng", "")));                             // 4
+        rules.add(rule(JsonUtils.object("type", "number")));                                   // 5
+
+        RuleIndex index = new RuleIndex(rules, Arrays.asList("eng", "eng"));
+        assertThat(index.getIndexedCount(), is(3));
+
+        assertThat(candidates(index, "Yeah"), is(bits(0, 3, 4, 5)));
+        assertThat(candidates(index, "no"), is(bits(3, 4, 5)));
+        assertThat(candidates(index, "thanks, but NO"), is(bits(1, 3, 4, 5)));
+        assertThat(candidates(index, "  stop it"), is(bits(2, 3, 4, 5)));
+        assertThat(candidates(index, ""), is(bits(3, 4, 5)));
+
+        // indexes are per language
+        index = new RuleIndex(rules, Arrays.asList("fre", "eng"));
+        assertThat(candidates(index, "Yeah"), is(bits(3, 4, 5)));
+        assertThat(candidates(index, "oui"), is(bits(0, 3, 4, 5)));
+    }
+
+    @Test
+    public void getCandidates_combinedRegexes() throws Exception {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(rule("regex", JsonUtils.object("eng", "^yes\\b", "fre", "^oui\\b"))); // 0
+        rules.add(rule("regex", "(\\d+) ?kg"));                                           // 1
+        rules.add(rule("regex", "(a)\\1"));                                               // 2
+        rules.add(rule("contains", JsonUtils.object("eng", "no")));                       // 3
+
+        RuleIndex index = new RuleIndex(rules, Arrays.asList("eng", "eng"));
+
+        // without the automaton every regex rule is a candidate
+        assertThat(index.getCandidates(new InputAnalysis("yes 5kg", null), false), is(bits(0, 1, 2)));
+
+        assertThat(index.getCandidates(new InputAnalysis("yes 5kg", null), true), is(bits(0, 1, 2)));
+        assertThat(index.getCandidates(new InputAnalysis("Yes", null), true), is(bits(0, 2)));
+        assertThat(index.getCandidates(new InputAnalysis("no, 5 KG", null), true), is(bits(1, 2, 3)));
+        assertThat(index.getCandidates(new InputAnalysis("yesterday", null), true), is(bits(2)));
+
+        index = new RuleIndex(rules, Arrays.asList("fre", "eng"));
+        assertThat(index.getCandidates(new InputAnalysis("oui", null), true), is(bits(0, 2)));
+        assertThat(index.getCandidates(new InputAnalysis("yes", null), true), is(bits(2)));
+    }
+
+    protected static Rule rule(String type, Object test) throws FlowParseException {
+        return rule(JsonUtils.object("type", type, "test", test));
+    }
+
+    protected static Rule rule(JsonObject test) throws FlowParseException {
+        JsonObject obj = JsonUtils.object("uuid", "8b5a6f4e-ecb0-4a9c-8a4d-1e2f0c3d4b5a", "test", test, "category", "Other");
+        return Rule.fromJson(obj, new Flow.DeserializationContext(new HashMap<String, Flow>()));
+    }
+
+    protected static BitSet candidates(RuleIndex index, String input) {
+        return index.getCandidates(new InputAnalysis(input, null));
+    }
+
+    protected static BitSet bits(int... positions) {
+        BitSet bits = new BitSet();
+        for (int position : positions) {
+            bits.set(position);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,52 @@
+package io.rapidpro.flows.definition;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link TemplateFolding}
+ */
+public class TemplateFoldingTest extends BaseFlowsTest {
+
+    @Test
+    public void classify() {
+        assertThat(TemplateFolding.classify(""), is(TemplateFolding.Kind.CONSTANT));
+        assertThat(TemplateFolding.classify("Hello world"), is(TemplateFolding.Kind.CONSTANT));
+
+        assertThat(TemplateFolding.classify("@date.today"), is(TemplateFolding.Kind.DATE));
+        assertThat(TemplateFolding.classify("From @date.yesterday to @DATE.Tomorrow"), is(TemplateFolding.Kind.DATE));
+        assertThat(TemplateFolding.classify("Today is @date.today!"), is(TemplateFolding.Kind.DATE));
+
+        assertThat(TemplateFolding.classify("Hi @contact"), nullValue());
+        assertThat(TemplateFolding.classify("@date.today and @contact.name"), nullValue());
+        assertThat(TemplateFolding.classify("@date.now"), nullValue());
+        assertThat(TemplateFolding.classify("@date.todays"), nullValue());
+        assertThat(TemplateFolding.classify("@date.today.time"), nullValue());
+        assertThat(TemplateFolding.classify("@(date.today + 1)"), nullValue());
+        assertThat(TemplateFolding.classify("me@@date.today"), nullValue());
+        assertThat(TemplateFolding.classify("@"), nullValue());
+    }
+
+    @Test
+    public void fold() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Map<String, TemplateFolding.Kind> folded = flow.getFoldedTemplates();
+
+        // message translations
+        assertThat(folded, hasEntry("You should reconsider", TemplateFolding.Kind.CONSTANT));
+        assertThat(folded, hasEntry("Vous devriez revoir", TemplateFolding.Kind.CONSTANT));
+        assertThat(folded, not(hasKey("Hi @contact.first_name. Do you like mushrooms?")));
+
+        // test arguments
+        assertThat(folded, hasEntry("yes,yeah,yup", TemplateFolding.Kind.CONSTANT));
+        assertThat(folded, hasEntry("non", TemplateFolding.Kind.CONSTANT));
+
+        // operand
+        assertThat(folded, not(hasKey("@step.value")));
+    }
+}
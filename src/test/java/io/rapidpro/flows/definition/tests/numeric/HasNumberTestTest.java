@@ -31,5 +31,10 @@ public class HasNumberTestTest extends BaseTestTest {
         assertTest(test, "4l dogs", true, new BigDecimal(41));
         assertTest(test, "cats", false, null);
         assertTest(test, "dogs", false, null);
+        assertTest(test, "  I have\t1,234\n cats ", true, new BigDecimal(1234));
+        assertTest(test, "cats: 12cats", true, new BigDecimal(12));
+        assertTest(test, "lol", true, new BigDecimal(101));
+        assertTest(test, "\u0661\u0662 cats", true, new BigDecimal(12));
+        assertTest(test, "", false, null);
     }
 }
@@ -1,16 +1,19 @@
 package io.rapidpro.flows.definition.tests.text;
 
 import com.google.gson.JsonElement;
+import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.TranslatableText;
 import io.rapidpro.flows.definition.tests.BaseTestTest;
 import io.rapidpro.flows.definition.tests.Test;
+import io.rapidpro.flows.runner.Runner;
 import io.rapidpro.flows.utils.JsonUtils;
 
+import org.apache.commons.lang3.StringUtils;
+
 import java.util.HashMap;
 import java.util.Map;
 
-import static org.hamcrest.Matchers.hasEntry;
-import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -38,4 +41,44 @@ public class RegexTestTest extends BaseTestTest {
         assertThat(m_run.getExtra(), hasEntry("1", (Object) "Isaac"));
         assertThat(m_run.getExtra(), hasEntry("2", (Object) "Newton"));
     }
+
+    @org.junit.Test
+    public void evaluate_translated() {
+        RegexTest test = new RegexTest(new TranslatableText("eng", "^(yes|yeah)\\b", "fre", "^oui\\b"));
+        long misses = RegexTest.getPatternCache().getMisses();
+        long hits = RegexTest.getPatternCache().getHits();
+
+        assertTest(test, "Yeah sure", true, "Yeah");
+        assertTest(test, "yes", true, "yes");
+        assertTest(test, "nope", false, null);
+
+        // pattern is compiled once and then fetched from the cache
+        assertThat(RegexTest.getPatternCache().getMisses() - misses, is(1L));
+        assertThat(RegexTest.getPatternCache().getHits() - hits, is(2L));
+
+        // invalid patterns never match and are cached too
+        test = new RegexTest(new TranslatableText("eng", "(unclosed"));
+        assertTest(test, "(unclosed", false, null);
+        assertTest(test, "(unclosed", false, null);
+        assertThat(RegexTest.getPatternCache().getMisses() - misses, is(2L));
+    }
+
+    @org.junit.Test
+    public void evaluate_withTimeout() {
+        Runner runner = new RunnerBuilder().withRegexTimeout(50).build();
+        RegexTest test = new RegexTest(new TranslatableText("(.*a){12}c"));
+
+        // without a time limit this would backtrack for hours
+        Test.Result result = test.evaluate(runner, m_run, m_context, StringUtils.repeat("a", 100));
+        assertThat(result.isMatched(), is(false));
+        assertThat(result.getError(), is("Regex \"(.*a){12}c\" timed out after 50ms"));
+        assertThat(runner.getRegexTimeoutCount(), is(1L));
+
+        // inputs which match quickly are unaffected
+        result = test.evaluate(runner, m_run, m_context, "aaaaaaaaaaaaac");
+        assertThat(result.isMatched(), is(true));
+        assertThat(result.getValue(), is((Object) "aaaaaaaaaaaaac"));
+        assertThat(result.hasError(), is(false));
+        assertThat(runner.getRegexTimeoutCount(), is(1L));
+    }
 }
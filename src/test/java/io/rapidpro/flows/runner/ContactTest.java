@@ -2,6 +2,7 @@ package io.rapidpro.flows.runner;
 
 import com.google.gson.JsonObject;
 import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.EvaluationError;
 import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.flows.BaseFlowsTest;
 import io.rapidpro.flows.RunnerBuilder;
@@ -9,11 +10,16 @@ import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.utils.JsonUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.threeten.bp.Instant;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZonedDateTime;
 
+import java.math.BigDecimal;
 import java.util.Map;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Test for {@link Contact}
@@ -124,4 +130,53 @@ public class ContactTest extends BaseFlowsTest {
         assertThat(context, hasEntry("age", "34"));
         assertThat(context, hasEntry("joined", "2015-10-06T13:30:01.123000+02:00"));
     }
+
+    @Test
+    public void getTypedField() {
+        Object joined = m_contact.getTypedField("joined", Field.ValueType.DATETIME, m_context);
+        assertThat(joined, is((Object) ZonedDateTime.of(2015, 10, 6, 13, 30, 1, 123000000, ZoneId.of("Africa/Kigali"))));
+
+        // repeated reads return the same parsed value
+        assertThat(m_contact.getTypedField("joined", Field.ValueType.DATETIME, m_context), is(sameInstance(joined)));
+
+        assertThat(m_contact.getTypedField("age", Field.ValueType.DECIMAL, m_context), is((Object) new BigDecimal(34)));
+        assertThat(m_contact.getTypedField("age", Field.ValueType.TEXT, m_context), is((Object) "34"));
+        assertThat(m_contact.getTypedField("xyz", Field.ValueType.DECIMAL, m_context), is(nullValue()));
+
+        // writes discard the typed value
+        m_contact.setField("age", "35.5");
+        assertThat(m_contact.getFields(), hasEntry("age", "35.5"));
+        assertThat(m_contact.getTypedField("age", Field.ValueType.DECIMAL, m_context), is((Object) new BigDecimal("35.5")));
+
+        // as do changes to the raw value made directly
+        m_contact.getFields().put("age", "36");
+        assertThat(m_contact.getTypedField("age", Field.ValueType.DECIMAL, m_context), is((Object) new BigDecimal(36)));
+
+        // values which can't be converted aren't cached
+        m_contact.setField("age", "old");
+        try {
+            m_contact.getTypedField("age", Field.ValueType.DECIMAL, m_context);
+            fail("Should have thrown an EvaluationError");
+        } catch (EvaluationError ex) {
+            assertThat(m_contact.m_typedFields, not(hasKey("age")));
+        }
+
+        // a different timezone gives a different value
+        EvaluationContext context = new EvaluationContext(m_context.getVariables(), ZoneId.of("UTC"), DateStyle.DAY_FIRST);
+        assertThat(m_contact.getTypedField("joined", Field.ValueType.DATETIME, context), is((Object) ZonedDateTime.of(2015, 10, 6, 11, 30, 1, 123000000, ZoneId.of("UTC"))));
+
+        // dates are re-parsed when the context's current date changes, as partial dates depend on it
+        ZoneId kigali = ZoneId.of("Africa/Kigali");
+        context = new RunEvaluationContext(m_context.getVariables(), kigali, DateStyle.DAY_FIRST, Instant.parse("2015-12-01T10:00:00Z"));
+        joined = m_contact.getTypedField("joined", Field.ValueType.DATETIME, context);
+        context = new RunEvaluationContext(m_context.getVariables(), kigali, DateStyle.DAY_FIRST, Instant.parse("2015-12-01T20:00:00Z"));
+        assertThat(m_contact.getTypedField("joined", Field.ValueType.DATETIME, context), is(sameInstance(joined)));
+        context = new RunEvaluationContext(m_context.getVariables(), kigali, DateStyle.DAY_FIRST, Instant.parse("2015-12-02T10:00:00Z"));
+        assertThat(m_contact.getTypedField("joined", Field.ValueType.DATETIME, context), is(not(sameInstance(joined))));
+
+        // updates made by the runner are seen by the next context
+        assertThat(m_contact.buildContext(m_run, m_context), hasEntry("joined", "2015-10-06T13:30:01.123000+02:00"));
+        m_runner.updateContactField(m_run, "joined", "2016-01-02T10:00:00.000Z");
+        assertThat(m_contact.buildContext(m_run, m_context), hasEntry("joined", "2016-01-02T12:00:00+02:00"));
+    }
 }
@@ -0,0 +1,99 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.definition.TemplateFolding;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link FlowRegistry}
+ */
+public class FlowRegistryTest extends BaseFlowsTest {
+
+    @Test
+    public void registerAndGet() throws Exception {
+        Flow mushrooms = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Flow greatwall = Flow.fromJson(readResource("test_flows/greatwall.json"));
+
+        FlowRegistry registry = new FlowRegistry(Collections.singletonList(mushrooms));
+
+        assertThat(registry.size(), is(1));
+        assertThat(registry.get(mushrooms.getUuid()), is(mushrooms));
+        assertThat(registry.get(greatwall.getUuid()), nullValue());
+
+        // iteration is over a snapshot so isn't affected by later registrations
+        Map<String, Flow> before = new HashMap<>();
+        for (Map.Entry<String, Flow> entry : registry.entrySet()) {
+            registry.register(greatwall);
+            before.put(entry.getKey(), entry.getValue());
+        }
+
+        assertThat(before.size(), is(1));
+        assertThat(registry.size(), is(2));
+        assertThat(registry.containsKey(greatwall.getUuid()), is(true));
+
+        // registering an already registered flow doesn't replace the snapshot
+        Map<String, Flow> snapshot = registry.m_snapshot;
+        registry.register(mushrooms);
+        assertThat(registry.m_snapshot, is(sameInstance(snapshot)));
+
+        // templates of both flows are merged
+        for (Flow flow : Arrays.asList(mushrooms, greatwall)) {
+            for (Map.Entry<String, TemplateFolding.Kind> template : flow.getFoldedTemplates().entrySet()) {
+                assertThat(registry.getTemplateKind(template.getKey()), is(template.getValue()));
+            }
+        }
+
+        assertThat(registry.remove(mushrooms.getUuid()), is(mushrooms));
+        assertThat(registry.remove(mushrooms.getUuid()), nullValue());
+        assertThat(registry.keySet(), contains(greatwall.getUuid()));
+
+        registry.clear();
+
+        assertThat(registry.isEmpty(), is(true));
+    }
+
+    @Test
+    public void sharedRunner() throws Exception {
+        final Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        final Runner runner = new RunnerBuilder().build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<RunState>> futures = new ArrayList<>();
+        for (int t = 0; t < 20; t++) {
+            futures.add(executor.submit(new Callable<RunState>() {
+                @Override
+                public RunState call() throws Exception {
+                    Contact contact = new Contact("1234-1234", "Joe Flow", ContactUrn.fromString("tel:+260964153686"), "eng");
+                    RunState run = runner.start(m_org, new ArrayList<>(m_fields), contact, flow);
+                    return runner.resume(run, Input.of("no"));
+                }
+            }));
+        }
+
+        for (Future<RunState> future : futures) {
+            RunState run = future.get();
+            assertThat(run.getState(), is(RunState.State.COMPLETED));
+            assertThat(run.getValues().get("response_1").getCategory(), is("No"));
+        }
+
+        executor.shutdown();
+
+        assertThat(runner.getFlows().get(flow.getUuid()), is(flow));
+    }
+}
@@ -0,0 +1,45 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import org.junit.Test;
+import org.threeten.bp.LocalDate;
+
+import java.math.BigDecimal;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link InputAnalysis}
+ */
+public class InputAnalysisTest extends BaseFlowsTest {
+
+    @Test
+    public void analysis() throws Exception {
+        Runner runner = new RunnerBuilder().build();
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        EvaluationContext context = run.buildContext(runner, null);
+
+        InputAnalysis analysis = InputAnalysis.of(context, " I am 3l, born 1,234 Yes ");
+
+        assertThat(analysis.getTokens(), arrayContaining("I", "am", "3l", "born", "1", "234", "Yes"));
+        assertThat(analysis.getLowerTokens(), arrayContaining("i", "am", "3l", "born", "1", "234", "yes"));
+        assertThat(analysis.getTrimmedText(), is("I am 3l, born 1,234 Yes"));
+        assertThat(analysis.getTrimmedLowerText(), is("i am 3l, born 1,234 yes"));
+        assertThat(analysis.getDecimals(), contains(new BigDecimal(31), new BigDecimal(1234)));
+        assertThat(analysis.getDate(), nullValue());
+
+        // the same text gets the same analysis
+        assertThat(InputAnalysis.of(context, " I am 3l, born 1,234 Yes "), sameInstance(analysis));
+        assertThat(analysis.getTokens(), sameInstance(analysis.getTokens()));
+
+        // but different text doesn't
+        analysis = InputAnalysis.of(context, "14/11/2015");
+        assertThat(analysis.getDate(), is(LocalDate.of(2015, 11, 14)));
+        assertThat(analysis.getDecimals(), contains(new BigDecimal(14)));
+    }
+}
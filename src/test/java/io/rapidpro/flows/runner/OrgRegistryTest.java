@@ -0,0 +1,141 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link OrgRegistry}
+ */
+public class OrgRegistryTest extends BaseFlowsTest {
+
+    protected OrgRegistry m_orgs;
+
+    protected Flow m_flow;
+
+    protected Map<String, Flow> m_flowMap;
+
+    protected Runner m_runner;
+
+    @Before
+    public void setupRegistry() throws Exception {
+        m_orgs = new OrgRegistry();
+        m_flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        m_flowMap = RunState.buildFlowMap(m_flow);
+        m_runner = new RunnerBuilder().build();
+    }
+
+    @Test
+    public void registerAndGet() {
+        OrgRegistry.Entry entry = m_orgs.register("org-1", m_org, m_fields);
+
+        assertThat(m_orgs.get("org-1"), is(sameInstance(entry)));
+        assertThat(m_orgs.get("org-2"), nullValue());
+        assertThat(entry.getId(), is("org-1"));
+        assertThat(entry.getOrg(), is(sameInstance(m_org)));
+        assertThat(entry.getFields(), is(m_fields));
+
+        // the registered fields are a copy which can't be modified
+        m_fields.add(new Field("nickname", "Nickname", Field.ValueType.TEXT));
+        assertThat(entry.getFields(), hasSize(3));
+        try {
+            entry.getFields().add(new Field("nickname", "Nickname", Field.ValueType.TEXT));
+            fail("Should have thrown an UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // re-registering replaces the entry but not the old entry's fields
+        OrgRegistry.Entry replaced = m_orgs.register("org-1", m_org, m_fields);
+        assertThat(m_orgs.get("org-1"), is(sameInstance(replaced)));
+        assertThat(entry.getFields(), hasSize(3));
+        assertThat(replaced.getFields(), hasSize(4));
+
+        m_orgs.unregister("org-1");
+        assertThat(m_orgs.get("org-1"), nullValue());
+    }
+
+    @Test
+    public void runsShareOrgAndFields() throws Exception {
+        OrgRegistry.Entry entry = m_orgs.register("org-1", m_org, m_fields);
+
+        RunState run = m_runner.start(entry, m_contact, m_flow);
+        assertThat(run.getRegisteredOrg(), is(sameInstance(entry)));
+        assertThat(run.getOrg(), is(sameInstance(m_org)));
+        assertThat(run.m_fields, is(sameInstance(entry.getFields())));
+
+        // serialized run only has the org id and no fields as it hasn't created any
+        JsonObject json = JsonUtils.getGson().fromJson(run.toJsonString(), JsonObject.class);
+        assertThat(json.get("org_id").getAsString(), is("org-1"));
+        assertThat(json.has("org"), is(false));
+        assertThat(json.get("fields").getAsJsonArray().size(), is(0));
+        assertThat(run.toJson().getAsJsonObject().get("org_id").getAsString(), is("org-1"));
+
+        // and deserializes back to the shared instances
+        RunState loaded = RunState.fromJson(run.toJsonString(), m_flowMap, m_orgs);
+        assertThat(loaded.getRegisteredOrg(), is(sameInstance(entry)));
+        assertThat(loaded.getOrg(), is(sameInstance(m_org)));
+        assertThat(loaded.m_fields, is(sameInstance(entry.getFields())));
+        assertThat(loaded.toJsonString(), is(run.toJsonString()));
+
+        // creating a field copies the fields rather than modifying the shared ones
+        m_runner.resume(loaded, Input.of("No"));
+        assertThat(loaded.getCreatedFields(), contains(new Field("preference", "Preference", Field.ValueType.TEXT)));
+        assertThat(loaded.m_fields, hasSize(4));
+        assertThat(entry.getFields(), hasSize(3));
+
+        // so now the created field is serialized too
+        json = JsonUtils.getGson().fromJson(loaded.toJsonString(), JsonObject.class);
+        assertThat(json.get("fields"), is((Object) JsonUtils.array(loaded.getCreatedFields().get(0))));
+
+        RunState reloaded = RunState.fromJson(new StringReader(loaded.toJsonString()), m_flowMap, m_orgs);
+        assertThat(reloaded.getOrg(), is(sameInstance(m_org)));
+        assertThat(reloaded.m_fields, hasSize(4));
+        assertThat(reloaded.m_fields.get(0), is(sameInstance(entry.getFields().get(0))));
+        assertThat(reloaded.toJsonString(), is(loaded.toJsonString()));
+
+        // and in binary
+        RunState decoded = RunState.fromBytes(loaded.toBytes(), m_flowMap, m_orgs);
+        assertThat(decoded.getOrg(), is(sameInstance(m_org)));
+        assertThat(decoded.m_fields.get(0), is(sameInstance(entry.getFields().get(0))));
+        assertThat(decoded.toJsonString(), is(loaded.toJsonString()));
+
+        // if the org later gets the created field, the run uses the org's one
+        Field preference = new Field("preference", "Preference", Field.ValueType.TEXT);
+        OrgRegistry.Entry updated = m_orgs.register("org-1", m_org, Arrays.asList(m_fields.get(0), m_fields.get(1), m_fields.get(2), preference));
+        reloaded = RunState.fromJson(loaded.toJsonString(), m_flowMap, m_orgs);
+        assertThat(reloaded.m_fields, is(sameInstance(updated.getFields())));
+    }
+
+    @Test
+    public void fromJson_unregisteredOrg() throws Exception {
+        RunState run = m_runner.start(m_orgs.register("org-1", m_org, m_fields), m_contact, m_flow);
+        String json = run.toJsonString();
+
+        try {
+            RunState.fromJson(new StringReader(json), m_flowMap, new OrgRegistry());
+            fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Run state refers to unregistered org: org-1"));
+        }
+        try {
+            RunState.fromJson(new StringReader(json), m_flowMap);
+            fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Run state refers to unregistered org: org-1"));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Test;
+import org.threeten.bp.Instant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link RunStateCodec}
+ */
+public class RunStateCodecTest extends BaseFlowsTest {
+
+    @Test
+    public void encodeAndDecode() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Yes"));
+
+        // timestamps with sub-millisecond precision, nulls and non-ASCII text should all survive
+        run.getSteps().get(0).m_arrivedOn = Instant.parse("2015-10-06T11:30:01.123456Z");
+        run.getSteps().get(0).addError("Something's <wrong> \u2603");
+        run.getExtra().put("note", null);
+        m_contact.setName(null);
+
+        String json = run.toJsonString();
+        Map<String, Flow> flows = RunState.buildFlowMap(flow);
+
+        byte[] bytes = run.toBytes();
+        RunState decoded = RunState.fromBytes(bytes, flows);
+        assertThat(decoded.toJsonString(), is(json));
+        assertThat(decoded.getSteps().get(0).getNode(), is(sameInstance(run.getSteps().get(0).getNode())));
+        assertThat(decoded.getActiveFlow(), is(sameInstance(flow)));
+
+        // and so should the same run state re-encoded
+        assertThat(decoded.toBytes(), is(bytes));
+
+        // via streams too
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunStateCodec.encode(run, out);
+        assertThat(out.toByteArray(), is(bytes));
+        assertThat(RunStateCodec.decode(new ByteArrayInputStream(bytes), flows).toJsonString(), is(json));
+
+        assertThat(bytes.length, lessThan(json.length() / 2));
+    }
+
+    @Test
+    public void encodeAndDecode_withSubflows() throws Exception {
+        JsonObject obj = JsonUtils.getGson().fromJson(readResource("test_flows/subflow.json"), JsonObject.class);
+        List<Flow> flowList = new ArrayList<>();
+        Map<String, Flow> flows = new HashMap<>();
+        for (JsonElement elem : obj.getAsJsonArray("flows")) {
+            Flow flow = Flow.fromJson(elem.toString());
+            flowList.add(flow);
+            flows.put(flow.getUuid(), flow);
+        }
+
+        Runner runner = new RunnerBuilder(flowList).build();
+        RunState run = runner.start(m_org, m_fields, m_contact, "7c1dee9b-af4c-407b-a269-5553e59149e1");
+        run = runner.resume(run, Input.of("color"));
+
+        // run is now in the child flow with the parent's steps suspended
+        assertThat(run.m_activeFlows, hasSize(2));
+        assertThat(run.m_suspendedSteps, not(empty()));
+
+        String json = run.toJsonString();
+        RunState decoded = RunState.fromBytes(run.toBytes(), flows);
+        assertThat(decoded.toJsonString(), is(json));
+
+        decoded = runner.resume(decoded, Input.of("red"));
+        assertThat(decoded.getSteps().get(0).getRuleResult().getCategory(), is("Red"));
+    }
+
+    @Test
+    public void decode_unsupportedVersion() throws Exception {
+        try {
+            RunStateCodec.decode(new ByteArrayInputStream(new byte[] { 99 }), new HashMap<String, Flow>());
+            fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Unsupported run state format version: 99"));
+        }
+    }
+
+    @Test
+    public void decode_unknownFlow() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        RunState run = new RunnerBuilder().build().start(m_org, m_fields, m_contact, flow);
+        byte[] bytes = run.toBytes();
+
+        try {
+            RunStateCodec.decode(new ByteArrayInputStream(bytes), new HashMap<String, Flow>());
+            fail("Should have thrown an IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Run state refers to unknown flow: " + flow.getUuid()));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package io.rapidpro.flows.runner;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link RunStateDelta}
+ */
+public class RunStateDeltaTest extends BaseFlowsTest {
+
+    protected Flow m_flow;
+
+    protected Runner m_runner;
+
+    @Before
+    public void setupRunner() throws Exception {
+        m_flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        m_runner = new RunnerBuilder().build();
+    }
+
+    @Test
+    public void getDelta() throws Exception {
+        RunState run = m_runner.start(m_org, m_fields, m_contact, m_flow);
+
+        // a run state which has never been saved must be saved in full
+        RunStateDelta delta = run.getDelta();
+        assertThat(delta.isFull(), is(true));
+        assertThat(delta.isEmpty(), is(false));
+        assertThat(delta.toJson(), is((Object) parse("{\"full\": true, \"state\": \"wait_message\"}")));
+
+        // loading a run state doesn't track changes unless it's marked as clean
+        run = RunState.fromJson(run.toJsonString(), RunState.buildFlowMap(m_flow));
+        assertThat(run.getDelta().isFull(), is(true));
+
+        run.markClean();
+        delta = run.getDelta();
+        assertThat(delta.isFull(), is(false));
+        assertThat(delta.isEmpty(), is(true));
+
+        List<Step> previousSteps = new ArrayList<>(run.getSteps());
+
+        // resuming adds steps, a value, a group and a field through the flow's actions
+        m_runner.resume(run, Input.of("No"));
+        run.getContact().setField("age", "35");
+        run.getContact().getFields().remove("gender");
+        run.getContact().setLanguage("fre");
+        run.getExtra().put("source", "sms");
+
+        delta = run.getDelta();
+        assertThat(delta.isFull(), is(false));
+        assertThat(delta.isEmpty(), is(false));
+        assertThat(delta.getAddedSteps(), is(run.getSteps()));
+        assertThat(delta.getRemovedSteps(), is(previousSteps));
+
+        assertThat(delta.getValueChanges(), hasSize(1));
+        assertThat(delta.getValueChanges().get(0).getLevel(), is(0));
+        assertThat(delta.getValueChanges().get(0).getKey(), is("response_1"));
+        assertThat(delta.getValueChanges().get(0).getValue(), is(sameInstance(run.getValues().get("response_1"))));
+
+        assertThat(delta.getChangedExtra(), hasEntry("source", "sms"));
+        assertThat(delta.getRemovedExtra(), is(empty()));
+
+        assertThat(delta.isContactChanged(), is(true));
+        assertThat(delta.getChangedFields(), hasEntry("age", "35"));
+        assertThat(delta.getChangedFields(), hasEntry("preference", run.getContact().getFields().get("preference")));
+        assertThat(delta.getChangedFields().size(), is(2));
+        assertThat(delta.getRemovedFields(), contains("gender"));
+        assertThat(delta.getAddedGroups(), contains("Approved"));
+        assertThat(delta.getRemovedGroups(), is(empty()));
+        assertThat(delta.getAddedUrns(), is(empty()));
+        assertThat(delta.isNameChanged(), is(false));
+        assertThat(delta.isLanguageChanged(), is(true));
+
+        assertThat(delta.isStateChanged(), is(true));
+        assertThat(delta.getPreviousState(), is(RunState.State.WAIT_MESSAGE));
+        assertThat(delta.getState(), is(RunState.State.COMPLETED));
+        assertThat(delta.isSubflowsChanged(), is(false));
+        assertThat(delta.getActiveFlows(), nullValue());
+
+        // the flow saved to a field which didn't exist
+        assertThat(delta.getAddedFields(), contains(new Field("preference", "Preference", Field.ValueType.TEXT)));
+
+        JsonObject json = (JsonObject) delta.toJson();
+        assertThat(json.get("previous_state").getAsString(), is("wait_message"));
+        assertThat(json.get("added_steps").getAsJsonArray().size(), is(run.getSteps().size()));
+        assertThat(json.get("removed_steps").getAsInt(), is(previousSteps.size()));
+        assertThat(json.get("values"), is((Object) parse("[{\"level\": 0, \"key\": \"response_1\", \"value\": " + run.getValues().get("response_1").toJson() + "}]")));
+        assertThat(json.get("changed_extra"), is((Object) parse("{\"source\": \"sms\"}")));
+        JsonObject contact = json.get("contact").getAsJsonObject();
+        assertThat(contact.get("language").getAsString(), is("fre"));
+        assertThat(contact.get("changed_fields").getAsJsonObject().get("age").getAsString(), is("35"));
+        assertThat(contact.get("removed_fields"), is((Object) parse("[\"gender\"]")));
+        assertThat(contact.get("added_groups"), is((Object) parse("[\"Approved\"]")));
+        assertThat(contact.has("name"), is(false));
+        assertThat(json.get("added_fields"), is((Object) JsonUtils.array(run.getCreatedFields().get(0))));
+        assertThat(json.has("level"), is(false));
+
+        // once saved, there are no changes
+        run.markClean();
+        assertThat(run.getDelta().isEmpty(), is(true));
+
+        run.getContact().getGroups().remove("Testers");
+        delta = run.getDelta();
+        assertThat(delta.getRemovedGroups(), contains("Testers"));
+        assertThat(delta.getAddedSteps(), is(empty()));
+        assertThat(delta.isStateChanged(), is(false));
+        assertThat(delta.getAddedFields(), is(empty()));
+    }
+
+    @Test
+    public void getDelta_subflows() throws Exception {
+        JsonObject obj = JsonUtils.getGson().fromJson(readResource("test_flows/subflow.json"), JsonObject.class);
+        List<Flow> flows = new ArrayList<>();
+        for (JsonElement elem : obj.getAsJsonArray("flows")) {
+            flows.add(Flow.fromJson(elem.toString()));
+        }
+        Runner runner = new RunnerBuilder(flows).build();
+
+        RunState run = runner.start(m_org, m_fields, m_contact, "7c1dee9b-af4c-407b-a269-5553e59149e1");
+        Flow parent = run.getActiveFlow();
+        run.markClean();
+
+        // entering the subflow
+        run = runner.resume(run, Input.of("color"));
+        Flow child = run.getActiveFlow();
+        assertThat(child, is(not(sameInstance(parent))));
+
+        RunStateDelta delta = run.getDelta();
+        assertThat(delta.isSubflowsChanged(), is(true));
+        assertThat(delta.getLevel(), is(1));
+        assertThat(delta.getActiveFlows(), contains(parent, child));
+        assertThat(delta.getSuspendedSteps(), is(run.m_suspendedSteps));
+        assertThat(delta.getSuspendedSteps(), hasSize(1));
+
+        JsonObject json = (JsonObject) delta.toJson();
+        assertThat(json.get("level").getAsInt(), is(1));
+        assertThat(json.get("active_flows"), is((Object) JsonUtils.array(parent.getUuid(), child.getUuid())));
+        assertThat(json.get("suspended_steps"), is((Object) JsonUtils.toJsonArray(run.m_suspendedSteps)));
+
+        // exiting the subflow
+        run.markClean();
+        run = runner.resume(run, Input.of("red"));
+
+        delta = run.getDelta();
+        assertThat(delta.isSubflowsChanged(), is(true));
+        assertThat(delta.getLevel(), is(0));
+        assertThat(delta.getActiveFlows(), contains(parent));
+        assertThat(delta.getSuspendedSteps(), is(empty()));
+
+        json = (JsonObject) delta.toJson();
+        assertThat(json.get("level").getAsInt(), is(0));
+        assertThat(json.get("active_flows"), is((Object) JsonUtils.array(parent.getUuid())));
+        assertThat(json.get("suspended_steps"), is((Object) JsonUtils.array()));
+    }
+
+    protected static JsonElement parse(String json) {
+        return new JsonParser().parse(json);
+    }
+}
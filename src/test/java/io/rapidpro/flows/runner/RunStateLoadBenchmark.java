@@ -0,0 +1,58 @@
+package io.rapidpro.flows.runner;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.RunnerBuilder;
+import io.rapidpro.flows.definition.Flow;
+
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * Compares loading run states by streaming with loading them via a JSON tree. Not run as part of the test suite, run
+ * with:
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=io.rapidpro.flows.runner.RunStateLoadBenchmark -Dexec.classpathScope=test
+ */
+public class RunStateLoadBenchmark extends BaseFlowsTest {
+
+    protected static final int WARMUP_ITERATIONS = 20000;
+
+    protected static final int ITERATIONS = 50000;
+
+    public static void main(String[] args) throws Exception {
+        RunStateLoadBenchmark benchmark = new RunStateLoadBenchmark();
+        benchmark.initBaseData();
+        benchmark.run();
+    }
+
+    public void run() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Yes"));
+
+        String json = run.toJsonString();
+        Map<String, Flow> flows = RunState.buildFlowMap(flow);
+
+        System.out.println("Run state JSON is " + json.length() + " characters");
+
+        time("tree", json, flows, WARMUP_ITERATIONS, false);
+        time("streaming", json, flows, WARMUP_ITERATIONS, true);
+        time("tree", json, flows, ITERATIONS, false);
+        time("streaming", json, flows, ITERATIONS, true);
+    }
+
+    protected void time(String name, String json, Map<String, Flow> flows, int iterations, boolean streaming) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (streaming) {
+                RunState.fromJson(new StringReader(json), flows);
+            } else {
+                RunState.fromJsonTree(json, flows);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-10s %d loads in %dms (%.1fus per load)", name, iterations, elapsed / 1000000, elapsed / 1000.0 / iterations));
+    }
+}
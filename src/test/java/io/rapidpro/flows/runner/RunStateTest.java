@@ -5,16 +5,20 @@ import io.rapidpro.expressions.dates.DateStyle;
 import io.rapidpro.flows.BaseFlowsTest;
 import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.Flow;
+import io.rapidpro.flows.utils.JsonUtils;
 import org.junit.Test;
 import org.threeten.bp.Instant;
 import org.threeten.bp.ZoneId;
 import org.threeten.bp.ZonedDateTime;
 
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
-import static org.hamcrest.Matchers.hasEntry;
-import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -46,6 +50,34 @@ public class RunStateTest extends BaseFlowsTest {
         assertThat(context, hasEntry("yesterday", "08-23-2015"));
     }
 
+    @Test
+    public void buildContext() throws Exception {
+        Runner runner = new RunnerBuilder().build();
+        RunState run = new RunState(m_org, m_fields, m_contact, new HashMap<String, Flow>());
+        Input input = Input.of("Yes");
+
+        EvaluationContext context = run.buildContext(runner, input);
+
+        // context is reused until invalidated or requested for different input
+        assertThat(run.buildContext(runner, input), is(sameInstance(context)));
+        assertThat(run.buildContext(runner, Input.of("No")), is(not(sameInstance(context))));
+
+        context = run.buildContext(runner, input);
+        assertThat(runner.substituteVariables("@contact", context).getOutput(), is("Joe Flow"));
+
+        // values already computed don't change until the context is invalidated
+        run.getContact().setName("Bob");
+        assertThat(runner.substituteVariables("@contact", context).getOutput(), is("Joe Flow"));
+
+        run.invalidateContext();
+        context = run.buildContext(runner, input);
+        assertThat(runner.substituteVariables("@contact", context).getOutput(), is("Bob"));
+
+        // updating a contact field invalidates the context
+        runner.updateContactField(run, "gender", "F");
+        assertThat(runner.substituteVariables("@contact.gender", run.buildContext(runner, input)).getOutput(), is("F"));
+    }
+
     @Test
     public void toAndFromJson() throws Exception {
         Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
@@ -62,4 +94,77 @@ public class RunStateTest extends BaseFlowsTest {
         // json should be the same
         assertThat(restored.toJsonString(), is(json));
     }
+
+    @Test
+    public void writeJson() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Yes"));
+
+        // include characters which need escaping and members which are null
+        m_contact.setField("nickname", "<Jo\u00eb> & \"Flo='w'\"\n");
+        m_contact.setLanguage(null);
+        run.getExtra().put("note", "\u2028\u2603");
+        run.getSteps().get(0).addError("Something's <wrong>");
+
+        String expected = JsonUtils.getGson().toJson(run.toJson());
+        assertThat(run.toJsonString(), is(expected));
+
+        StringWriter writer = new StringWriter();
+        run.writeJson(writer);
+        assertThat(writer.toString(), is(expected));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        run.writeJson(stream);
+        assertThat(stream.toByteArray(), is(expected.getBytes(StandardCharsets.UTF_8)));
+
+        RunState restored = RunState.fromJson(expected, RunState.buildFlowMap(flow));
+        assertThat(restored.toJsonString(), is(expected));
+    }
+
+    @Test
+    public void fromJson_streaming() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder().build();
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+        runner.resume(run, Input.of("Yes"));
+        run.getSteps().get(0).addError("Something's <wrong>");
+        run.getExtra().put("note", "\u2603");
+
+        String json = run.toJsonString();
+        Map<String, Flow> flows = RunState.buildFlowMap(flow);
+
+        RunState streamed = RunState.fromJson(new StringReader(json), flows);
+        RunState tree = RunState.fromJsonTree(json, flows);
+
+        assertThat(streamed.toJsonString(), is(json));
+        assertThat(tree.toJsonString(), is(json));
+
+        // both loaders build the same objects
+        assertThat(streamed.getOrg().getTimezone(), is(tree.getOrg().getTimezone()));
+        assertThat(streamed.getContact().getUrns(), is(tree.getContact().getUrns()));
+        assertThat(streamed.getContact().getGroups(), contains(tree.getContact().getGroups().toArray()));
+        assertThat(streamed.getContact().getFields(), is(tree.getContact().getFields()));
+        assertThat(streamed.getStarted(), is(tree.getStarted()));
+        assertThat(streamed.getSteps(), hasSize(tree.getSteps().size()));
+        for (int s = 0; s < tree.getSteps().size(); s++) {
+            Step streamedStep = streamed.getSteps().get(s), treeStep = tree.getSteps().get(s);
+            assertThat(streamedStep.getNode(), is(sameInstance(treeStep.getNode())));
+            assertThat(streamedStep.getArrivedOn(), is(treeStep.getArrivedOn()));
+            assertThat(streamedStep.getLeftOn(), is(treeStep.getLeftOn()));
+            assertThat(streamedStep.getActions(), hasSize(treeStep.getActions().size()));
+            assertThat(streamedStep.getErrors(), is(treeStep.getErrors()));
+            if (treeStep.getRuleResult() != null) {
+                assertThat(streamedStep.getRuleResult().getRule(), is(sameInstance(treeStep.getRuleResult().getRule())));
+                assertThat(streamedStep.getRuleResult().getCategory(), is(treeStep.getRuleResult().getCategory()));
+            } else {
+                assertThat(streamedStep.getRuleResult(), is(nullValue()));
+            }
+        }
+        assertThat(streamed.getExtra(), is(tree.getExtra()));
+        assertThat(streamed.getState(), is(tree.getState()));
+        assertThat(streamed.getActiveFlow(), is(sameInstance(tree.getActiveFlow())));
+        assertThat(streamed.m_level, is(tree.m_level));
+    }
 }
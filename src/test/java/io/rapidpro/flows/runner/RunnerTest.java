@@ -6,11 +6,21 @@ import io.rapidpro.flows.RunnerBuilder;
 import io.rapidpro.flows.definition.ActionSet;
 import io.rapidpro.flows.definition.Flow;
 import io.rapidpro.flows.definition.RuleSet;
+import io.rapidpro.flows.definition.TemplateFolding;
 import org.junit.Test;
-import org.omg.PortableInterceptor.SYSTEM_EXCEPTION;
 import org.threeten.bp.Instant;
 import org.threeten.bp.ZoneId;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
@@ -281,6 +291,258 @@ public class RunnerTest extends BaseFlowsTest {
         m_runner.start(m_org, m_fields, m_contact, flow);
     }
 
+    @Test
+    public void startAllAndResumeAll() throws Exception {
+        Flow flow = Flow.fromJson(readResource("test_flows/mushrooms.json"));
+        Runner runner = new RunnerBuilder(Collections.singletonList(flow)).build();
+
+        List<Contact> contacts = new ArrayList<>();
+        for (int c = 0; c < 3; c++) {
+            contacts.add(new Contact("1234-000" + c, "Joe " + c, ContactUrn.fromString("tel:+26096415368" + c), "eng"));
+        }
+
+        List<Runner.BatchResult> results = runner.startAll(m_org, m_fields, contacts, flow.getUuid());
+
+        assertThat(results, hasSize(3));
+
+        List<RunState> runs = new ArrayList<>();
+        for (int r = 0; r < results.size(); r++) {
+            Runner.BatchResult result = results.get(r);
+            assertThat(result.isSuccess(), is(true));
+            assertThat(result.getError(), nullValue());
+            assertThat(result.getRun().getContact(), is(contacts.get(r)));
+            assertThat(result.getRun().getState(), is(RunState.State.WAIT_MESSAGE));
+            assertReply(result.getRun().getSteps().get(0).getActions().get(0), "Hi Joe. Do you like mushrooms?");
+
+            runs.add(result.getRun());
+        }
+
+        results = runner.resumeAll(runs, Arrays.asList(Input.of("yes"), Input.of("no"), Input.of("YUCK!")));
+
+        assertThat(results, hasSize(3));
+        assertThat(results.get(0).getRun(), is(runs.get(0)));
+        assertThat(results.get(0).getRun().getValues().get("response_1").getCategory(), is("Yes"));
+        assertThat(results.get(0).getRun().getState(), is(RunState.State.COMPLETED));
+        assertThat(results.get(1).getRun().getValues().get("response_1").getCategory(), is("No"));
+        assertThat(results.get(1).getRun().getState(), is(RunState.State.COMPLETED));
+        assertThat(results.get(2).getRun().getValues().get("response_1").getCategory(), is("Other"));
+        assertThat(results.get(2).getRun().getState(), is(RunState.State.WAIT_MESSAGE));
+
+        // errors are returned for the runs which failed without stopping the batch
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        results = runner.resumeAll(runs, Arrays.asList(Input.of("yes"), Input.of("no"), Input.of("no")), executor);
+        executor.shutdown();
+
+        assertThat(results.get(0).isSuccess(), is(false));
+        assertThat(results.get(0).getError().getMessage(), is("Cannot resume a completed run"));
+        assertThat(results.get(1).isSuccess(), is(false));
+        assertThat(results.get(2).isSuccess(), is(true));
+        assertThat(results.get(2).getRun().getValues().get("response_1").getCategory(), is("No"));
+    }
+
+    @Test
+    public void resumeAll_batchLocations() throws Exception {
+        final List<String> lookups = Collections.synchronizedList(new ArrayList<String>());
+        final TestLocationResolver inner = new TestLocationResolver();
+
+        Runner runner = new RunnerBuilder()
+                .withLocationResolver(new Location.BatchResolver() {
+                    @Override
+                    public List<Location> resolveAll(List<String> texts, String country, Location.Level level, Location parent) {
+                        lookups.add(level + ":" + texts);
+                        return Location.resolveAll(inner, texts, country, level, parent);
+                    }
+
+                    @Override
+                    public Location resolve(String text, String country, Location.Level level, Location parent) {
+                        lookups.add(level + ":" + text);
+                        return inner.resolve(text, country, level, parent);
+                    }
+                })
+                .build();
+
+        m_fields.add(new Field("state", "State", Field.ValueType.STATE));
+        m_fields.add(new Field("district", "District", Field.ValueType.DISTRICT));
+
+        Flow flow = Flow.fromJson(readResource("test_flows/locations.json"));
+        runner.getFlows().register(flow);
+
+        List<Contact> contacts = new ArrayList<>();
+        for (int c = 0; c < 3; c++) {
+            contacts.add(new Contact("1234-000" + c, "Joe " + c, ContactUrn.fromString("tel:+26096415368" + c), "eng"));
+        }
+
+        List<RunState> runs = new ArrayList<>();
+        for (Runner.BatchResult result : runner.startAll(m_org, m_fields, contacts, flow.getUuid())) {
+            runs.add(result.getRun());
+        }
+
+        // the state lookups for all runs are made in a single call
+        List<Runner.BatchResult> results = runner.resumeAll(runs, Arrays.asList(Input.of("Kigali"), Input.of("Kigali"), Input.of("Nairobi")));
+
+        assertThat(results.get(0).getRun().getContact().getFields().get("state"), is("Kigali"));
+        assertThat(results.get(1).getRun().getContact().getFields().get("state"), is("Kigali"));
+        assertThat(results.get(2).getRun().getValues().get("state").getCategory(), is("Other"));
+        assertThat(lookups, contains("STATE:[Kigali, Nairobi]"));
+
+        // as are the state and then district lookups of the district tests
+        lookups.clear();
+        results = runner.resumeAll(runs.subList(0, 2), Arrays.asList(Input.of("Gasabo"), Input.of("Kabeza")));
+
+        assertThat(results.get(0).getRun().getState(), is(RunState.State.COMPLETED));
+        assertThat(results.get(0).getRun().getContact().getFields().get("district"), is("Gasabo"));
+        assertThat(results.get(1).getRun().getValues().get("district").getCategory(), is("Other"));
+        assertThat(lookups, contains("STATE:[Kigali]", "DISTRICT:[Gasabo, Kabeza]"));
+    }
+
+    @Test
+    public void resumeAsync() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final TestLocationResolver resolver = new TestLocationResolver();
+        final List<String> lookups = Collections.synchronizedList(new ArrayList<String>());
+
+        Runner runner = new RunnerBuilder()
+                .withLocationResolver(resolver)
+                .withAsyncLocationResolver(new Location.AsyncResolver() {
+                    @Override
+                    public void resolveAsync(final String text, final String country, final Location.Level level, final Location parent, final Location.Callback callback) {
+                        lookups.add(level + ":" + text);
+                        executor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onResolved(resolver.resolve(text, country, level, parent));
+                            }
+                        });
+                    }
+                })
+                .build();
+
+        m_fields.add(new Field("state", "State", Field.ValueType.STATE));
+        m_fields.add(new Field("district", "District", Field.ValueType.DISTRICT));
+
+        Flow flow = Flow.fromJson(readResource("test_flows/locations.json"));
+        RunState run = runner.start(m_org, m_fields, m_contact, flow);
+
+        assertThat(run.getState(), is(RunState.State.WAIT_MESSAGE));
+
+        Input input = Input.of("kigali");
+        RunState resumed = resumeAsync(runner, run, input);
+
+        // original run state is unchanged but the input is consumed
+        assertThat(run.getSteps(), hasSize(2));
+        assertThat(input.isConsumed(), is(true));
+
+        assertThat(resumed.getState(), is(RunState.State.WAIT_MESSAGE));
+        assertThat(resumed.getValues().get("state").getValue(), is("Kigali"));
+        assertThat(resumed.getContact().getFields().get("state"), is("Kigali"));
+        assertReply(resumed.getSteps().get(1).getActions().get(1), "Which district of Kigali do you live in?");
+
+        resumed = resumeAsync(runner, resumed, Input.of("gasabo"));
+
+        assertThat(resumed.getState(), is(RunState.State.COMPLETED));
+        assertThat(resumed.getContact().getFields().get("district"), is("Gasabo"));
+        assertReply(resumed.getSteps().get(1).getActions().get(1), "Thanks, you live in Gasabo, Kigali.");
+
+        // each lookup is only made once per resume
+        assertThat(lookups, contains("STATE:kigali", "STATE:Kigali", "STATE:Kigali", "DISTRICT:gasabo", "DISTRICT:Gasabo"));
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void resumeAsync_registeredOrg() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final TestLocationResolver resolver = new TestLocationResolver();
+
+        Runner runner = new RunnerBuilder()
+                .withLocationResolver(resolver)
+                .withAsyncLocationResolver(new Location.AsyncResolver() {
+                    @Override
+                    public void resolveAsync(final String text, final String country, final Location.Level level, final Location parent, final Location.Callback callback) {
+                        executor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onResolved(resolver.resolve(text, country, level, parent));
+                            }
+                        });
+                    }
+                })
+                .build();
+
+        m_fields.add(new Field("state", "State", Field.ValueType.STATE));
+        m_fields.add(new Field("district", "District", Field.ValueType.DISTRICT));
+        OrgRegistry.Entry org = new OrgRegistry().register("org-1", m_org, m_fields);
+
+        Flow flow = Flow.fromJson(readResource("test_flows/locations.json"));
+        RunState run = runner.start(org, m_contact, flow);
+
+        // attempts are made on copies of the run which must still share the registered org
+        RunState resumed = resumeAsync(runner, run, Input.of("kigali"));
+        assertThat(resumed.getRegisteredOrg(), is(sameInstance(org)));
+        assertThat(resumed.getContact().getFields().get("state"), is("Kigali"));
+
+        resumed = resumeAsync(runner, resumed, Input.of("gasabo"));
+        assertThat(resumed.getState(), is(RunState.State.COMPLETED));
+        assertThat(resumed.getRegisteredOrg(), is(sameInstance(org)));
+        assertThat(resumed.getContact().getFields().get("district"), is("Gasabo"));
+
+        executor.shutdown();
+    }
+
+    protected RunState resumeAsync(Runner runner, RunState run, Input input) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<RunState> result = new AtomicReference<>();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+
+        runner.resumeAsync(run, input, new Runner.ResumeCallback() {
+            @Override
+            public void onResumed(RunState run) {
+                result.set(run);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(error.get(), nullValue());
+        return result.get();
+    }
+
+    @Test
+    public void substituteVariables_foldedTemplates() throws Exception {
+        Runner runner = new RunnerBuilder()
+                .withNowAs(Instant.parse("2015-10-21T08:30:00Z"))
+                .build();
+
+        Flow flow = Flow.fromJson(readResource("test_flows/dates.json"));
+        RunState run1 = runner.start(m_org, m_fields, m_contact, flow);
+
+        assertReply(run1.getSteps().get(0).getActions().get(0), "Today is 21-10-2015");
+        assertReply(run1.getSteps().get(0).getActions().get(1), "Thanks for your reply");
+        assertThat(runner.getFlows().getTemplateKind("Thanks for your reply"), is(TemplateFolding.Kind.CONSTANT));
+        assertThat(runner.getFlows().getTemplateKind("Today is @date.today"), is(TemplateFolding.Kind.DATE));
+
+        // second run on the same day gets the memoized date template
+        RunState run2 = runner.start(m_org, m_fields, m_contact, flow);
+
+        assertReply(run2.getSteps().get(0).getActions().get(0), "Today is 21-10-2015");
+        assertThat(runner.m_dateTemplates.size(), is(1));
+        assertThat(runner.m_dateTemplates.getHits(), is(1L));
+
+        // but not on a different day
+        Runner tomorrow = new RunnerBuilder()
+                .withNowAs(Instant.parse("2015-10-22T08:30:00Z"))
+                .build();
+        RunState run3 = tomorrow.start(m_org, m_fields, m_contact, flow);
+
+        assertReply(run3.getSteps().get(0).getActions().get(0), "Today is 22-10-2015");
+    }
+
     @Test
     public void updateContactField() throws Exception {
         m_fields.add(new Field("district", "District", Field.ValueType.DISTRICT));
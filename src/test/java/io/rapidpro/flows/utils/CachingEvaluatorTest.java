@@ -0,0 +1,62 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.expressions.EvaluatedTemplate;
+import io.rapidpro.expressions.EvaluationContext;
+import io.rapidpro.expressions.dates.DateStyle;
+import io.rapidpro.expressions.functions.CustomFunctions;
+import io.rapidpro.expressions.functions.ExcelFunctions;
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+import org.threeten.bp.ZoneId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link CachingEvaluator}
+ */
+public class CachingEvaluatorTest extends BaseFlowsTest {
+
+    @Test
+    public void evaluateTemplate() {
+        CachingEvaluator evaluator = new CachingEvaluator(
+                '@',
+                new HashSet<>(Arrays.asList("contact")),
+                Arrays.<Class<?>>asList(ExcelFunctions.class, CustomFunctions.class),
+                2
+        );
+
+        Map<String, Object> contact = new HashMap<>();
+        contact.put("name", "Joe");
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("contact", contact);
+        EvaluationContext context = new EvaluationContext(variables, ZoneId.of("Africa/Kigali"), DateStyle.DAY_FIRST);
+
+        assertThat(evaluator.evaluateTemplate("Hi @contact.name", context).getOutput(), is("Hi Joe"));
+        assertThat(evaluator.evaluateTemplate("Hi @(UPPER(contact.name))", context).getOutput(), is("Hi JOE"));
+        assertThat(evaluator.getCache().size(), is(2));
+        assertThat(evaluator.getCache().getMisses(), is(2L));
+
+        // second evaluation uses the cached parse tree
+        contact.put("name", "Bob");
+        assertThat(evaluator.evaluateTemplate("Hi @(UPPER(contact.name))", context).getOutput(), is("Hi BOB"));
+        assertThat(evaluator.getCache().getHits(), is(1L));
+
+        // parse errors are cached too
+        for (int i = 0; i < 2; i++) {
+            EvaluatedTemplate template = evaluator.evaluateTemplate("@(1 +)", context);
+            assertThat(template.getOutput(), is("@(1 +)"));
+            assertThat(template.getErrors(), is(Collections.singletonList("Expression error at: )")));
+        }
+        assertThat(evaluator.getCache().getHits(), is(2L));
+
+        // cache is bounded
+        assertThat(evaluator.getCache().size(), is(2));
+    }
+}
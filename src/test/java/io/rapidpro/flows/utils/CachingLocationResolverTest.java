@@ -0,0 +1,101 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.runner.Location;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link CachingLocationResolver}
+ */
+public class CachingLocationResolverTest extends BaseFlowsTest {
+
+    @Test
+    public void resolve() {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final Location.Resolver inner = new TestLocationResolver();
+
+        CachingLocationResolver resolver = new CachingLocationResolver(new Location.Resolver() {
+            @Override
+            public Location resolve(String text, String country, Location.Level level, Location parent) {
+                calls.incrementAndGet();
+                return inner.resolve(text, country, level, parent);
+            }
+        }, 3);
+
+        Location kigali = resolver.resolve("Kigali", "RW", Location.Level.STATE, null);
+        assertThat(kigali.getOsmId(), is("S0001"));
+        assertThat(resolver.resolve(" KIGALI ", "RW", Location.Level.STATE, null), is(sameInstance(kigali)));
+        assertThat(calls.get(), is(1));
+
+        // country, level and parent are all part of the key
+        assertThat(resolver.resolve("Kigali", "KE", Location.Level.STATE, null), is(sameInstance(kigali)));
+        assertThat(resolver.resolve("Kigali", "RW", Location.Level.DISTRICT, null), is(nullValue()));
+        assertThat(calls.get(), is(3));
+
+        // negative results are cached too
+        assertThat(resolver.resolve("kigali", "RW", Location.Level.DISTRICT, null), is(nullValue()));
+        assertThat(calls.get(), is(3));
+
+        assertThat(resolver.getHits(), is(2L));
+        assertThat(resolver.getMisses(), is(3L));
+        assertThat(resolver.getHitRate(), is(0.4));
+
+        // least recently used entries are evicted
+        Location gasabo = resolver.resolve("Gasabo", "RW", Location.Level.DISTRICT, kigali);
+        assertThat(gasabo.getOsmId(), is("D0001"));
+        assertThat(resolver.size(), is(3));
+        assertThat(resolver.resolve("Kigali", "KE", Location.Level.STATE, null), is(sameInstance(kigali)));
+        assertThat(calls.get(), is(4));
+        assertThat(resolver.resolve("Kigali", "RW", Location.Level.STATE, null), is(sameInstance(kigali)));
+        assertThat(calls.get(), is(5));
+
+        // keys are lowercased the same way whatever the default locale
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertThat(resolver.resolve("KIGALI", "RW", Location.Level.STATE, null), is(sameInstance(kigali)));
+            assertThat(calls.get(), is(5));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    public void resolveAll() {
+        final List<List<String>> batches = new ArrayList<>();
+        final Location.Resolver inner = new TestLocationResolver();
+
+        CachingLocationResolver resolver = new CachingLocationResolver(new Location.BatchResolver() {
+            @Override
+            public List<Location> resolveAll(List<String> texts, String country, Location.Level level, Location parent) {
+                batches.add(texts);
+                return Location.resolveAll(inner, texts, country, level, parent);
+            }
+
+            @Override
+            public Location resolve(String text, String country, Location.Level level, Location parent) {
+                return inner.resolve(text, country, level, parent);
+            }
+        });
+
+        Location kigali = resolver.resolve("Kigali", "RW", Location.Level.STATE, null);
+
+        // only the names which aren't cached are passed on
+        List<Location> locations = resolver.resolveAll(Arrays.asList("kigali", "Nairobi", "Kampala"), "RW", Location.Level.STATE, null);
+        assertThat(locations, contains(sameInstance(kigali), nullValue(), nullValue()));
+        assertThat(batches, contains(Arrays.asList("Nairobi", "Kampala")));
+
+        locations = resolver.resolveAll(Arrays.asList("Kampala", "KIGALI"), "RW", Location.Level.STATE, null);
+        assertThat(locations, contains(nullValue(), sameInstance(kigali)));
+        assertThat(batches, hasSize(1));
+    }
+}
@@ -0,0 +1,80 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link ConcurrentCache}
+ */
+public class ConcurrentCacheTest extends BaseFlowsTest {
+
+    @Test
+    public void getAndPut() {
+        ConcurrentCache<String, Integer> cache = new ConcurrentCache<>(20);
+
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.getMisses(), is(1L));
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("k" + i, i);
+        }
+        assertThat(cache.size(), is(20));
+        assertThat(cache.get("k0"), is(0));
+        assertThat(cache.getHits(), is(1L));
+
+        // filling the cache evicts the least recently used entries down to 90% of the max size
+        cache.put("k20", 20);
+        assertThat(cache.size(), is(18));
+        assertThat(cache.get("k0"), is(0));
+        assertThat(cache.get("k1"), nullValue());
+        assertThat(cache.get("k2"), nullValue());
+        assertThat(cache.get("k3"), nullValue());
+        assertThat(cache.get("k4"), is(4));
+        assertThat(cache.get("k20"), is(20));
+
+        cache.clear();
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getMaxSize(), is(20));
+    }
+
+    @Test
+    public void getAndPut_concurrently() throws Exception {
+        final ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<>(100);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int i = 0; i < 10000; i++) {
+                        int key = i % 150;
+                        Integer value = cache.get(key);
+                        if (value == null) {
+                            cache.put(key, key * 2);
+                        } else if (value != key * 2) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> future : futures) {
+            assertThat(future.get(), is(true));
+        }
+        executor.shutdown();
+
+        assertThat(cache.getHits() + cache.getMisses(), is(40000L));
+    }
+}
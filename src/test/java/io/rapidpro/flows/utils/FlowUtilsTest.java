@@ -5,7 +5,7 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Test;
 
-import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -35,4 +35,38 @@ public class FlowUtilsTest extends BaseFlowsTest {
         assertThat(FlowUtils.normalizeNumber("0788383383", "ZZ"), is((Pair) new ImmutablePair<>("0788383383", false)));
         assertThat(FlowUtils.normalizeNumber("MTN", "RW"), is((Pair) new ImmutablePair<>("mtn", false)));
     }
+
+    @Test
+    public void findPhoneNumber() {
+        assertThat(FlowUtils.findPhoneNumber("my number is 0788383383", "RW"), is("+250788383383"));
+        assertThat(FlowUtils.findPhoneNumber("250788383383", "RW"), is("+250788383383"));
+        assertThat(FlowUtils.findPhoneNumber("12345", "RW"), is(nullValue()));
+        assertThat(FlowUtils.findPhoneNumber("no digits here", "RW"), is(nullValue()));
+
+        // results are cached, including texts without numbers
+        long hits = FlowUtils.s_foundNumbers.getHits();
+        assertThat(FlowUtils.findPhoneNumber("my number is 0788383383", "RW"), is("+250788383383"));
+        assertThat(FlowUtils.findPhoneNumber("12345", "RW"), is(nullValue()));
+        assertThat(FlowUtils.s_foundNumbers.getHits() - hits, is(2L));
+
+        // but are per country
+        assertThat(FlowUtils.findPhoneNumber("my number is 0788383383", "US"), is(nullValue()));
+    }
+
+    @Test
+    public void formatNationalNumber() {
+        assertThat(FlowUtils.formatNationalNumber("+250788383383"), is("0788 383 383"));
+        assertThat(FlowUtils.formatNationalNumber("+19179925253"), is("(917) 992-5253"));
+        assertThat(FlowUtils.formatNationalNumber("0788383383"), is(nullValue()));
+        assertThat(FlowUtils.formatNationalNumber("+12"), is(nullValue()));
+        assertThat(FlowUtils.formatNationalNumber(""), is(nullValue()));
+    }
+
+    @Test
+    public void hasPhoneDigits() {
+        assertThat(FlowUtils.hasPhoneDigits("12"), is(false));
+        assertThat(FlowUtils.hasPhoneDigits("a1b2c"), is(false));
+        assertThat(FlowUtils.hasPhoneDigits("1 2 3"), is(true));
+        assertThat(FlowUtils.hasPhoneDigits("١٢٣"), is(true));
+    }
 }
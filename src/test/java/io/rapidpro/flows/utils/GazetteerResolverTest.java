@@ -0,0 +1,63 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import io.rapidpro.flows.runner.Location;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link GazetteerResolver}
+ */
+public class GazetteerResolverTest extends BaseFlowsTest {
+
+    protected GazetteerResolver m_resolver;
+
+    @Before
+    public void setUpResolver() throws Exception {
+        m_resolver = GazetteerResolver.fromJson(readResource("test_locations/rwanda.json"));
+    }
+
+    @Test
+    public void resolve_states() {
+        Location kigali = m_resolver.resolve("Kigali City", "RW", Location.Level.STATE, null);
+        assertThat(kigali.getOsmId(), is("1708283"));
+        assertThat(kigali.getName(), is("Kigali City"));
+        assertThat(kigali.getLevel(), is(Location.Level.STATE));
+
+        // names are matched case-insensitively and ignoring punctuation
+        assertThat(m_resolver.resolve("  KIGALI,  city! ", "RW", Location.Level.STATE, null), is(sameInstance(kigali)));
+
+        // aliases resolve to the same location
+        assertThat(m_resolver.resolve("kigali", "rw", Location.Level.STATE, null), is(sameInstance(kigali)));
+        assertThat(m_resolver.resolve("umujyi wa kigali", "RW", Location.Level.STATE, null), is(sameInstance(kigali)));
+
+        // names can be found inside longer messages
+        assertThat(m_resolver.resolve("I live in kigali city now", "RW", Location.Level.STATE, null), is(sameInstance(kigali)));
+        assertThat(m_resolver.resolve("from the eastern province", "RW", Location.Level.STATE, null).getOsmId(), is("171591"));
+
+        assertThat(m_resolver.resolve("Eastern", "RW", Location.Level.STATE, null), is(nullValue()));
+        assertThat(m_resolver.resolve("Gasabo", "RW", Location.Level.STATE, null), is(nullValue()));
+        assertThat(m_resolver.resolve("Kigali", "KE", Location.Level.STATE, null), is(nullValue()));
+        assertThat(m_resolver.resolve("", "RW", Location.Level.STATE, null), is(nullValue()));
+    }
+
+    @Test
+    public void resolve_withParents() {
+        Location kigali = m_resolver.resolve("Kigali", "RW", Location.Level.STATE, null);
+        Location eastern = m_resolver.resolve("Eastern Province", "RW", Location.Level.STATE, null);
+
+        Location gasabo = m_resolver.resolve("gasabo", "RW", Location.Level.DISTRICT, kigali);
+        assertThat(gasabo.getOsmId(), is("1711131"));
+        assertThat(m_resolver.resolve("gasabo", "RW", Location.Level.DISTRICT, eastern), is(nullValue()));
+        assertThat(m_resolver.resolve("gasabo", "RW", Location.Level.DISTRICT, null), is(sameInstance(gasabo)));
+
+        // the same ward name in different districts
+        Location kicukiro = m_resolver.resolve("Kicukiro", "RW", Location.Level.DISTRICT, kigali);
+        assertThat(m_resolver.resolve("remera", "RW", Location.Level.WARD, gasabo).getOsmId(), is("3963735"));
+        assertThat(m_resolver.resolve("remera", "RW", Location.Level.WARD, kicukiro).getOsmId(), is("3963750"));
+        assertThat(m_resolver.resolve("jali", "RW", Location.Level.WARD, kicukiro), is(nullValue()));
+    }
+}
@@ -0,0 +1,52 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link LazyMap}
+ */
+public class LazyMapTest extends BaseFlowsTest {
+
+    @Test
+    public void deferredValues() {
+        final AtomicInteger computed = new AtomicInteger(0);
+
+        LazyMap<String> map = new LazyMap<>();
+        map.put("a", "A");
+        map.putDeferred("b", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                computed.incrementAndGet();
+                return "B";
+            }
+        });
+        map.putDeferred("c", new LazyMap.Deferred<String>() {
+            @Override
+            public String compute() {
+                computed.incrementAndGet();
+                return null;
+            }
+        });
+
+        assertThat(map.size(), is(3));
+        assertThat(map.containsKey("b"), is(true));
+        assertThat(map.containsKey("c"), is(true));
+        assertThat(map.containsKey("d"), is(false));
+        assertThat(computed.get(), is(0));
+
+        // values are computed once on first access
+        assertThat(map.get("b"), is("B"));
+        assertThat(map.get("b"), is("B"));
+        assertThat(computed.get(), is(1));
+
+        // iterating computes everything
+        assertThat(map, allOf(hasEntry("a", "A"), hasEntry("b", "B"), hasEntry("c", (String) null)));
+        assertThat(computed.get(), is(2));
+    }
+}
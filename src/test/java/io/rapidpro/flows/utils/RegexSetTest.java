@@ -0,0 +1,121 @@
+package io.rapidpro.flows.utils;
+
+import io.rapidpro.flows.BaseFlowsTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test for {@link RegexSet}
+ */
+public class RegexSetTest extends BaseFlowsTest {
+
+    @Test
+    public void match() {
+        RegexSet regexes = new RegexSet(Arrays.asList("^yes$", "(\\d+)\\s*kg", "(?<name>[A-Z][a-z]+) smith", "(a)\\1", "[", "colou?r"));
+
+        assertThat(regexes.isSupported(0), is(true));
+        assertThat(regexes.isSupported(1), is(true));
+        assertThat(regexes.isSupported(2), is(true));
+        assertThat(regexes.isSupported(3), is(false)); // backreference
+        assertThat(regexes.isSupported(4), is(false)); // invalid
+
+        assertThat(regexes.match("YES"), is(bits(0)));
+        assertThat(regexes.match("well\nyes\nok"), is(bits(0)));
+        assertThat(regexes.match("yes please"), is(bits()));
+        assertThat(regexes.match("I weigh 70 KG"), is(bits(1)));
+        assertThat(regexes.match("bob SMITH likes the colour red"), is(bits(2, 5)));
+        assertThat(regexes.match(""), is(bits()));
+    }
+
+    @Test
+    public void match_sameAsJava() {
+        List<String> patterns = Arrays.asList(
+                "", "a", "^", "$", "^$", "$^", "^a$", "a|b|", "ab*c", "a+b?", "(ab){2}", "(ab){1,3}c", "x{2,}",
+                "a.c", "[a-c]+", "[^a-c]", "[\\d\\s]", "\\W+", "[-a]", "[a-]", "\\bcat\\b", "\\Bat", "at\\B",
+                "\\x41", "\\u00e9", "café", "\\.", "\\$\\d+(\\.\\d\\d)?", "(?:no|nope)\\b", "[Z-a]", "😀",
+                "^.$", "\\r\\n", "a$\\n^b", "[^\\n]*end", "\\w+@\\w+\\.com", "a*?b", "(a|)*b"
+        );
+        List<String> inputs = Arrays.asList(
+                "", "a", "A", "b", "abc", "ABABC", "abababc", "xx", "x", "a-c", "a\nc", "cat", "the cat sat", "concatenate",
+                "bat", "Café", "CAFÉ", "$12.50", "no", "nope!", "nothing", "[", "_", "😀",
+                "a\r\nb", "a\rb", "a\nb", "line\n", "\n", "\r\n", "the end", "bob@mail.com", "aab", " "
+        );
+
+        RegexSet regexes = new RegexSet(patterns);
+
+        for (int p = 0; p < patterns.size(); p++) {
+            assertThat(patterns.get(p), regexes.isSupported(p), is(true));
+        }
+
+        for (String input : inputs) {
+            BitSet expected = new BitSet();
+            for (int p = 0; p < patterns.size(); p++) {
+                if (Pattern.compile(patterns.get(p), Pattern.CASE_INSENSITIVE | Pattern.MULTILINE).matcher(input).find()) {
+                    expected.set(p);
+                }
+            }
+            assertThat(input, regexes.match(input), is(expected));
+        }
+    }
+
+    @Test
+    public void match_unsupported() {
+        List<String> patterns = Arrays.asList("(?=a)", "(?i)a", "a++", "\\p{L}", "\\Qa\\E", "[a[b]]", "[a&&b]", "(a)\\1", "\\ud83d\\ude00");
+        RegexSet regexes = new RegexSet(patterns);
+
+        for (int p = 0; p < patterns.size(); p++) {
+            assertThat(patterns.get(p), regexes.isSupported(p), is(false));
+        }
+        assertThat(regexes.match("aaa"), is(bits()));
+    }
+
+    @Test
+    public void match_stackedQuantifiers() {
+        // java.util.regex doesn't read a quantifier after a quantifier as repeating the repetition
+        List<String> stacked = Arrays.asList("a+{2}", "(a)+{2}", "(ab)+{2}", "a{2}{3}", "a*?+", "a??*", "a{1,2}?{2}");
+        List<String> patterns = new ArrayList<>(stacked);
+        patterns.addAll(Arrays.asList("a+", "(a){2}", "(ab)+", "a{2}", "a{6}", "a*?", "a{1,2}?"));
+        List<String> inputs = Arrays.asList("", "a", "ab", "aa", "abab", "aaaaaa", "b");
+
+        RegexSet regexes = new RegexSet(patterns);
+
+        for (int p = 0; p < patterns.size(); p++) {
+            assertThat(patterns.get(p), regexes.isSupported(p), is(!stacked.contains(patterns.get(p))));
+        }
+
+        // unsupported patterns are left to java.util.regex, supported ones must match exactly as it does
+        for (String input : inputs) {
+            BitSet expected = new BitSet();
+            for (int p = 0; p < patterns.size(); p++) {
+                if (regexes.isSupported(p) && Pattern.compile(patterns.get(p), Pattern.CASE_INSENSITIVE | Pattern.MULTILINE).matcher(input).find()) {
+                    expected.set(p);
+                }
+            }
+            assertThat(input, regexes.match(input), is(expected));
+        }
+    }
+
+    @Test
+    public void match_tooManyStates() {
+        RegexSet regexes = new RegexSet(Arrays.asList("a.{20}b"), 10);
+
+        assertThat(regexes.match("ab"), is(bits()));
+        assertThat(regexes.match("a01234567890123456789b"), is(nullValue()));
+    }
+
+    protected static BitSet bits(int... positions) {
+        BitSet bits = new BitSet();
+        for (int position : positions) {
+            bits.set(position);
+        }
+        return bits;
+    }
+}